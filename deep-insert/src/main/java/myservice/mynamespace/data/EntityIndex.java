@@ -0,0 +1,302 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package myservice.mynamespace.data;
+
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * Primary key index of an entity set, maps the Int32 ID of an entity to the entity.
+ *
+ * The index is an open addressing hash table with linear probing on plain arrays, so a lookup
+ * takes constant time and neither boxes the key nor allocates anything. Readers don't block,
+ * they read optimistically and only take the read lock if a writer got in between.
+ *
+ * The index also hands out the IDs of new entities. It remembers the highest ID it has seen,
+ * so a new ID is found in constant time and the IDs of deleted entities are not reused.
+ *
+ * Every entry has a version, which is incremented whenever a transaction changes the entity.
+ * Transactions compare the versions at commit time to find out if another client changed an
+ * entity in between.
+ */
+class EntityIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final StampedLock lock = new StampedLock();
+
+    // a slot is free if its value is null, so every int can be used as key
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private Entity[] values = new Entity[INITIAL_CAPACITY];
+    private long[] versions = new long[INITIAL_CAPACITY];
+    private int size;
+    // one above the highest ID put into the index or handed out for a new entity
+    private int nextId = 1;
+
+    Entity get(int id) {
+        long stamp = lock.tryOptimisticRead();
+        Entity entity = find(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                entity = find(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * Returns the version of the entity with the ID, 0 if there is none
+     */
+    long getVersion(int id) {
+        long stamp = lock.tryOptimisticRead();
+        long version = findVersion(id);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                version = findVersion(id);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Hands out the ID for a new entity, which isn't used by any entity in the index. Every ID is
+     * handed out only once, even if the entity is never put into the index.
+     */
+    int nextId() {
+        long stamp = lock.writeLock();
+        try {
+            return nextId++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void put(int id, Entity entity) {
+        long stamp = lock.writeLock();
+        try {
+            if (id >= nextId) {
+                nextId = id + 1;
+            }
+            // keep the load factor below 0.5, so the probe sequences stay short
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = hash(id) & mask;
+            while (values[slot] != null) {
+                if (keys[slot] == id) {
+                    values[slot] = entity;
+                    versions[slot]++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = id;
+            values[slot] = entity;
+            versions[slot] = 1;
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the ID which nextId hands out next, without handing it out
+     */
+    int getNextId() {
+        long stamp = lock.readLock();
+        try {
+            return nextId;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Raises the next ID, so the IDs below it are not handed out again, e.g. the IDs of entities
+     * which were deleted before a restart
+     */
+    void reserveIds(int nextId) {
+        long stamp = lock.writeLock();
+        try {
+            if (nextId > this.nextId) {
+                this.nextId = nextId;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sets the version of the entity with the ID, when the entity is recovered from the log
+     */
+    void setVersion(int id, long version) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = slot(id);
+            if (values[slot] != null) {
+                versions[slot] = version;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Increments the version of the entity with the ID, after a transaction changed it
+     */
+    void incrementVersion(int id) {
+        long stamp = lock.writeLock();
+        try {
+            int slot = slot(id);
+            if (values[slot] != null) {
+                versions[slot]++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void remove(int id) {
+        long stamp = lock.writeLock();
+        try {
+            int mask = keys.length - 1;
+            int slot = slot(id);
+            if (values[slot] == null) {
+                return;
+            }
+            values[slot] = null;
+            size--;
+
+            // move the following entries of the probe sequence back, so that no lookup stops early
+            // at the slot which just became free
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                if (values[next] == null) {
+                    break;
+                }
+                int home = hash(keys[next]) & mask;
+                boolean reachable = next > slot
+                        ? home > slot && home <= next
+                        : home > slot || home <= next;
+                if (!reachable) {
+                    keys[slot] = keys[next];
+                    values[slot] = values[next];
+                    versions[slot] = versions[next];
+                    values[next] = null;
+                    slot = next;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns the slot of the ID, or the free slot where the ID would be put. Only for writers.
+     */
+    private int slot(int id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (values[slot] != null && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private Entity find(int id) {
+        int[] keys = this.keys;
+        Entity[] values = this.values;
+        if (keys.length != values.length) {
+            // torn read while the table is resized, the caller retries with the read lock
+            return null;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        // bounded by the capacity, a concurrent writer must never send a reader into an endless loop
+        for (int probes = 0; probes < keys.length; probes++) {
+            Entity entity = values[slot];
+            if (entity == null) {
+                return null;
+            } else if (keys[slot] == id) {
+                return entity;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private long findVersion(int id) {
+        int[] keys = this.keys;
+        Entity[] values = this.values;
+        long[] versions = this.versions;
+        if (keys.length != values.length || keys.length != versions.length) {
+            return 0;
+        }
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            if (values[slot] == null) {
+                return 0;
+            } else if (keys[slot] == id) {
+                return versions[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Entity[] oldValues = values;
+        long[] oldVersions = versions;
+        int[] newKeys = new int[capacity];
+        Entity[] newValues = new Entity[capacity];
+        long[] newVersions = new long[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (newValues[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = oldKeys[i];
+                newValues[slot] = oldValues[i];
+                newVersions[slot] = oldVersions[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        versions = newVersions;
+    }
+
+    private static int hash(int id) {
+        // IDs are mostly consecutive numbers, spread them over the table
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package myservice.mynamespace.data;
+
+import java.net.URI;
+import java.util.Iterator;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityIterator;
+
+/**
+ * Hands the entities of a list to the streaming serializer one by one. The entity sets of the
+ * TransactionalEntityManager are copy on write lists and the collections of the navigation links
+ * are replaced when targets are added, so the iterator works on a snapshot and the entities don't
+ * have to be copied.
+ */
+public class EntityListIterator extends EntityIterator {
+
+    private final Iterator<Entity> entities;
+    
+    public EntityListIterator(final Iterable<Entity> entities) {
+        this.entities = entities.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return entities.hasNext();
+    }
+
+    @Override
+    public Entity next() {
+        return entities.next();
+    }
+    
+    @Override
+    public Integer getCount() {
+        // $count isn't supported by the service
+        return null;
+    }
+
+    @Override
+    public URI getNext() {
+        // server side paging isn't supported by the service
+        return null;
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package myservice.mynamespace.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * Makes the entities of a TransactionalEntityManager persistent with a WriteAheadLog.
+ *
+ * Each commit writes one record with the entities it created, changed or linked, and the IDs
+ * of the entities it deleted. An entity is written as a whole: its properties, its version and
+ * the navigation links with the type and ID of their targets. Recovery collects the last state
+ * of every entity from the newest snapshot and the records after it, and links the entities
+ * once all of them are known; links to entities which don't exist any more are dropped.
+ *
+ * When the log has grown by checkpointLogSize bytes a checkpoint starts a new segment and writes
+ * a snapshot of all entities. The entities are written into the snapshot while the commit lock
+ * is held, the snapshot file is written afterwards.
+ */
+class EntityLog {
+
+    private static final int SNAPSHOT_MAGIC = 0x4f444549;
+
+    private static final byte END = 0;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte INTEGER_VALUE = 1;
+    private static final byte STRING_VALUE = 2;
+    private static final byte LONG_VALUE = 3;
+    private static final byte BOOLEAN_VALUE = 4;
+    private static final byte DOUBLE_VALUE = 5;
+
+    private final WriteAheadLog log;
+    private final long checkpointLogSize;
+    private volatile boolean checkpointRunning;
+
+    EntityLog(final File directory, final long checkpointLogSize) throws IOException {
+        this.log = new WriteAheadLog(directory);
+        this.checkpointLogSize = checkpointLogSize;
+    }
+
+    /**
+     * Restores the entities from the newest snapshot and the records after it. Returns false if
+     * the directory has no snapshot yet, then the manager is left unchanged.
+     */
+    boolean recover(final TransactionalEntityManager manager) throws IOException {
+        final Map<String, Map<Integer, StoredEntity>> entitySets = new LinkedHashMap<>();
+        final Map<String, Integer> nextIds = new HashMap<>();
+        boolean recovered = false;
+        try (DataInputStream snapshot = log.readSnapshot()) {
+            if (snapshot != null) {
+                if (snapshot.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Invalid snapshot");
+                }
+                int entitySetCount = snapshot.readInt();
+                for (int i = 0; i < entitySetCount; i++) {
+                    String entitySetName = snapshot.readUTF();
+                    nextIds.put(entitySetName, snapshot.readInt());
+                    int count = snapshot.readInt();
+                    for (int j = 0; j < count; j++) {
+                        StoredEntity entity = readEntity(snapshot);
+                        getEntities(entitySets, entitySetName).put(entity.id, entity);
+                    }
+                }
+                recovered = true;
+            }
+        }
+        log.replay(new WriteAheadLog.RecordHandler() {
+            @Override
+            public void record(final DataInput in) throws IOException {
+                for (byte operation = in.readByte(); operation != END; operation = in.readByte()) {
+                    String entitySetName = in.readUTF();
+                    if (operation == PUT) {
+                        StoredEntity entity = readEntity(in);
+                        getEntities(entitySets, entitySetName).put(entity.id, entity);
+                    } else if (operation == REMOVE) {
+                        getEntities(entitySets, entitySetName).remove(in.readInt());
+                    } else {
+                        throw new IOException("Unknown operation " + operation + " in the entity log");
+                    }
+                }
+            }
+        });
+
+        // the targets of the links are found by their entity type and ID
+        Map<String, Entity> entitiesByKey = new HashMap<>();
+        for (Map<Integer, StoredEntity> entities : entitySets.values()) {
+            for (StoredEntity entity : entities.values()) {
+                entitiesByKey.put(key(entity.entity.getType(), entity.id), entity.entity);
+            }
+        }
+        for (Entry<String, Map<Integer, StoredEntity>> entities : entitySets.entrySet()) {
+            for (StoredEntity entity : entities.getValue().values()) {
+                for (StoredLink link : entity.links) {
+                    List<Entity> targets = new ArrayList<>();
+                    for (String target : link.targets) {
+                        if (entitiesByKey.containsKey(target)) {
+                            targets.add(entitiesByKey.get(target));
+                        }
+                    }
+                    if (link.collection) {
+                        TransactionalEntityManager.applyLinks(entity.entity, link.name,
+                                targets.toArray(new Entity[targets.size()]));
+                    } else if (!targets.isEmpty()) {
+                        TransactionalEntityManager.applyLink(entity.entity, link.name, targets.get(0));
+                    }
+                }
+                manager.restore(entities.getKey(), entity.entity, entity.version);
+            }
+        }
+        for (Entry<String, Integer> nextId : nextIds.entrySet()) {
+            manager.reserveIds(nextId.getKey(), nextId.getValue());
+        }
+        return recovered;
+    }
+
+    /**
+     * Starts a record for the modifications of a commit
+     */
+    Record newRecord() {
+        return new Record();
+    }
+
+    /**
+     * Appends the record, returns its number for sync or 0 if it is empty. Must be called while
+     * the commit lock is held, so the records are in the order of the commits.
+     */
+    long append(final Record record) {
+        if (record.isEmpty()) {
+            return 0;
+        }
+        return log.append(record.toByteArray());
+    }
+
+    /**
+     * Returns when the record is on the disk
+     */
+    void sync(final long number) {
+        if (number == 0) {
+            return;
+        }
+        try {
+            log.sync(number);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the entity log", e);
+        }
+    }
+
+    /**
+     * Starts a checkpoint if the log has grown enough and no other checkpoint is running, returns
+     * null if there is none. Must be called while the commit lock is held.
+     */
+    Checkpoint startCheckpoint(final TransactionalEntityManager manager) {
+        if (checkpointRunning || log.size() < checkpointLogSize) {
+            return null;
+        }
+        try {
+            Checkpoint checkpoint = new Checkpoint(log.startGeneration(), snapshot(manager));
+            checkpointRunning = true;
+            return checkpoint;
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to start a checkpoint of the entity log", e);
+        }
+    }
+
+    /**
+     * Writes the snapshot of the checkpoint, afterwards the older segments are deleted
+     */
+    void finishCheckpoint(final Checkpoint checkpoint) {
+        try {
+            log.writeSnapshot(checkpoint.generation, checkpoint.snapshot);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the snapshot of the entities", e);
+        } finally {
+            checkpointRunning = false;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current entities at once, e.g. of the initial data of a new directory
+     */
+    void checkpoint(final TransactionalEntityManager manager) throws IOException {
+        log.writeSnapshot(log.startGeneration(), snapshot(manager));
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+
+    private byte[] snapshot(final TransactionalEntityManager manager) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream snapshot = new DataOutputStream(bytes);
+        snapshot.writeInt(SNAPSHOT_MAGIC);
+        List<String> entitySetNames = manager.getEntitySetNames();
+        snapshot.writeInt(entitySetNames.size());
+        for (String entitySetName : entitySetNames) {
+            List<Entity> entities = manager.getEntityCollection(entitySetName);
+            snapshot.writeUTF(entitySetName);
+            snapshot.writeInt(manager.getReservedIds(entitySetName));
+            snapshot.writeInt(entities.size());
+            for (Entity entity : entities) {
+                writeEntity(snapshot, entity, manager.getVersion(entitySetName, entity));
+            }
+        }
+        snapshot.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Map<Integer, StoredEntity> getEntities(final Map<String, Map<Integer, StoredEntity>> entitySets,
+            final String entitySetName) {
+        Map<Integer, StoredEntity> entities = entitySets.get(entitySetName);
+        if (entities == null) {
+            // in the order the entities were added, as in the entity collections of the manager
+            entities = new LinkedHashMap<>();
+            entitySets.put(entitySetName, entities);
+        }
+        return entities;
+    }
+
+    private static String key(final String entityType, final int id) {
+        return entityType + "(" + id + ")";
+    }
+
+    private static void writeEntity(final DataOutput out, final Entity entity, final long version)
+            throws IOException {
+        out.writeInt(TransactionalEntityManager.getId(entity));
+        out.writeLong(version);
+        writeString(out, entity.getType());
+        writeString(out, entity.getId() == null ? null : entity.getId().toASCIIString());
+        out.writeInt(entity.getProperties().size());
+        for (Property property : entity.getProperties()) {
+            out.writeUTF(property.getName());
+            writeString(out, property.getType());
+            writeValue(out, property.getValue());
+        }
+        out.writeInt(entity.getNavigationLinks().size());
+        for (Link link : entity.getNavigationLinks()) {
+            out.writeUTF(link.getTitle());
+            List<Entity> targets = new ArrayList<>();
+            if (link.getInlineEntitySet() != null) {
+                out.writeBoolean(true);
+                targets.addAll(link.getInlineEntitySet().getEntities());
+            } else {
+                out.writeBoolean(false);
+                if (link.getInlineEntity() != null) {
+                    targets.add(link.getInlineEntity());
+                }
+            }
+            out.writeInt(targets.size());
+            for (Entity target : targets) {
+                out.writeUTF(key(target.getType(), TransactionalEntityManager.getId(target)));
+            }
+        }
+    }
+
+    private static StoredEntity readEntity(final DataInput in) throws IOException {
+        StoredEntity stored = new StoredEntity(in.readInt(), in.readLong());
+        Entity entity = stored.entity;
+        entity.setType(readString(in));
+        String id = readString(in);
+        if (id != null) {
+            entity.setId(URI.create(id));
+        }
+        int propertyCount = in.readInt();
+        for (int i = 0; i < propertyCount; i++) {
+            String name = in.readUTF();
+            String type = readString(in);
+            entity.addProperty(new Property(type, name, ValueType.PRIMITIVE, readValue(in)));
+        }
+        int linkCount = in.readInt();
+        for (int i = 0; i < linkCount; i++) {
+            StoredLink link = new StoredLink(in.readUTF(), in.readBoolean());
+            int targetCount = in.readInt();
+            for (int j = 0; j < targetCount; j++) {
+                link.targets.add(in.readUTF());
+            }
+            stored.links.add(link);
+        }
+        return stored;
+    }
+
+    private static void writeValue(final DataOutput out, final Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_VALUE);
+            out.writeInt((Integer) value);
+        } else if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeString(out, (String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double) value);
+        } else {
+            throw new ODataRuntimeException("Values of type " + value.getClass().getName()
+                    + " can't be written to the entity log");
+        }
+    }
+
+    private static Object readValue(final DataInput in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+        case NULL_VALUE:
+            return null;
+        case INTEGER_VALUE:
+            return in.readInt();
+        case STRING_VALUE:
+            return readString(in);
+        case LONG_VALUE:
+            return in.readLong();
+        case BOOLEAN_VALUE:
+            return in.readBoolean();
+        case DOUBLE_VALUE:
+            return in.readDouble();
+        default:
+            throw new IOException("Unknown value type " + type + " in the entity log");
+        }
+    }
+
+    private static void writeString(final DataOutput out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            // writeUTF is limited to 64 KB
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(final DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * The modifications of one commit
+     */
+    static class Record {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void put(final String entitySetName, final Entity entity, final long version) {
+            try {
+                out.writeByte(PUT);
+                out.writeUTF(entitySetName);
+                writeEntity(out, entity, version);
+            } catch (IOException e) {
+                throw new ODataRuntimeException("Unable to write the entity log", e);
+            }
+        }
+
+        void remove(final String entitySetName, final int id) {
+            try {
+                out.writeByte(REMOVE);
+                out.writeUTF(entitySetName);
+                out.writeInt(id);
+            } catch (IOException e) {
+                throw new ODataRuntimeException("Unable to write the entity log", e);
+            }
+        }
+
+        boolean isEmpty() {
+            return bytes.size() == 0;
+        }
+
+        byte[] toByteArray() {
+            try {
+                out.writeByte(END);
+                out.flush();
+            } catch (IOException e) {
+                throw new ODataRuntimeException("Unable to write the entity log", e);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * An entity read from the log, its links are resolved when all entities have been read
+     */
+    private static class StoredEntity {
+
+        final int id;
+        final long version;
+        final Entity entity = new Entity();
+        final List<StoredLink> links = new ArrayList<>();
+
+        StoredEntity(final int id, final long version) {
+            this.id = id;
+            this.version = version;
+        }
+    }
+
+    private static class StoredLink {
+
+        final String name;
+        final boolean collection;
+        // entity type and ID of the targets, see key
+        final List<String> targets = new ArrayList<>();
+
+        StoredLink(final String name, final boolean collection) {
+            this.name = name;
+            this.collection = collection;
+        }
+    }
+
+    /**
+     * A snapshot of the entities for the segment of a generation
+     */
+    static class Checkpoint {
+
+        private final long generation;
+        private final byte[] snapshot;
+
+        Checkpoint(final long generation, final byte[] snapshot) {
+            this.generation = generation;
+            this.snapshot = snapshot;
+        }
+    }
+}
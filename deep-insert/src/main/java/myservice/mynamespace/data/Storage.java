@@ -18,15 +18,16 @@
  */
 package myservice.mynamespace.data;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
-import org.apache.olingo.commons.api.Constants;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.EntityIterator;
 import org.apache.olingo.commons.api.data.Link;
 import org.apache.olingo.commons.api.data.Property;
 import org.apache.olingo.commons.api.data.ValueType;
@@ -48,6 +49,10 @@ import org.apache.olingo.server.api.uri.UriResourceNavigation;
 import myservice.mynamespace.service.DemoEdmProvider;
 import myservice.mynamespace.util.Util;
 
+/**
+ * If the storage is created with a data directory, the committed entities are written to an
+ * EntityLog in the directory and a new storage for the same directory recovers them.
+ */
 public class Storage {
 
     private OData odata;
@@ -55,16 +60,59 @@ public class Storage {
     
     final private TransactionalEntityManager manager;
     
+    // null if the entities are only kept in memory
+    final private EntityLog log;
+    
+    // how often a modification is tried if other clients change the same entity at the same time
+    private static final int MAX_ATTEMPTS = 3;
+    
     public Storage(final OData odata, final Edm edm) {
         
         this.odata = odata;
         this.edm = edm;
-        this.manager = new TransactionalEntityManager(edm);
+        this.manager = new TransactionalEntityManager();
+        this.log = null;
         
         initProductSampleData();
         initCategorySampleData();
         linkProductsAndCategories();
     }
+    
+    /**
+     * Recovers the entities from the data directory, a new directory starts with the sample data
+     * 
+     * @param checkpointLogSize the size of the log after which a snapshot of the entities is written
+     */
+    public Storage(final OData odata, final Edm edm, final File directory, final long checkpointLogSize) 
+            throws IOException {
+        
+        this.odata = odata;
+        this.edm = edm;
+        this.manager = new TransactionalEntityManager();
+        this.log = new EntityLog(directory, checkpointLogSize);
+        
+        try {
+            if (!log.recover(manager)) {
+                initProductSampleData();
+                initCategorySampleData();
+                linkProductsAndCategories();
+                log.checkpoint(manager);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+        manager.setLog(log);
+    }
+    
+    /**
+     * Closes the log, if any. Commits after close fail.
+     */
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
 
     /* PUBLIC FACADE */
     
@@ -90,6 +138,21 @@ public class Storage {
 
         return null;
     }
+    
+    /**
+     * Returns the entities of the entity set one by one, so the response can be written while
+     * the entities are read instead of collecting all of them first
+     */
+    public EntityIterator readEntitySetIterator(EdmEntitySet edmEntitySet) throws ODataApplicationException {
+
+        if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
+            return new EntityListIterator(manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME));
+        } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
+            return new EntityListIterator(manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME));
+        }
+
+        return null;
+    }
 
     public Entity readEntityData(EdmEntitySet edmEntitySet, List<UriParameter> keyParams)
             throws ODataApplicationException {
@@ -97,9 +160,9 @@ public class Storage {
         EdmEntityType edmEntityType = edmEntitySet.getEntityType();
 
         if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
-            return getEntity(edmEntityType, keyParams, manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME));
+            return getEntity(edmEntityType, keyParams, DemoEdmProvider.ES_PRODUCTS_NAME);
         } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
-            return getEntity(edmEntityType, keyParams, manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME));
+            return getEntity(edmEntityType, keyParams, DemoEdmProvider.ES_CATEGORIES_NAME);
         }
 
         return null;
@@ -112,10 +175,10 @@ public class Storage {
 
         if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
             return createEntity(edmEntitySet, edmEntityType, entityToCreate, 
-                    manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME), rawServiceUri);
+                    DemoEdmProvider.ES_PRODUCTS_NAME, rawServiceUri);
         } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
             return createEntity(edmEntitySet, edmEntityType, entityToCreate, 
-                    manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME), rawServiceUri);
+                    DemoEdmProvider.ES_CATEGORIES_NAME, rawServiceUri);
         }
 
         return null;
@@ -123,30 +186,61 @@ public class Storage {
 
     /**
      * This method is invoked for PATCH or PUT requests
+     * 
+     * @param condition checked against the entity within the transaction, or null
      * */
     public void updateEntityData(EdmEntitySet edmEntitySet, List<UriParameter> keyParams, Entity updateEntity,
-            HttpMethod httpMethod) throws ODataApplicationException {
+            HttpMethod httpMethod, EntityCondition condition) throws ODataApplicationException {
 
         EdmEntityType edmEntityType = edmEntitySet.getEntityType();
 
-        if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
-            updateEntity(edmEntityType, keyParams, updateEntity, httpMethod, 
-                    manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME));
-        } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
-            updateEntity(edmEntityType, keyParams, updateEntity, httpMethod, 
-                    manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME));
+        // the storage is shared by all clients, so modifications run in a transaction. If another
+        // client changed the entity in the meantime, the modification is tried again.
+        for (int attempt = 1; ; attempt++) {
+            manager.beginTransaction();
+            try {
+                if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
+                    updateEntity(edmEntityType, keyParams, updateEntity, httpMethod, 
+                            DemoEdmProvider.ES_PRODUCTS_NAME, condition);
+                } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
+                    updateEntity(edmEntityType, keyParams, updateEntity, httpMethod, 
+                            DemoEdmProvider.ES_CATEGORIES_NAME, condition);
+                }
+                manager.commitTransaction();
+                return;
+            } catch (ODataApplicationException | RuntimeException e) {
+                manager.rollbackTransaction();
+                if (!isConflict(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
         }
     }
 
-    public void deleteEntityData(EdmEntitySet edmEntitySet, List<UriParameter> keyParams)
-            throws ODataApplicationException {
+    /**
+     * @param condition checked against the entity within the transaction, or null
+     */
+    public void deleteEntityData(EdmEntitySet edmEntitySet, List<UriParameter> keyParams, 
+            EntityCondition condition) throws ODataApplicationException {
 
         EdmEntityType edmEntityType = edmEntitySet.getEntityType();
 
-        if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
-            deleteEntity(edmEntityType, keyParams, manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME));
-        } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
-            deleteEntity(edmEntityType, keyParams, manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME));
+        for (int attempt = 1; ; attempt++) {
+            manager.beginTransaction();
+            try {
+                if (edmEntitySet.getName().equals(DemoEdmProvider.ES_PRODUCTS_NAME)) {
+                    deleteEntity(edmEntityType, keyParams, DemoEdmProvider.ES_PRODUCTS_NAME, condition);
+                } else if(edmEntitySet.getName().equals(DemoEdmProvider.ES_CATEGORIES_NAME)) {
+                    deleteEntity(edmEntityType, keyParams, DemoEdmProvider.ES_CATEGORIES_NAME, condition);
+                }
+                manager.commitTransaction();
+                return;
+            } catch (ODataApplicationException | RuntimeException e) {
+                manager.rollbackTransaction();
+                if (!isConflict(e) || attempt == MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
         }
     }
     
@@ -180,14 +274,20 @@ public class Storage {
         return retEntitySet;
     }
     
-    private Entity getEntity(EdmEntityType edmEntityType, List<UriParameter> keyParams, List<Entity> entityList) 
+    private Entity getEntity(EdmEntityType edmEntityType, List<UriParameter> keyParams, String entitySetName) 
             throws ODataApplicationException {
         
-        // the list of entities at runtime
-        EntityCollection entitySet = getEntityCollection(entityList);
+        Entity requestedEntity;
+        if (Util.isInt32Key(edmEntityType, keyParams)) {
+            // the common case, e.g. Products(3): look the ID up in the primary key index
+            requestedEntity = manager.getEntity(entitySetName, Util.getInt32Key(keyParams));
+        } else {
+            // the list of entities at runtime
+            EntityCollection entitySet = getEntityCollection(manager.getEntityCollection(entitySetName));
 
-        /* generic approach to find the requested entity */
-        Entity requestedEntity = Util.findEntity(edmEntityType, entitySet, keyParams);
+            /* generic approach to find the requested entity */
+            requestedEntity = Util.findEntity(edmEntityType, entitySet, keyParams);
+        }
 
         if (requestedEntity == null) {
             // this variable is null if our data doesn't contain an entity for the requested key
@@ -200,17 +300,14 @@ public class Storage {
     }
     
     private Entity createEntity(EdmEntitySet edmEntitySet, EdmEntityType edmEntityType, Entity entity, 
-            List<Entity> entityList, final String rawServiceUri) throws ODataApplicationException {
+            String entitySetName, final String rawServiceUri) throws ODataApplicationException {
         
         // 1.) Create the entity
         final Entity newEntity = new Entity();
         newEntity.setType(entity.getType());
         
         // Create the new key of the entity
-        int newId = 1;
-        while (entityIdExists(newId, entityList)) {
-            newId++;
-        }
+        int newId = manager.getNextId(entitySetName);
         
         // Add all provided properties
         newEntity.getProperties().addAll(entity.getProperties());
@@ -227,11 +324,13 @@ public class Storage {
             if(edmNavigationProperty.isCollection() && link.getBindingLinks() != null) {
                 for(final String bindingLink : link.getBindingLinks()) {
                     final Entity relatedEntity = readEntityByBindingLink(bindingLink, targetEntitySet, rawServiceUri);
-                    createLink(edmNavigationProperty, newEntity, relatedEntity);
+                    createLink(edmNavigationProperty, entitySetName, newEntity, targetEntitySet.getName(), 
+                            relatedEntity);
                 }
             } else if(!edmNavigationProperty.isCollection() && link.getBindingLink() != null) {
                 final Entity relatedEntity = readEntityByBindingLink(link.getBindingLink(), targetEntitySet, rawServiceUri);
-                createLink(edmNavigationProperty, newEntity, relatedEntity);
+                createLink(edmNavigationProperty, entitySetName, newEntity, targetEntitySet.getName(), 
+                        relatedEntity);
             }
         }
         
@@ -243,15 +342,17 @@ public class Storage {
             if(edmNavigationProperty.isCollection() && link.getInlineEntitySet() != null) {
                 for(final Entity nestedEntity : link.getInlineEntitySet().getEntities()) {
                     final Entity newNestedEntity = createEntityData(targetEntitySet, nestedEntity, rawServiceUri);
-                    createLink(edmNavigationProperty, newEntity, newNestedEntity);
+                    createLink(edmNavigationProperty, entitySetName, newEntity, targetEntitySet.getName(), 
+                            newNestedEntity);
                 }
             } else if(!edmNavigationProperty.isCollection() && link.getInlineEntity() != null){
                 final Entity newNestedEntity = createEntityData(targetEntitySet, link.getInlineEntity(), rawServiceUri);
-                createLink(edmNavigationProperty, newEntity, newNestedEntity);
+                createLink(edmNavigationProperty, entitySetName, newEntity, targetEntitySet.getName(), 
+                        newNestedEntity);
             }
         }
         
-        entityList.add(newEntity);
+        manager.addEntity(entitySetName, newEntity);
     
         return newEntity;
     }
@@ -276,25 +377,17 @@ public class Storage {
         return readEntityData(entitySetResource.getEntitySet(), entitySetResource.getKeyPredicates());
     }
 
-    private boolean entityIdExists(int id, List<Entity> entityList) {
-
-        for (Entity entity : entityList) {
-            Integer existingID = (Integer) entity.getProperty("ID").getValue();
-            if (existingID.intValue() == id) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-    
     private void updateEntity(EdmEntityType edmEntityType, List<UriParameter> keyParams, Entity updateEntity,
-            HttpMethod httpMethod, List<Entity> entityList) throws ODataApplicationException {
+            HttpMethod httpMethod, String entitySetName, EntityCondition condition) throws ODataApplicationException {
         
-        Entity entity = getEntity(edmEntityType, keyParams, entityList);
+        Entity entity = getEntity(edmEntityType, keyParams, entitySetName);
         if (entity == null) {
             throw new ODataApplicationException("Entity not found", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
+        // the commit fails if the entity is changed after this check, the update is tried again then
+        if (condition != null) {
+            condition.check(entity);
+        }
 
         // loop over all properties and replace the values with the values of the given payload
         // Note: ignoring ComplexType, as we don't have it in our odata model
@@ -317,29 +410,37 @@ public class Storage {
                     continue; // do nothing
                 } else if (httpMethod.equals(HttpMethod.PUT)) {
                     // as of the OData spec, in case of PUT, the existing property is set to null (or to default value)
-                    existingProp.setValue(existingProp.getValueType(), null);
+                    manager.setPropertyValue(entitySetName, entity, existingProp, null);
                     continue;
                 }
             }
 
             // change the value of the properties
-            existingProp.setValue(existingProp.getValueType(), updateProperty.getValue());
+            manager.setPropertyValue(entitySetName, entity, existingProp, updateProperty.getValue());
         }
     }
     
-    private void deleteEntity(EdmEntityType edmEntityType, List<UriParameter> keyParams, List<Entity> entityList) 
-            throws ODataApplicationException {
+    private void deleteEntity(EdmEntityType edmEntityType, List<UriParameter> keyParams, String entitySetName,
+            EntityCondition condition) throws ODataApplicationException {
         
-        Entity entity = getEntity(edmEntityType, keyParams, entityList);
+        Entity entity = getEntity(edmEntityType, keyParams, entitySetName);
         if (entity == null) {
             throw new ODataApplicationException("Entity not found", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
+        if (condition != null) {
+            condition.check(entity);
+        }
 
-        entityList.remove(entity);
+        manager.removeEntity(entitySetName, entity);
     }
     
     /* HELPER */
 
+    private boolean isConflict(Exception e) {
+        return e instanceof ODataApplicationException 
+                && ((ODataApplicationException) e).getStatusCode() == HttpStatusCode.CONFLICT.getStatusCode();
+    }
+
     private boolean isKey(EdmEntityType edmEntityType, String propertyName) {
         
         List<EdmKeyPropertyRef> keyPropertyRefs = edmEntityType.getKeyPropertyRefs();
@@ -354,7 +455,6 @@ public class Storage {
 
     private void initProductSampleData() {
         
-        final List<Entity> productList = manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME);
         Entity entity = new Entity();
 
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 0));
@@ -363,7 +463,7 @@ public class Storage {
                 "Notebook Basic, 1.7GHz - 15 XGA - 1024MB DDR2 SDRAM - 40GB"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 1));
@@ -372,7 +472,7 @@ public class Storage {
                 "Notebook Professional, 2.8GHz - 15 XGA - 8GB DDR3 RAM - 500GB"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
@@ -381,7 +481,7 @@ public class Storage {
                 "Ultrafast 3G UMTS/HSDPA Pocket PC, supports GSM network"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 3));
@@ -390,7 +490,7 @@ public class Storage {
                 "32 GB Digital Assitant with high-resolution color screen"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 4));
@@ -399,7 +499,7 @@ public class Storage {
                 "19 Optimum Resolution 1024 x 768 @ 85Hz, resolution 1280 x 960"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 5));
@@ -408,49 +508,50 @@ public class Storage {
                 "Optimum Hi-Resolution max. 1600 x 1200 @ 85Hz, Dot Pitch: 0.24mm"));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_PRODUCTS_NAME, entity);
     }
 
     private void initCategorySampleData() {
-        final List<Entity> categoryList = manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME);
-        
         Entity entity = new Entity();
 
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 0));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebooks"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_CATEGORIES_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 1));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Organizers"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_CATEGORIES_NAME, entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Monitors"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        manager.addEntity(DemoEdmProvider.ES_CATEGORIES_NAME, entity);
     }
     
     private void linkProductsAndCategories() {
         final List<Entity> productList = manager.getEntityCollection(DemoEdmProvider.ES_PRODUCTS_NAME);
         final List<Entity> categoryList = manager.getEntityCollection(DemoEdmProvider.ES_CATEGORIES_NAME);
         
-        setLink(productList.get(0), "Category", categoryList.get(0));
-        setLink(productList.get(1), "Category", categoryList.get(0));
-        setLink(productList.get(2), "Category", categoryList.get(1));
-        setLink(productList.get(3), "Category", categoryList.get(1));
-        setLink(productList.get(4), "Category", categoryList.get(2));
-        setLink(productList.get(5), "Category", categoryList.get(2));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(0), "Category", categoryList.get(0));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(1), "Category", categoryList.get(0));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(2), "Category", categoryList.get(1));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(3), "Category", categoryList.get(1));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(4), "Category", categoryList.get(2));
+        manager.setLink(DemoEdmProvider.ES_PRODUCTS_NAME, productList.get(5), "Category", categoryList.get(2));
         
-        setLinks(categoryList.get(0), "Products", productList.subList(0, 2).toArray(new Entity[0]));
-        setLinks(categoryList.get(1), "Products", productList.subList(2, 4).toArray(new Entity[0]));
-        setLinks(categoryList.get(2), "Products", productList.subList(4, 6).toArray(new Entity[0]));
+        manager.addLinks(DemoEdmProvider.ES_CATEGORIES_NAME, categoryList.get(0), "Products", 
+                productList.subList(0, 2).toArray(new Entity[0]));
+        manager.addLinks(DemoEdmProvider.ES_CATEGORIES_NAME, categoryList.get(1), "Products", 
+                productList.subList(2, 4).toArray(new Entity[0]));
+        manager.addLinks(DemoEdmProvider.ES_CATEGORIES_NAME, categoryList.get(2), "Products", 
+                productList.subList(4, 6).toArray(new Entity[0]));
     }
     
     private URI createId(Entity entity, String idPropertyName) {
@@ -480,55 +581,22 @@ public class Storage {
         return entity.getType();
     }
     
-    private void createLink(final EdmNavigationProperty navigationProperty, final Entity srcEntity,
-            final Entity destEntity) {
-        setLink(navigationProperty, srcEntity, destEntity);
+    private void createLink(final EdmNavigationProperty navigationProperty, final String srcEntitySetName,
+            final Entity srcEntity, final String destEntitySetName, final Entity destEntity) {
+        setLink(navigationProperty, srcEntitySetName, srcEntity, destEntity);
 
         final EdmNavigationProperty partnerNavigationProperty = navigationProperty.getPartner();
         if (partnerNavigationProperty != null) {
-            setLink(partnerNavigationProperty, destEntity, srcEntity);
+            setLink(partnerNavigationProperty, destEntitySetName, destEntity, srcEntity);
         }
     }
     
-    private void setLink(final EdmNavigationProperty navigationProperty, final Entity srcEntity,
-            final Entity targetEntity) {
+    private void setLink(final EdmNavigationProperty navigationProperty, final String entitySetName,
+            final Entity srcEntity, final Entity targetEntity) {
         if (navigationProperty.isCollection()) {
-            setLinks(srcEntity, navigationProperty.getName(), targetEntity);
-        } else {
-            setLink(srcEntity, navigationProperty.getName(), targetEntity);
-        }
-    }
-    
-    private void setLink(final Entity entity, final String navigationPropertyName, final Entity target) {
-        Link link = entity.getNavigationLink(navigationPropertyName);
-        if (link == null) {
-            link = new Link();
-            link.setRel(Constants.NS_NAVIGATION_LINK_REL + navigationPropertyName);
-            link.setType(Constants.ENTITY_NAVIGATION_LINK_TYPE);
-            link.setTitle(navigationPropertyName);
-            link.setHref(target.getId().toASCIIString());
-            
-            entity.getNavigationLinks().add(link);
-        }
-        link.setInlineEntity(target);
-    }
-
-    private void setLinks(final Entity entity, final String navigationPropertyName, final Entity... targets) {
-        Link link = entity.getNavigationLink(navigationPropertyName);
-        if (link == null) {
-            link = new Link();
-            link.setRel(Constants.NS_NAVIGATION_LINK_REL + navigationPropertyName);
-            link.setType(Constants.ENTITY_SET_NAVIGATION_LINK_TYPE);
-            link.setTitle(navigationPropertyName);
-            link.setHref(entity.getId().toASCIIString() + "/" + navigationPropertyName);
-
-            EntityCollection target = new EntityCollection();
-            target.getEntities().addAll(Arrays.asList(targets));
-            link.setInlineEntitySet(target);
-            
-            entity.getNavigationLinks().add(link);
+            manager.addLinks(entitySetName, srcEntity, navigationProperty.getName(), targetEntity);
         } else {
-            link.getInlineEntitySet().getEntities().addAll(Arrays.asList(targets));
+            manager.setLink(entitySetName, srcEntity, navigationProperty.getName(), targetEntity);
         }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package myservice.mynamespace.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The write set of a transaction of the TransactionalEntityManager.
+ *
+ * New entities stay in the transaction until the commit, so the transaction can change them
+ * directly. Changes of entities which are already committed are recorded and applied at commit
+ * time. The transaction remembers the version of every committed entity it read or changed, the
+ * commit fails if another client changed one of them in between.
+ */
+class Transaction {
+
+    // entidades creadas por la transaccin, por entitySetName
+    private final Map<String, Map<Integer, Entity>> createdEntities = new LinkedHashMap<>();
+    private final Set<Entity> created = Collections.newSetFromMap(new IdentityHashMap<Entity, Boolean>());
+    private final Set<Entity> removed = Collections.newSetFromMap(new IdentityHashMap<Entity, Boolean>());
+    // entidades confirmadas que la transaccin ley o modific
+    private final Map<Entity, Access> accessed = new IdentityHashMap<>();
+    private final List<Change> changes = new ArrayList<>();
+
+    void create(final String entitySetName, final Entity entity) {
+        Map<Integer, Entity> entityMap = createdEntities.get(entitySetName);
+        if (entityMap == null) {
+            entityMap = new LinkedHashMap<>();
+            createdEntities.put(entitySetName, entityMap);
+        }
+        entityMap.put(TransactionalEntityManager.getId(entity), entity);
+        created.add(entity);
+    }
+
+    /**
+     * Returns true if the entity was created by the transaction and isn't visible to other clients yet
+     */
+    boolean isCreated(final Entity entity) {
+        return created.contains(entity);
+    }
+
+    boolean isRemoved(final Entity entity) {
+        return removed.contains(entity);
+    }
+
+    Entity getCreatedEntity(final String entitySetName, final int id) {
+        Map<Integer, Entity> entityMap = createdEntities.get(entitySetName);
+        return entityMap == null ? null : entityMap.get(id);
+    }
+
+    void removeCreated(final String entitySetName, final Entity entity) {
+        createdEntities.get(entitySetName).remove(TransactionalEntityManager.getId(entity));
+        created.remove(entity);
+    }
+
+    /**
+     * Returns the new entities by entity set, in the order in which they were created
+     */
+    Map<String, Map<Integer, Entity>> getCreatedEntities() {
+        return createdEntities;
+    }
+
+    /**
+     * Remembers the version of a committed entity the first time the transaction reads it
+     */
+    Access access(final String entitySetName, final Entity entity, final long version) {
+        Access access = accessed.get(entity);
+        if (access == null) {
+            access = new Access(entitySetName, entity, version);
+            accessed.put(entity, access);
+        }
+        return access;
+    }
+
+    Iterable<Access> getAccessed() {
+        return accessed.values();
+    }
+
+    /**
+     * Records a change of a committed entity, which is applied at commit time
+     */
+    void change(final Change change) {
+        changes.add(change);
+    }
+
+    void remove(final Entity entity) {
+        removed.add(entity);
+    }
+
+    List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * A committed entity the transaction depends on
+     */
+    static class Access {
+
+        final String entitySetName;
+        final Entity entity;
+        final long version;
+        // the commit requires the same version, not only the same entity
+        boolean versionRequired;
+        // the transaction changed the entity, the commit increments its version
+        boolean changed;
+        // the transaction changed the navigation links of the entity
+        boolean linked;
+
+        Access(final String entitySetName, final Entity entity, final long version) {
+            this.entitySetName = entitySetName;
+            this.entity = entity;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A change of a committed entity
+     */
+    abstract static class Change {
+
+        abstract void apply();
+    }
+}
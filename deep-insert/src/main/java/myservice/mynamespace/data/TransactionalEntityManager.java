@@ -19,186 +19,470 @@
 package myservice.mynamespace.data;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.olingo.commons.api.Constants;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
 import org.apache.olingo.commons.api.data.Link;
-import org.apache.olingo.commons.api.edm.Edm;
-import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.data.Property;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.ODataApplicationException;
 
+import myservice.mynamespace.data.Transaction.Access;
+import myservice.mynamespace.data.Transaction.Change;
+
+/**
+ * The manager can be shared by all clients. Readers work on concurrent collections and never
+ * block, the transactions of different clients run at the same time.
+ *
+ * A transaction belongs to the thread which began it and collects its changes in a write set of
+ * its own, other clients see them only after the commit. The concurrency control is optimistic:
+ * the transaction remembers the version of each committed entity it reads, and the commit checks
+ * that none of them was deleted or, if the transaction changed its properties or deletes it,
+ * changed by another client in the meantime. Only the validation and applying the write set are
+ * serialized, beginning a transaction and rolling it back costs constant time.
+ *
+ * All changes of the entities, their properties and their navigation links therefore go
+ * through the manager.
+ *
+ * The entity sets are copy on write lists, and a commit which adds targets to a collection-valued
+ * navigation property replaces its entity collection by a copy, so readers iterate a snapshot.
+ *
+ * The committed entities carry their version as weak ETag. The ETag is set after the changes of
+ * a commit have been applied, so a reader may see new values with the old ETag, but never the
+ * other way round.
+ *
+ * With an EntityLog the commit appends the entities it created, changed or linked and the IDs
+ * of the entities it deleted to the log while the commit lock is held, and returns when they are
+ * on the disk. The commits of several clients which wait for the disk at the same time are
+ * written together. Other clients may see the changes of a commit before they are on the disk.
+ */
 public class TransactionalEntityManager {
     
-    // entidades actuales por entitySetName
-    private Map<String, List<Entity>> entities = new HashMap<>();
+    // entidades confirmadas por entitySetName
+    private final Map<String, List<Entity>> entities = new ConcurrentHashMap<>();
     
-    // backup luego de iniciar una transaccin
-    private Map<String, List<Entity>> backupEntities = new HashMap<>();
+    // ndice de clave primaria por entitySetName
+    private final Map<String, EntityIndex> indexes = new ConcurrentHashMap<>();
     
-    // mapa con las entidades ya copiadas
-    private Map<String, IdentityHashMap<Entity, Entity>> copyMap = new HashMap<>();
+    // transaccin en curso del hilo actual
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
     
-    private boolean isInTransaction = false;
+    // held while a transaction is validated and its changes are applied
+    private final ReentrantLock commitLock = new ReentrantLock();
     
-    private Edm edm;
+    // null if the entities are only kept in memory
+    private volatile EntityLog log;
     
-    public TransactionalEntityManager(final Edm edm) {
-        this.edm = edm;
+    /**
+     * Lets the manager write all modifications to the log from now on
+     */
+    void setLog(final EntityLog log) {
+        this.log = log;
     }
 
+    /**
+     * Returns the committed entities of the entity set
+     */
     public List<Entity> getEntityCollection(final String entitySetName) {
-        if (!entities.containsKey(entitySetName)) {
-            entities.put(entitySetName, new ArrayList<>());
+        List<Entity> entityList = entities.get(entitySetName);
+        if (entityList == null) {
+            entityList = new CopyOnWriteArrayList<>();
+            List<Entity> existingList = entities.putIfAbsent(entitySetName, entityList);
+            if (existingList != null) {
+                entityList = existingList;
+            }
         }
         
-        return entities.get(entitySetName);
+        return entityList;
     }
     
-    public void beginTransaction() throws ODataApplicationException {
-        if (!isInTransaction) {
-            isInTransaction = true;
-            copyCurrentState();
+    /**
+     * Looks the entity up in the primary key index of the entity set. Within a transaction the
+     * entities it created are found as well, and the entities it deleted are not.
+     */
+    public Entity getEntity(final String entitySetName, final int id) {
+        final Transaction tx = transaction.get();
+        if (tx != null) {
+            Entity entity = tx.getCreatedEntity(entitySetName, id);
+            if (entity != null) {
+                return entity;
+            }
+        }
+        
+        EntityIndex index = indexes.get(entitySetName);
+        if (index == null) {
+            return null;
+        }
+        // the version is read first: if a commit changes the entity in between, the validation
+        // fails instead of accepting changes based on an outdated entity
+        long version = index.getVersion(id);
+        Entity entity = index.get(id);
+        if (tx != null && entity != null) {
+            if (tx.isRemoved(entity)) {
+                return null;
+            }
+            tx.access(entitySetName, entity, version);
+        }
+        return entity;
+    }
+    
+    /**
+     * Hands out the ID for a new entity of the entity set. The IDs are handed out in ascending
+     * order and are never reused, not even the IDs of the entities of a rolled back transaction.
+     */
+    public int getNextId(final String entitySetName) {
+        return getIndex(entitySetName).nextId();
+    }
+    
+    public void addEntity(final String entitySetName, final Entity entity) {
+        final Transaction tx = transaction.get();
+        if (tx == null) {
+            publish(entitySetName, entity);
+            log(entitySetName, entity, false);
         } else {
-            throw new ODataApplicationException("Transaction already in progress", 
-                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+            tx.create(entitySetName, entity);
         }
     }
     
-    public void rollbackTransaction() throws ODataApplicationException {
-        if(isInTransaction) {
-            entities = backupEntities;
-            backupEntities = new HashMap<String, List<Entity>>();
-            isInTransaction = false;
+    public void removeEntity(final String entitySetName, final Entity entity) {
+        final Transaction tx = transaction.get();
+        if (tx == null) {
+            unpublish(entitySetName, entity);
+            log(entitySetName, entity, true);
+        } else if (tx.isCreated(entity)) {
+            tx.removeCreated(entitySetName, entity);
         } else {
-            throw new ODataApplicationException("No transaction in progress", 
-                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+            access(tx, entitySetName, entity).versionRequired = true;
+            tx.remove(entity);
+            tx.change(new Change() {
+                @Override
+                void apply() {
+                    unpublish(entitySetName, entity);
+                }
+            });
         }
     }
     
-    public void commitTransaction() throws ODataApplicationException {
-        if(isInTransaction) {
-            backupEntities.clear();
-            isInTransaction = false;
+    /**
+     * Changes the value of a property of a stored entity
+     */
+    public void setPropertyValue(final String entitySetName, final Entity entity, final Property property,
+            final Object value) {
+        final Transaction tx = transaction.get();
+        if (tx == null || tx.isCreated(entity)) {
+            property.setValue(property.getValueType(), value);
+            if (tx == null) {
+                log(entitySetName, entity, false);
+            }
         } else {
-            throw new ODataApplicationException("No transaction in progress", 
-                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+            final Access access = access(tx, entitySetName, entity);
+            access.versionRequired = true;
+            access.changed = true;
+            tx.change(new Change() {
+                @Override
+                void apply() {
+                    property.setValue(property.getValueType(), value);
+                }
+            });
         }
     }
     
-    private void copyCurrentState() {
-        // comienza creacin de backup
-        // limpia mapas de copias de entities y backup
-        copyMap.clear();
-        backupEntities.clear();
-        
-        for (Entry<String, List<Entity>> entry : entities.entrySet()) {
-            String entitySetName = entry.getKey();
-            List<Entity> srcEntities = entry.getValue();
-            List<Entity> bkEntities = new ArrayList<>();
-            for (Entity srcEntity : srcEntities) {
-                Entity bkEntity = copyEntityRecursively(entitySetName, srcEntity);
-                bkEntities.add(bkEntity);
+    /**
+     * Sets the target of a single-valued navigation property. Links don't change the version of
+     * an entity, so transactions linking new entities to the same entity don't conflict.
+     */
+    public void setLink(final String entitySetName, final Entity entity, final String navigationPropertyName,
+            final Entity target) {
+        final Transaction tx = transaction.get();
+        if (tx == null || isUncommitted(tx, entitySetName, entity)) {
+            applyLink(entity, navigationPropertyName, target);
+            if (tx == null) {
+                log(entitySetName, entity, false);
             }
-            backupEntities.put(entitySetName, bkEntities);
+        } else {
+            access(tx, entitySetName, entity).linked = true;
+            tx.change(new Change() {
+                @Override
+                void apply() {
+                    applyLink(entity, navigationPropertyName, target);
+                }
+            });
         }
     }
     
-    private Entity copyEntityRecursively(String edmEntitySet, Entity srcEntity) {
-        // Check if entity is already copied
-        if (containsEntityInCopyMap(edmEntitySet, srcEntity)) {
-            return getEntityFromCopyMap(edmEntitySet, srcEntity);
+    /**
+     * Adds targets to a collection-valued navigation property
+     */
+    public void addLinks(final String entitySetName, final Entity entity, final String navigationPropertyName,
+            final Entity... targets) {
+        final Transaction tx = transaction.get();
+        if (tx == null || isUncommitted(tx, entitySetName, entity)) {
+            applyLinks(entity, navigationPropertyName, targets);
+            if (tx == null) {
+                log(entitySetName, entity, false);
+            }
         } else {
-            final Entity newEntity = copyEntity(srcEntity);
-            addEntityToCopyMap(edmEntitySet, srcEntity, newEntity);
-            
-            // Create nested entities recursively
-            for(final Link link : srcEntity.getNavigationLinks()) {
-                newEntity.getNavigationLinks().add(copyLink(edmEntitySet, link));
+            access(tx, entitySetName, entity).linked = true;
+            tx.change(new Change() {
+                @Override
+                void apply() {
+                    applyLinks(entity, navigationPropertyName, targets);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Returns true if the entity isn't visible to other clients, because the transaction created
+     * it or is still creating it: a deep insert links the new entity before it adds it
+     */
+    private boolean isUncommitted(final Transaction tx, final String entitySetName, final Entity entity) {
+        return tx.isCreated(entity) || getIndex(entitySetName).get(getId(entity)) != entity;
+    }
+    
+    private Access access(final Transaction tx, final String entitySetName, final Entity entity) {
+        return tx.access(entitySetName, entity, getIndex(entitySetName).getVersion(getId(entity)));
+    }
+    
+    private void publish(final String entitySetName, final Entity entity) {
+        final EntityIndex index = getIndex(entitySetName);
+        final int id = getId(entity);
+        getEntityCollection(entitySetName).add(entity);
+        index.put(id, entity);
+        entity.setETag(toETag(index.getVersion(id)));
+    }
+    
+    private static String toETag(final long version) {
+        return "W/\"" + version + "\"";
+    }
+    
+    private void unpublish(final String entitySetName, final Entity entity) {
+        getEntityCollection(entitySetName).remove(entity);
+        getIndex(entitySetName).remove(getId(entity));
+    }
+    
+    /**
+     * Writes a modification outside a transaction to the log, if there is one. The entity has
+     * been modified already.
+     */
+    private void log(final String entitySetName, final Entity entity, final boolean removed) {
+        final EntityLog log = this.log;
+        if (log == null) {
+            return;
+        }
+        final EntityLog.Record record = log.newRecord();
+        final long number;
+        commitLock.lock();
+        try {
+            if (removed) {
+                record.remove(entitySetName, getId(entity));
+            } else {
+                record.put(entitySetName, entity, getVersion(entitySetName, entity));
             }
+            number = log.append(record);
+        } finally {
+            commitLock.unlock();
+        }
+        log.sync(number);
+    }
+    
+    /**
+     * Publishes an entity recovered from the log with the version it had before
+     */
+    void restore(final String entitySetName, final Entity entity, final long version) {
+        publish(entitySetName, entity);
+        getIndex(entitySetName).setVersion(getId(entity), version);
+        entity.setETag(toETag(version));
+    }
+    
+    /**
+     * Makes sure the IDs below nextId are not handed out again
+     */
+    void reserveIds(final String entitySetName, final int nextId) {
+        getIndex(entitySetName).reserveIds(nextId);
+    }
+    
+    /**
+     * Returns the ID which getNextId hands out next for the entity set
+     */
+    int getReservedIds(final String entitySetName) {
+        return getIndex(entitySetName).getNextId();
+    }
+    
+    long getVersion(final String entitySetName, final Entity entity) {
+        return getIndex(entitySetName).getVersion(getId(entity));
+    }
+    
+    List<String> getEntitySetNames() {
+        return new ArrayList<>(entities.keySet());
+    }
+    
+    static void applyLink(final Entity entity, final String navigationPropertyName, final Entity target) {
+        Link link = entity.getNavigationLink(navigationPropertyName);
+        if (link == null) {
+            link = new Link();
+            link.setRel(Constants.NS_NAVIGATION_LINK_REL + navigationPropertyName);
+            link.setType(Constants.ENTITY_NAVIGATION_LINK_TYPE);
+            link.setTitle(navigationPropertyName);
+            link.setHref(target.getId().toASCIIString());
             
-            return newEntity;
+            entity.getNavigationLinks().add(link);
         }
+        link.setInlineEntity(target);
     }
-
-    private Link copyLink(String entitySetName, final Link link) {
-        final Link newLink = new Link();
-        newLink.setBindingLink(link.getBindingLink());
-        newLink.setBindingLinks(new ArrayList<String>(link.getBindingLinks()));
-        newLink.setHref(link.getHref());
-        newLink.setMediaETag(link.getMediaETag());
-        newLink.setRel(link.getRel());
-        newLink.setTitle(link.getTitle());
-        newLink.setType(link.getType());
-        
-        EdmEntitySet entitySet = edm.getEntityContainer().getEntitySet(entitySetName);
-        
-        // Single navigation link
-        if(link.getInlineEntity() != null) {
-            final EdmEntitySet linkedEdmEntitySet = (EdmEntitySet) entitySet.getRelatedBindingTarget(link.getTitle());
-            newLink.setInlineEntity(copyEntityRecursively(linkedEdmEntitySet.getName(), link.getInlineEntity()));
-        }            
-        
-        // Collection navigation link
-        if(link.getInlineEntitySet() != null) {
-            final EdmEntitySet linkedEdmEntitySet = (EdmEntitySet) entitySet.getRelatedBindingTarget(link.getTitle());
-            final EntityCollection inlineEntitySet = link.getInlineEntitySet();
-            final EntityCollection newInlineEntitySet = new EntityCollection();
-            newInlineEntitySet.setBaseURI(inlineEntitySet.getBaseURI());
-            newInlineEntitySet.setCount(inlineEntitySet.getCount());
-            newInlineEntitySet.setDeltaLink(inlineEntitySet.getDeltaLink());
-            newInlineEntitySet.setId(inlineEntitySet.getId());
-            newInlineEntitySet.setNext(inlineEntitySet.getNext());
+    
+    static void applyLinks(final Entity entity, final String navigationPropertyName, 
+            final Entity... targets) {
+        Link link = entity.getNavigationLink(navigationPropertyName);
+        if (link == null) {
+            link = new Link();
+            link.setRel(Constants.NS_NAVIGATION_LINK_REL + navigationPropertyName);
+            link.setType(Constants.ENTITY_SET_NAVIGATION_LINK_TYPE);
+            link.setTitle(navigationPropertyName);
+            link.setHref(entity.getId().toASCIIString() + "/" + navigationPropertyName);
             
-            for(final Entity inlineEntity : inlineEntitySet.getEntities()) {
-                newInlineEntitySet.getEntities().add(copyEntityRecursively(linkedEdmEntitySet.getName(), inlineEntity));
-            }
+            EntityCollection target = new EntityCollection();
+            target.getEntities().addAll(Arrays.asList(targets));
+            link.setInlineEntitySet(target);
             
-            newLink.setInlineEntitySet(newInlineEntitySet);
+            entity.getNavigationLinks().add(link);
+        } else {
+            // readers iterate the collection without a lock, so it is replaced instead of changed
+            EntityCollection target = new EntityCollection();
+            target.getEntities().addAll(link.getInlineEntitySet().getEntities());
+            target.getEntities().addAll(Arrays.asList(targets));
+            link.setInlineEntitySet(target);
         }
-        
-        return newLink;
     }
-
-    private Entity copyEntity(final Entity entity) {
-        final Entity newEntity = new Entity();
-        newEntity.setBaseURI(entity.getBaseURI());
-        newEntity.setEditLink(entity.getEditLink());
-        newEntity.setETag(entity.getETag());
-        newEntity.setId(entity.getId());
-        newEntity.setMediaContentSource(entity.getMediaContentSource());
-        newEntity.setMediaContentType(entity.getMediaContentType());
-        newEntity.setSelfLink(entity.getSelfLink());
-        newEntity.setMediaETag(entity.getMediaETag());
-        newEntity.setType(entity.getType());
-        newEntity.getProperties().addAll(entity.getProperties());
-        
-        return newEntity;
+    
+    private EntityIndex getIndex(final String entitySetName) {
+        EntityIndex index = indexes.get(entitySetName);
+        if (index == null) {
+            index = new EntityIndex();
+            EntityIndex existingIndex = indexes.putIfAbsent(entitySetName, index);
+            if (existingIndex != null) {
+                index = existingIndex;
+            }
+        }
+        return index;
     }
-
-    private void addEntityToCopyMap(final String entitySetName, final Entity srcEntity, final Entity destEntity) {
-        if(!copyMap.containsKey(entitySetName)) {
-            copyMap.put(entitySetName, new IdentityHashMap<Entity, Entity>());
+    
+    static int getId(final Entity entity) {
+        return (Integer) entity.getProperty("ID").getValue();
+    }
+    
+    public void beginTransaction() throws ODataApplicationException {
+        if (transaction.get() == null) {
+            transaction.set(new Transaction());
+        } else {
+            throw new ODataApplicationException("Transaction already in progress", 
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
         }
-        
-        copyMap.get(entitySetName).put(srcEntity, destEntity);
     }
     
-    private boolean containsEntityInCopyMap(final String entitySetName, final Entity srcEntity) {
-        return getEntityFromCopyMap(entitySetName, srcEntity) != null;
+    public void rollbackTransaction() throws ODataApplicationException {
+        if (transaction.get() != null) {
+            // nothing has been applied yet, the write set is simply dropped
+            transaction.remove();
+        } else {
+            throw new ODataApplicationException("No transaction in progress", 
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+        }
     }
     
-    private Entity getEntityFromCopyMap(final String entitySetName, final Entity srcEntity) {
-        if(!copyMap.containsKey(entitySetName)) {
-            return null;
+    /**
+     * Writes the applied changes of the transaction into a record of the log: the entities it
+     * created and the committed entities it changed or linked, as they are now, and the IDs of
+     * the entities it deleted
+     */
+    private EntityLog.Record toRecord(final EntityLog log, final Transaction tx) {
+        final EntityLog.Record record = log.newRecord();
+        for (Entry<String, Map<Integer, Entity>> entry : tx.getCreatedEntities().entrySet()) {
+            for (Entity entity : entry.getValue().values()) {
+                record.put(entry.getKey(), entity, getVersion(entry.getKey(), entity));
+            }
+        }
+        for (Access access : tx.getAccessed()) {
+            if (tx.isRemoved(access.entity)) {
+                record.remove(access.entitySetName, getId(access.entity));
+            } else if (access.changed || access.linked) {
+                record.put(access.entitySetName, access.entity, getVersion(access.entitySetName, access.entity));
+            }
+        }
+        return record;
+    }
+    
+    /**
+     * Validates the transaction and applies its changes. If another client changed an entity the
+     * transaction depends on, the commit fails with 409 Conflict and the transaction stays in
+     * progress, so the caller rolls it back as after any other error. The same holds if the log
+     * can't be written, but then the changes have been applied already.
+     */
+    public void commitTransaction() throws ODataApplicationException {
+        final Transaction tx = transaction.get();
+        if (tx == null) {
+            throw new ODataApplicationException("No transaction in progress", 
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
         }
         
-        return copyMap.get(entitySetName).get(srcEntity);
+        final EntityLog log = this.log;
+        long number = 0;
+        EntityLog.Checkpoint checkpoint = null;
+        commitLock.lock();
+        try {
+            // valida las versiones de las entidades ledas
+            for (Access access : tx.getAccessed()) {
+                final EntityIndex index = getIndex(access.entitySetName);
+                final int id = getId(access.entity);
+                if (index.get(id) != access.entity 
+                        || (access.versionRequired && index.getVersion(id) != access.version)) {
+                    throw new ODataApplicationException("Entity " + access.entitySetName + "(" + id 
+                            + ") has been changed by another client", 
+                            HttpStatusCode.CONFLICT.getStatusCode(), Locale.ENGLISH);
+                }
+            }
+            
+            // aplica los cambios, las entidades nuevas primero porque los enlaces pueden referirse a ellas
+            for (Entry<String, Map<Integer, Entity>> entry : tx.getCreatedEntities().entrySet()) {
+                for (Entity entity : entry.getValue().values()) {
+                    publish(entry.getKey(), entity);
+                }
+            }
+            for (Change change : tx.getChanges()) {
+                change.apply();
+            }
+            for (Access access : tx.getAccessed()) {
+                if (access.changed) {
+                    final EntityIndex index = getIndex(access.entitySetName);
+                    final int id = getId(access.entity);
+                    index.incrementVersion(id);
+                    access.entity.setETag(toETag(index.getVersion(id)));
+                }
+            }
+            
+            if (log != null) {
+                number = log.append(toRecord(log, tx));
+                checkpoint = log.startCheckpoint(this);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        // the next commits don't wait for the disk, the commits waiting together are written at once
+        if (log != null) {
+            log.sync(number);
+            if (checkpoint != null) {
+                log.finishCheckpoint(checkpoint);
+            }
+        }
+        transaction.remove();
     }
 }
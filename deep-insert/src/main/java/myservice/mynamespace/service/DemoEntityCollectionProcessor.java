@@ -24,6 +24,7 @@ import java.util.Locale;
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.EntityIterator;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
@@ -39,13 +40,14 @@ import org.apache.olingo.server.api.processor.EntityCollectionProcessor;
 import org.apache.olingo.server.api.serializer.EntityCollectionSerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
 import org.apache.olingo.server.api.serializer.SerializerException;
-import org.apache.olingo.server.api.serializer.SerializerResult;
+import org.apache.olingo.server.api.serializer.SerializerStreamResult;
 import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriParameter;
 import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 
+import myservice.mynamespace.data.EntityListIterator;
 import myservice.mynamespace.data.Storage;
 import myservice.mynamespace.util.Util;
 
@@ -81,7 +83,7 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
       throws ODataApplicationException, SerializerException {
     
     EdmEntitySet responseEdmEntitySet = null; // we'll need this to build the ContextURL
-    EntityCollection responseEntityCollection = null; // we'll need this to set the response body
+    EntityIterator responseEntities = null; // we'll need this to set the response body
 
     // 1st retrieve the requested EntitySet from the uriInfo (representation of the parsed URI)
     List<UriResource> resourceParts = uriInfo.getUriResourceParts();
@@ -99,8 +101,9 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
     if (segmentCount == 1) { // this is the case for: DemoService/DemoService.svc/Categories
       responseEdmEntitySet = startEdmEntitySet; // the response body is built from the first (and only) entitySet
 
-      // 2nd: fetch the data from backend for this requested EntitySetName and deliver as EntitySet
-      responseEntityCollection = storage.readEntitySetData(startEdmEntitySet);
+      // 2nd: fetch the data from backend for this requested EntitySetName, the entities are
+      // read one by one while the response is written
+      responseEntities = storage.readEntitySetIterator(startEdmEntitySet);
     } else if (segmentCount == 2) { // in case of navigation: DemoService.svc/Categories(3)/Products
 
       UriResource lastSegment = resourceParts.get(1); // in our example we don't support more complex URIs
@@ -123,7 +126,8 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         // then fetch the entity collection where the entity navigates to
         // note: we don't need to check uriResourceNavigation.isCollection(),
         // because we are the EntityCollectionProcessor
-        responseEntityCollection = storage.getRelatedEntityCollection(sourceEntity, uriResourceNavigation);
+        EntityCollection relatedEntities = storage.getRelatedEntityCollection(sourceEntity, uriResourceNavigation);
+        responseEntities = new EntityListIterator(relatedEntities.getEntities());
       }
     } else { // this would be the case for e.g. Products(1)/Category/Products
       throw new ODataApplicationException("Not supported",
@@ -137,12 +141,14 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         .contextURL(contextUrl).id(id).build();
     EdmEntityType edmEntityType = responseEdmEntitySet.getEntityType();
 
+    // the entities are serialized straight into the response when it is sent, so neither the
+    // entities nor the serialized response are collected in memory
     ODataSerializer serializer = odata.createSerializer(responseFormat);
-    SerializerResult serializerResult = serializer.entityCollection(serviceMetadata, edmEntityType,
-        responseEntityCollection, opts);
+    SerializerStreamResult serializerResult = serializer.entityCollectionStreamed(serviceMetadata, edmEntityType,
+        responseEntities, opts);
 
     // 4th: configure the response object: set the body, headers and status code
-    response.setContent(serializerResult.getContent());
+    response.setODataContent(serializerResult.getODataContent());
     response.setStatusCode(HttpStatusCode.OK.getStatusCode());
     response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
   }
@@ -34,12 +34,14 @@ import org.apache.olingo.commons.api.http.HttpMethod;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.ODataLibraryException;
 import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.deserializer.DeserializerException;
 import org.apache.olingo.server.api.deserializer.DeserializerResult;
 import org.apache.olingo.server.api.deserializer.ODataDeserializer;
+import org.apache.olingo.server.api.etag.PreconditionException;
 import org.apache.olingo.server.api.processor.EntityProcessor;
 import org.apache.olingo.server.api.serializer.EntitySerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
@@ -51,6 +53,7 @@ import org.apache.olingo.server.api.uri.UriResource;
 import org.apache.olingo.server.api.uri.UriResourceEntitySet;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 
+import myservice.mynamespace.data.EntityCondition;
 import myservice.mynamespace.data.Storage;
 import myservice.mynamespace.util.Util;
 
@@ -81,7 +84,7 @@ public class DemoEntityProcessor implements EntityProcessor {
    * http://localhost:8080/DemoService/DemoService.svc/Products(1)/Category
    */
   public void readEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo, ContentType responseFormat)
-      throws ODataApplicationException, SerializerException {
+      throws ODataApplicationException, ODataLibraryException {
     
     EdmEntityType responseEdmEntityType = null; // we'll need this to build the ContextURL
     Entity responseEntity = null; // required for serialization of the response body
@@ -129,6 +132,14 @@ public class DemoEntityProcessor implements EntityProcessor {
       throw new ODataApplicationException("Nothing found.", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ROOT);
     }
 
+    // a client which already has the current version of the entity (If-None-Match) doesn't need it again
+    if (odata.createETagHelper().checkReadPreconditions(responseEntity.getETag(),
+        request.getHeaders(HttpHeader.IF_MATCH), request.getHeaders(HttpHeader.IF_NONE_MATCH))) {
+      response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
+      response.setHeader(HttpHeader.ETAG, responseEntity.getETag());
+      return;
+    }
+
     // 3. serialize
     ContextURL contextUrl = ContextURL.with().entitySet(responseEdmEntitySet).suffix(Suffix.ENTITY).build();
     EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
@@ -141,6 +152,7 @@ public class DemoEntityProcessor implements EntityProcessor {
     response.setContent(serializerResult.getContent());
     response.setStatusCode(HttpStatusCode.OK.getStatusCode());
     response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+    response.setHeader(HttpHeader.ETAG, responseEntity.getETag());
   }
 
   /*
@@ -176,7 +188,7 @@ public class DemoEntityProcessor implements EntityProcessor {
 		  storage.beginTransaction();
 		  createdEntity = storage.createEntityData(edmEntitySet, requestEntity, request.getRawBaseUri());
 		  storage.commitTransaction();
-		} catch( ODataApplicationException e ) {
+		} catch( ODataApplicationException | RuntimeException e ) {
 		  storage.rollbackTransaction();
 		  throw e;
 		}
@@ -192,6 +204,7 @@ public class DemoEntityProcessor implements EntityProcessor {
 		response.setContent(serializedResponse.getContent());
 		response.setStatusCode(HttpStatusCode.CREATED.getStatusCode());
 		response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+		response.setHeader(HttpHeader.ETAG, createdEntity.getETag());
 	}
 
 	
@@ -216,7 +229,7 @@ public class DemoEntityProcessor implements EntityProcessor {
 		List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
 		// Note that this updateEntity()-method is invoked for both PUT or PATCH operations
 		HttpMethod httpMethod = request.getMethod();
-		storage.updateEntityData(edmEntitySet, keyPredicates, requestEntity, httpMethod);
+		storage.updateEntityData(edmEntitySet, keyPredicates, requestEntity, httpMethod, getChangeCondition(request));
 		
 		//3. configure the response object
 		response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
@@ -234,9 +247,32 @@ public class DemoEntityProcessor implements EntityProcessor {
 
 		// 2. delete the data in backend
 		List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
-		storage.deleteEntityData(edmEntitySet, keyPredicates);
+		storage.deleteEntityData(edmEntitySet, keyPredicates, getChangeCondition(request));
 		
 		//3. configure the response object
 		response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
 	}
+
+	/**
+	 * Returns the If-Match and If-None-Match headers of a modifying request as condition, which the
+	 * storage checks against the ETag of the entity. A failed condition is answered with 412.
+	 */
+	private EntityCondition getChangeCondition(ODataRequest request) {
+		final List<String> ifMatch = request.getHeaders(HttpHeader.IF_MATCH);
+		final List<String> ifNoneMatch = request.getHeaders(HttpHeader.IF_NONE_MATCH);
+		if (ifMatch == null && ifNoneMatch == null) {
+			return null;
+		}
+		return new EntityCondition() {
+			@Override
+			public void check(Entity entity) throws ODataApplicationException {
+				try {
+					odata.createETagHelper().checkChangePreconditions(entity.getETag(), ifMatch, ifNoneMatch);
+				} catch (PreconditionException e) {
+					throw new ODataApplicationException(e.getMessage(), 
+							HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ENGLISH, e);
+				}
+			}
+		};
+	}
 }
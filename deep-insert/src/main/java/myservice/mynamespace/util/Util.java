@@ -73,6 +73,29 @@ public class Util {
     return null;
   }
 
+  /**
+   * Returns true if the key consists of one Int32 property, e.g. Products(3).
+   * Such keys can be looked up in the primary key index of the storage instead of
+   * comparing the key with every entity.
+   */
+  public static boolean isInt32Key(EdmEntityType edmEntityType, List<UriParameter> keyParams) {
+    if (keyParams.size() != 1) {
+      return false;
+    }
+    EdmProperty edmKeyProperty = (EdmProperty) edmEntityType.getProperty(keyParams.get(0).getName());
+    EdmType edmType = edmKeyProperty.getType();
+    return edmType instanceof EdmPrimitiveType 
+        && ((EdmPrimitiveType) edmType).getDefaultType() == Integer.class;
+  }
+
+  /**
+   * Returns the value of a key for which isInt32Key is true. 
+   * The URI parser has already checked that the key text is a valid Int32 literal.
+   */
+  public static int getInt32Key(List<UriParameter> keyParams) {
+    return Integer.parseInt(keyParams.get(0).getText());
+  }
+
   public static boolean entityMatchesAllKeys(EdmEntityType edmEntityType, Entity entity, List<UriParameter> keyParams) 
       throws ODataApplicationException {
 
@@ -18,6 +18,7 @@
  */
 package myservice.mynamespace.web;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -40,22 +41,112 @@ import myservice.mynamespace.service.DemoEntityCollectionProcessor;
 import myservice.mynamespace.service.DemoEntityProcessor;
 import myservice.mynamespace.service.DemoPrimitiveProcessor;
 
+/**
+ * All clients work on one application wide Storage. For isolated demos the init parameter
+ * "storageMode" can be set to "session", then each HttpSession gets its own copy of the data.
+ *
+ * If the init parameter "dataDirectory" is set, the shared storage writes the committed entities
+ * to a log in the directory and recovers them on startup. A snapshot of the entities is written
+ * whenever the log has grown by "checkpointLogSize" bytes.
+ *
+ * Responses are compressed with gzip or deflate if the client accepts it and the body is larger
+ * than "compressionThreshold" bytes, a negative threshold turns compression off. The number of
+ * bytes before and after compression is logged when the servlet is destroyed.
+ */
 public class DemoServlet extends HttpServlet {
 
   private static final long serialVersionUID = 1L;
   private static final Logger LOG = LoggerFactory.getLogger(DemoServlet.class);
 
+  public static final String STORAGE_MODE_PARAMETER = "storageMode";
+  public static final String STORAGE_MODE_SHARED = "shared";
+  public static final String STORAGE_MODE_SESSION = "session";
+  public static final String DATA_DIRECTORY_PARAMETER = "dataDirectory";
+  public static final String CHECKPOINT_LOG_SIZE_PARAMETER = "checkpointLogSize";
+  public static final long DEFAULT_CHECKPOINT_LOG_SIZE = 16 * 1024 * 1024;
+  public static final String COMPRESSION_THRESHOLD_PARAMETER = "compressionThreshold";
+  public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+  // null if each session has its own storage
+  private transient Storage sharedStorage;
+  // negative if the responses aren't compressed
+  private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+  private transient CompressingResponse.Statistics compressionStatistics;
+
+  @Override
+  public void init() throws ServletException {
+    String storageMode = getInitParameter(STORAGE_MODE_PARAMETER);
+    if (storageMode == null || storageMode.equalsIgnoreCase(STORAGE_MODE_SHARED)) {
+      OData odata = OData.newInstance();
+      ServiceMetadata edm = odata.createServiceMetadata(new DemoEdmProvider(), new ArrayList<EdmxReference>());
+      String dataDirectory = getInitParameter(DATA_DIRECTORY_PARAMETER);
+      if (dataDirectory == null || dataDirectory.trim().isEmpty()) {
+        sharedStorage = new Storage(odata, edm.getEdm());
+      } else {
+        sharedStorage = openStorage(odata, edm, dataDirectory.trim());
+      }
+    } else if (!storageMode.equalsIgnoreCase(STORAGE_MODE_SESSION)) {
+      throw new ServletException("Unknown storage mode " + storageMode);
+    }
+
+    String value = getInitParameter(COMPRESSION_THRESHOLD_PARAMETER);
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        compressionThreshold = Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new ServletException("Invalid value for init parameter " + COMPRESSION_THRESHOLD_PARAMETER + ": " 
+            + value, e);
+      }
+    }
+    compressionStatistics = new CompressingResponse.Statistics();
+  }
+
+  private Storage openStorage(OData odata, ServiceMetadata edm, String dataDirectory) throws ServletException {
+    long checkpointLogSize = DEFAULT_CHECKPOINT_LOG_SIZE;
+    String value = getInitParameter(CHECKPOINT_LOG_SIZE_PARAMETER);
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        checkpointLogSize = Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        checkpointLogSize = -1;
+      }
+    }
+    if (checkpointLogSize <= 0) {
+      throw new ServletException("Invalid value for init parameter " + CHECKPOINT_LOG_SIZE_PARAMETER + ": " + value);
+    }
+    try {
+      return new Storage(odata, edm.getEdm(), new File(dataDirectory), checkpointLogSize);
+    } catch (IOException | RuntimeException e) {
+      throw new ServletException("Unable to open the storage in " + dataDirectory, e);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (sharedStorage != null) {
+      try {
+        sharedStorage.close();
+      } catch (IOException e) {
+        LOG.error("Unable to close the storage", e);
+      }
+    }
+    LOG.info("DemoServlet destroyed, {}", compressionStatistics);
+  }
+
   @Override
   protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
     try {
       OData odata = OData.newInstance();
       ServiceMetadata edm = odata.createServiceMetadata(new DemoEdmProvider(), new ArrayList<EdmxReference>());
       
-      HttpSession session = req.getSession(true);
-      Storage storage = (Storage) session.getAttribute(Storage.class.getName());
+      Storage storage = sharedStorage;
       if (storage == null) {
-        storage = new Storage(odata, edm.getEdm());
-        session.setAttribute(Storage.class.getName(), storage);
+        HttpSession session = req.getSession(true);
+        storage = (Storage) session.getAttribute(Storage.class.getName());
+        if (storage == null) {
+          storage = new Storage(odata, edm.getEdm());
+          session.setAttribute(Storage.class.getName(), storage);
+        }
       }
 
      
@@ -64,8 +155,16 @@ public class DemoServlet extends HttpServlet {
       handler.register(new DemoEntityProcessor(storage));
       handler.register(new DemoPrimitiveProcessor(storage));
       
+      // the body is compressed while the handler writes it
+      String encoding = compressionThreshold >= 0 ? CompressingResponse.negotiate(req) : null;
+      CompressingResponse compressingResp = encoding == null ? null
+          : new CompressingResponse(resp, encoding, compressionThreshold, compressionStatistics);
+
       // let the handler do the work
-      handler.process(req, resp);
+      handler.process(req, compressingResp != null ? compressingResp : resp);
+      if (compressingResp != null) {
+        compressingResp.finish();
+      }
     } catch (RuntimeException e) {
       LOG.error("Server Error occurred in ExampleServlet", e);
       throw new ServletException(e);
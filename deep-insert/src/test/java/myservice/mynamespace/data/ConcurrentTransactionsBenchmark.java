@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package myservice.mynamespace.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityIterator;
+import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.Edm;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edmx.EdmxReference;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+import myservice.mynamespace.service.DemoEdmProvider;
+
+/**
+ * Stress test of the Storage with concurrent transactions: writer threads create products bound
+ * to one of the few categories, each in a transaction of its own, while reader threads iterate
+ * the products and the products of every category. The number of writers grows from run to run,
+ * every run starts with new sample data and prints the commits, conflicts and reads per second.
+ *
+ * All writers link to the same categories, so the readers iterate navigation links which are
+ * changed by the commits at the same time. A reader fails if it sees an incomplete collection, a
+ * ConcurrentModificationException fails the run as well.
+ *
+ * Arguments: [max writers] [readers] [seconds per run], the defaults are 8, 2 and 5.
+ */
+public class ConcurrentTransactionsBenchmark {
+
+    private static final String SERVICE_ROOT = "http://localhost/DemoService.svc/";
+    // the sample data has the categories 0, 1 and 2
+    private static final int CATEGORIES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int maxWriters = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        OData odata = OData.newInstance();
+        Edm edm = odata.createServiceMetadata(new DemoEdmProvider(), new ArrayList<EdmxReference>()).getEdm();
+
+        // the first run warms up the JIT and isn't printed
+        run(odata, edm, 1, readers, 1);
+        for (int writers = 1; writers <= maxWriters; writers *= 2) {
+            Result result = run(odata, edm, writers, readers, seconds);
+            System.out.printf("%d writers, %d readers: %,8.0f commits/s, %,6.0f conflicts/s, %,8.0f reads/s%n",
+                    writers, readers, result.commits / result.seconds, result.conflicts / result.seconds,
+                    result.reads / result.seconds);
+        }
+    }
+
+    private static Result run(OData odata, Edm edm, int writers, int readers, int seconds) throws Exception {
+        final Storage storage = new Storage(odata, edm);
+        final EdmEntitySet products = edm.getEntityContainer().getEntitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+        final EdmEntitySet categories = edm.getEntityContainer().getEntitySet(DemoEdmProvider.ES_CATEGORIES_NAME);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong conflicts = new AtomicLong();
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < writers; i++) {
+            final int writer = i;
+            threads.add(new Worker(start, running, failures) {
+                @Override
+                void work() throws ODataApplicationException {
+                    storage.beginTransaction();
+                    try {
+                        storage.createEntityData(products, createProduct(writer), SERVICE_ROOT);
+                        storage.commitTransaction();
+                        commits.incrementAndGet();
+                    } catch (ODataApplicationException e) {
+                        storage.rollbackTransaction();
+                        if (e.getStatusCode() != HttpStatusCode.CONFLICT.getStatusCode()) {
+                            throw e;
+                        }
+                        conflicts.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < readers; i++) {
+            threads.add(new Worker(start, running, failures) {
+                @Override
+                void work() throws ODataApplicationException {
+                    EntityIterator iterator = storage.readEntitySetIterator(products);
+                    while (iterator.hasNext()) {
+                        if (iterator.next() == null) {
+                            throw new IllegalStateException("Null in the products");
+                        }
+                    }
+                    for (Entity category : storage.readEntitySetData(categories).getEntities()) {
+                        Link link = category.getNavigationLink("Products");
+                        if (link != null) {
+                            for (Entity product : link.getInlineEntitySet().getEntities()) {
+                                if (product == null || product.getProperty("ID") == null) {
+                                    throw new IllegalStateException("Incomplete product linked to a category");
+                                }
+                            }
+                        }
+                    }
+                    reads.incrementAndGet();
+                }
+            });
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("The stress test failed", failures.get(0));
+        }
+        return new Result(commits.get(), conflicts.get(), reads.get(), elapsed);
+    }
+
+    private static Entity createProduct(int writer) {
+        Entity product = new Entity();
+        product.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
+        product.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Product of writer " + writer));
+        product.addProperty(new Property(null, "Description", ValueType.PRIMITIVE, "Created by the stress test"));
+        Link category = new Link();
+        category.setTitle("Category");
+        category.setBindingLink(DemoEdmProvider.ES_CATEGORIES_NAME + "(" + writer % CATEGORIES + ")");
+        product.getNavigationBindings().add(category);
+        return product;
+    }
+
+    /**
+     * Repeats its work until the run is over, the first failure ends the run of all threads
+     */
+    private abstract static class Worker extends Thread {
+
+        private final CountDownLatch start;
+        private final AtomicBoolean running;
+        private final List<Throwable> failures;
+
+        Worker(CountDownLatch start, AtomicBoolean running, List<Throwable> failures) {
+            this.start = start;
+            this.running = running;
+            this.failures = failures;
+        }
+
+        abstract void work() throws Exception;
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+                while (running.get()) {
+                    work();
+                }
+            } catch (Throwable e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+                running.set(false);
+            }
+        }
+    }
+
+    private static final class Result {
+
+        final long commits;
+        final long conflicts;
+        final long reads;
+        final double seconds;
+
+        Result(long commits, long conflicts, long reads, double seconds) {
+            this.commits = commits;
+            this.conflicts = conflicts;
+            this.reads = reads;
+            this.seconds = seconds;
+        }
+    }
+}
@@ -0,0 +1,630 @@
+package olingo.tutorial.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * Keeps the media content of the entities off the heap, in memory-mapped segment files.
+ *
+ * A blob is copied once into the mapped segment, the entity only keeps a Blob with its position
+ * and length. Reading a blob returns a stream over the mapped region, so the content is read
+ * from the page cache and never copied into a byte array of its own. The written region of a
+ * segment is never changed again, readers need no lock.
+ *
+ * The content is written from a stream in chunks of CHUNK_SIZE bytes, and its SHA-256 digest is
+ * computed on the way. If the length is known in advance, the region of the blob is reserved at
+ * the end of the current segment first, so several uploads are written at the same time. A blob
+ * larger than a segment gets a segment of its own, and so does a content of unknown length,
+ * which is written to the segment file as it arrives. The space of blobs which are replaced or
+ * deleted, or whose upload failed, is not reused.
+ *
+ * The blobs are addressed by their content: a write whose digest and length match a stored blob
+ * returns that blob, and the region it has just written is given back if nothing was written
+ * after it. The references to each blob are counted, references are the rows of the tables
+ * and the writes which haven't ended yet (see write and release). A segment whose blobs have
+ * no references any more is released, and freed by deleteSegments once the removal of the
+ * last reference is on the disk. A blob shares the segment with other blobs, so its space is
+ * only freed together with them.
+ *
+ * A store with a directory keeps its segments there, force writes the new blobs to the disk and
+ * a new store for the same directory maps the segments again. Without a directory the segments
+ * are temporary files, which are deleted as soon as they are mapped.
+ */
+final class BlobStore implements Closeable {
+
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String SEGMENT_PREFIX = "blob-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    // null if the blobs are only kept until the store is gone
+    private final File directory;
+    private final int segmentSize;
+
+    // the fields below are guarded by this
+    // by number, null for the segments of uploads which are still written or failed
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // the segment new blobs are appended to, -1 if there is none yet
+    private int current = -1;
+    // the position in the current segment where the next blob is written
+    private int position;
+    // the segments with blobs which have not been forced to the disk yet
+    private final Set<MappedByteBuffer> unforced = new LinkedHashSet<>();
+    // the number of references of each referenced blob
+    private final Map<Blob, Integer> references = new HashMap<>();
+    // the referenced blobs by digest, the first one if the same content was stored twice before
+    private final Map<ByteBuffer, Blob> contents = new HashMap<>();
+    // the number of referenced blobs and running writes per segment
+    private int[] segmentReferences = new int[0];
+    // the segments which have no references any more
+    private final Set<Integer> released = new LinkedHashSet<>();
+    private long storedBytes;
+    private long referencedBytes;
+    private long deduplicatedWrites;
+    private long deduplicatedBytes;
+
+    /**
+     * Creates a store which keeps the blobs in temporary segments
+     */
+    BlobStore() {
+        this.directory = null;
+        this.segmentSize = DEFAULT_SEGMENT_SIZE;
+    }
+
+    /**
+     * Opens the store in the directory and maps the segments which are there already. The blobs
+     * are appended to new segments.
+     */
+    BlobStore(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            int segment;
+            try {
+                segment = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                // not a segment of the store
+                continue;
+            }
+            while (segments.size() <= segment) {
+                segments.add(null);
+            }
+            growSegmentReferences(segment + 1);
+            // the last segment may have been written partly, it is left as it is
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                segments.set(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+    }
+
+    Blob write(byte[] content) {
+        try {
+            return write(new ByteArrayInputStream(content), content.length);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the blob", e);
+        }
+    }
+
+    /**
+     * Copies the content of the stream into the store, or returns the stored blob with the same
+     * content. The caller holds a reference to the blob, which it must release when it has
+     * referenced the blob from a table or doesn't need it any more.
+     *
+     * @param length the number of bytes of the content, -1 if it is unknown
+     * @throws IOException if the stream can't be read or its length differs from the given one
+     */
+    Blob write(InputStream content, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("The content is too large, it has " + length + " bytes");
+        }
+        MessageDigest digest = createDigest();
+        byte[] chunk = new byte[length >= 0 ? (int) Math.min(CHUNK_SIZE, Math.max(length, 1)) : CHUNK_SIZE];
+        if (length < 0) {
+            return writeSegment(content, digest, chunk);
+        }
+
+        int segment;
+        int start;
+        ByteBuffer target;
+        synchronized (this) {
+            if (current < 0 || segments.get(current).capacity() - position < length) {
+                newSegment((int) Math.max(segmentSize, length));
+            }
+            segment = current;
+            start = position;
+            position += length;
+            target = segments.get(segment).duplicate();
+            // the running write keeps the segment
+            segmentReferences[segment]++;
+        }
+        Blob blob = null;
+        try {
+            // the region belongs to this upload, the stream is read without holding the lock
+            target.limit(start + (int) length);
+            target.position(start);
+            while (target.hasRemaining()) {
+                int count = content.read(chunk, 0, Math.min(chunk.length, target.remaining()));
+                if (count < 0) {
+                    throw new IOException("The content ended after " + (target.position() - start)
+                            + " of " + length + " bytes");
+                }
+                target.put(chunk, 0, count);
+                digest.update(chunk, 0, count);
+            }
+            if (content.read() >= 0) {
+                throw new IOException("The content is longer than " + length + " bytes");
+            }
+            blob = new Blob(segment, start, (int) length, digest.digest());
+        } finally {
+            synchronized (this) {
+                Blob stored = blob == null ? null : getStoredBlob(blob);
+                if (blob == null || stored != null) {
+                    // the region isn't used, it can be written again if it is the last one of the segment
+                    if (segment == current && position == start + length) {
+                        position = start;
+                    }
+                    releaseSegment(segment);
+                }
+                if (stored != null) {
+                    deduplicatedWrites++;
+                    deduplicatedBytes += length;
+                    reference(stored);
+                    blob = stored;
+                } else if (blob != null) {
+                    // the reference of the running write becomes the reference of the blob
+                    segmentReferences[segment]--;
+                    reference(blob);
+                    if (directory != null) {
+                        unforced.add(segments.get(segment));
+                    }
+                }
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Writes a content of unknown length to a segment of its own
+     */
+    private Blob writeSegment(InputStream content, MessageDigest digest, byte[] chunk) throws IOException {
+        int segment;
+        synchronized (this) {
+            segment = segments.size();
+            segments.add(null);
+        }
+        File file = directory != null ? file(segment) : File.createTempFile(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        boolean written = false;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = 0;
+            for (int count = content.read(chunk); count >= 0; count = content.read(chunk)) {
+                ByteBuffer bytes = ByteBuffer.wrap(chunk, 0, count);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                digest.update(chunk, 0, count);
+                length += count;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("The content is too large, it has more than " + Integer.MAX_VALUE + " bytes");
+                }
+            }
+            if (directory != null) {
+                channel.force(true);
+            }
+            Blob blob = new Blob(segment, 0, (int) length, digest.digest());
+            synchronized (this) {
+                Blob stored = getStoredBlob(blob);
+                if (stored != null) {
+                    // the segment is deleted again, it was never mapped
+                    deduplicatedWrites++;
+                    deduplicatedBytes += length;
+                    reference(stored);
+                    return stored;
+                }
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            synchronized (this) {
+                segments.set(segment, buffer);
+                growSegmentReferences(segment + 1);
+                reference(blob);
+            }
+            written = true;
+            return blob;
+        } finally {
+            if (directory == null || !written) {
+                deleteSegmentFile(file);
+            }
+        }
+    }
+
+    /**
+     * Starts a new current segment, must be called while the lock is held
+     */
+    private void newSegment(int size) {
+        int segment = segments.size();
+        File file = null;
+        try {
+            file = directory != null ? file(segment) : File.createTempFile(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // the mapping stays valid after the channel has been closed
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            if (directory == null) {
+                deleteSegmentFile(file);
+            }
+            segments.add(buffer);
+            growSegmentReferences(segment + 1);
+            if (current >= 0 && segmentReferences[current] == 0) {
+                released.add(current);
+            }
+            current = segment;
+            position = 0;
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to create the blob segment " + file, e);
+        }
+    }
+
+    private void growSegmentReferences(int size) {
+        if (segmentReferences.length < size) {
+            segmentReferences = Arrays.copyOf(segmentReferences, Math.max(size, segmentReferences.length * 2));
+        }
+    }
+
+    /**
+     * Returns the referenced blob with the same content, or null
+     */
+    private Blob getStoredBlob(Blob blob) {
+        Blob stored = contents.get(ByteBuffer.wrap(blob.digest));
+        return stored != null && stored.length == blob.length ? stored : null;
+    }
+
+    /**
+     * Adds a reference to the blob, e.g. of a row which refers to it. Does nothing for null.
+     */
+    synchronized void reference(Blob blob) {
+        if (blob == null) {
+            return;
+        }
+        Integer count = references.get(blob);
+        if (count == null) {
+            references.put(blob, 1);
+            growSegmentReferences(blob.segment + 1);
+            segmentReferences[blob.segment]++;
+            storedBytes += blob.length;
+            if (blob.digest != null && !contents.containsKey(ByteBuffer.wrap(blob.digest))) {
+                contents.put(ByteBuffer.wrap(blob.digest), blob);
+            }
+        } else {
+            references.put(blob, count + 1);
+        }
+        referencedBytes += blob.length;
+    }
+
+    /**
+     * Removes a reference to the blob. When its last reference is gone the content is not found
+     * by new writes any more, and its segment is released if it has no other referenced blobs.
+     * Does nothing for null.
+     */
+    synchronized void release(Blob blob) {
+        Integer count = blob == null ? null : references.get(blob);
+        if (count == null) {
+            return;
+        }
+        referencedBytes -= blob.length;
+        if (count > 1) {
+            references.put(blob, count - 1);
+            return;
+        }
+        references.remove(blob);
+        storedBytes -= blob.length;
+        if (blob.digest != null && blob.equals(contents.get(ByteBuffer.wrap(blob.digest)))) {
+            contents.remove(ByteBuffer.wrap(blob.digest));
+        }
+        releaseSegment(blob.segment);
+    }
+
+    private void releaseSegment(int segment) {
+        if (--segmentReferences[segment] == 0 && segment != current) {
+            released.add(segment);
+        }
+    }
+
+    /**
+     * Releases all segments without references, e.g. after the tables have been recovered
+     */
+    synchronized void releaseUnreferencedSegments() {
+        for (int segment = 0; segment < segments.size(); segment++) {
+            if (segments.get(segment) != null && segmentReferences[segment] == 0 && segment != current) {
+                released.add(segment);
+            }
+        }
+    }
+
+    /**
+     * Returns the segments released since the last call. They may only be deleted once the
+     * modifications which removed their references can't be lost any more.
+     */
+    synchronized List<Integer> takeReleasedSegments() {
+        if (released.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Integer> taken = new ArrayList<>(released);
+        released.clear();
+        return taken;
+    }
+
+    /**
+     * Unmaps and deletes the released segments which still have no references. Streams which
+     * are still read keep the mapping until they are gone.
+     */
+    void deleteSegments(List<Integer> releasedSegments) {
+        for (int segment : releasedSegments) {
+            synchronized (this) {
+                if (segmentReferences[segment] != 0 || segment == current) {
+                    continue;
+                }
+                MappedByteBuffer buffer = segments.set(segment, null);
+                if (buffer != null) {
+                    unforced.remove(buffer);
+                }
+            }
+            if (directory != null) {
+                deleteSegmentFile(file(segment));
+            }
+        }
+    }
+
+    private static void deleteSegmentFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            // e.g. on Windows, where a mapped file can't be deleted
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Returns a stream of the content of the blob, which reads straight from the mapped segment.
+     * Returns null if the segment has been deleted, e.g. the entity was deleted or got another
+     * content after the reader had found the blob.
+     */
+    InputStream open(Blob blob) {
+        return open(blob, 0, blob.length);
+    }
+
+    /**
+     * Returns a stream of length bytes of the content, starting at offset, or null if the segment
+     * has been deleted
+     */
+    InputStream open(Blob blob, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > blob.length - length) {
+            throw new IndexOutOfBoundsException("The blob has " + blob.length + " bytes, "
+                    + length + " bytes at " + offset + " can't be read");
+        }
+        ByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get(blob.segment);
+        }
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer content = segment.asReadOnlyBuffer();
+        content.limit(blob.position + offset + length);
+        content.position(blob.position + offset);
+        return new BlobInputStream(content.slice());
+    }
+
+    /**
+     * Writes the blobs written since the last call to the disk, before a record which refers
+     * to them is written to the storage log
+     */
+    void force() {
+        List<MappedByteBuffer> segments;
+        synchronized (this) {
+            if (unforced.isEmpty()) {
+                return;
+            }
+            segments = new ArrayList<>(unforced);
+            unforced.clear();
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the referenced blobs, each content counted once
+     */
+    synchronized long getStoredBytes() {
+        return storedBytes;
+    }
+
+    /**
+     * Returns the number of bytes of all references, i.e. the bytes the blobs would take
+     * without deduplication
+     */
+    synchronized long getReferencedBytes() {
+        return referencedBytes;
+    }
+
+    /**
+     * Returns the share of the bytes saved by deduplication, between 0 and 1
+     */
+    synchronized double getDeduplicationRatio() {
+        return referencedBytes == 0 ? 0 : (double) (referencedBytes - storedBytes) / referencedBytes;
+    }
+
+    /**
+     * Returns the number of writes which returned a stored blob with the same content
+     */
+    synchronized long getDeduplicatedWrites() {
+        return deduplicatedWrites;
+    }
+
+    /**
+     * Returns the number of bytes of the writes which returned a stored blob
+     */
+    synchronized long getDeduplicatedBytes() {
+        return deduplicatedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlobStore [blobs=" + references.size() + ", storedBytes=" + storedBytes 
+                + ", referencedBytes=" + referencedBytes + ", deduplicatedWrites=" + deduplicatedWrites 
+                + ", deduplicatedBytes=" + deduplicatedBytes + "]";
+    }
+
+    /**
+     * Writes all blobs to the disk. The mapped segments are released by the garbage collector,
+     * the streams of blobs which are still read stay valid.
+     */
+    @Override
+    public void close() {
+        force();
+    }
+
+    private File file(int segment) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new ODataRuntimeException(e);
+        }
+    }
+
+    /**
+     * The place of a content in the store, the value of the media property of an entity
+     */
+    static final class Blob {
+
+        private final int segment;
+        private final int position;
+        private final int length;
+        private final byte[] digest;
+
+        Blob(int segment, int position, int length, byte[] digest) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.digest = digest;
+        }
+
+        int getSegment() {
+            return segment;
+        }
+
+        int getPosition() {
+            return position;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * Returns the SHA-256 digest of the content, don't change it
+         */
+        byte[] getDigest() {
+            return digest;
+        }
+
+        /**
+         * Blobs are equal if they have the same place in the store
+         */
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Blob)) {
+                return false;
+            }
+            Blob other = (Blob) obj;
+            return segment == other.segment && position == other.position && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (segment * 31 + position) * 31 + length;
+        }
+    }
+
+    /**
+     * Reads the content of a blob from a region of a mapped segment
+     */
+    private static final class BlobInputStream extends InputStream {
+
+        private final ByteBuffer content;
+
+        BlobInputStream(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read() {
+            return content.hasRemaining() ? content.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!content.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, content.remaining());
+            content.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, content.remaining()));
+            content.position(content.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return content.remaining();
+        }
+    }
+}
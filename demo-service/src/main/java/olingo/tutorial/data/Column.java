@@ -0,0 +1,455 @@
+package olingo.tutorial.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.commons.api.edm.EdmPrimitiveTypeKind;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * The values of one property for all rows of a ColumnTable.
+ *
+ * Each primitive type has its own column, which stores the values in a primitive array instead of
+ * one boxed object per value. The column doesn't synchronize, the ColumnTable guards it.
+ */
+abstract class Column {
+
+    /**
+     * Creates the column for a property of the given Edm type
+     */
+    static Column create(FullQualifiedName type, int capacity) {
+        if (EdmPrimitiveTypeKind.Int32.getFullQualifiedName().equals(type)) {
+            return new IntColumn(capacity);
+        } else if (EdmPrimitiveTypeKind.String.getFullQualifiedName().equals(type)) {
+            return new StringColumn(capacity);
+        } else if (EdmPrimitiveTypeKind.DateTimeOffset.getFullQualifiedName().equals(type)) {
+            return new TimestampColumn(capacity);
+        } else {
+            return new ObjectColumn(capacity);
+        }
+    }
+
+    abstract boolean isNull(int row);
+
+    abstract Object getValue(int row);
+
+    /**
+     * Sets the value of a row, the value is the value of a property of an Entity
+     */
+    abstract void setValue(int row, Object value);
+
+    int getInt(int row) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no int values");
+    }
+
+    String getString(int row) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " has no String values");
+    }
+
+    abstract void grow(int capacity);
+
+    /**
+     * Copies the value of a row to another row, used to remove the gaps of deleted rows
+     */
+    abstract void move(int from, int to);
+
+    /**
+     * Writes the value of a row for the storage log and the snapshots
+     */
+    abstract void write(int row, DataOutput out) throws IOException;
+
+    /**
+     * Sets the value of a row to a value written by write
+     */
+    abstract void read(int row, DataInput in) throws IOException;
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            // writeUTF is limited to 64 KB
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Edm.Int32 values
+     */
+    static final class IntColumn extends Column {
+
+        private int[] values;
+        private BitSet nulls;
+
+        IntColumn(int capacity) {
+            values = new int[capacity];
+            nulls = new BitSet();
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        int getInt(int row) {
+            return values[row];
+        }
+
+        @Override
+        Object getValue(int row) {
+            return nulls.get(row) ? null : values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            if (value == null) {
+                values[row] = 0;
+                nulls.set(row);
+            } else {
+                values[row] = ((Number) value).intValue();
+                nulls.clear(row);
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls.set(to, nulls.get(from));
+        }
+
+        @Override
+        void write(int row, DataOutput out) throws IOException {
+            out.writeBoolean(nulls.get(row));
+            out.writeInt(values[row]);
+        }
+
+        @Override
+        void read(int row, DataInput in) throws IOException {
+            nulls.set(row, in.readBoolean());
+            values[row] = in.readInt();
+        }
+    }
+
+    /**
+     * Edm.String values, dictionary encoded: every distinct value is stored once and the rows
+     * only hold its code.
+     */
+    static final class StringColumn extends Column {
+
+        private static final int NULL_CODE = -1;
+
+        private final Dictionary dictionary;
+        private int[] codes;
+
+        StringColumn(int capacity) {
+            dictionary = new Dictionary();
+            codes = new int[capacity];
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return codes[row] == NULL_CODE;
+        }
+
+        @Override
+        String getString(int row) {
+            int code = codes[row];
+            return code == NULL_CODE ? null : dictionary.decode(code);
+        }
+
+        @Override
+        Object getValue(int row) {
+            return getString(row);
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            codes[row] = value == null ? NULL_CODE : dictionary.encode(value.toString());
+        }
+
+        @Override
+        void grow(int capacity) {
+            codes = Arrays.copyOf(codes, capacity);
+        }
+
+        @Override
+        void move(int from, int to) {
+            codes[to] = codes[from];
+        }
+
+        @Override
+        void write(int row, DataOutput out) throws IOException {
+            writeString(out, getString(row));
+        }
+
+        @Override
+        void read(int row, DataInput in) throws IOException {
+            setValue(row, readString(in));
+        }
+    }
+
+    static final class Dictionary {
+
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+
+        int encode(String value) {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = values.size();
+                values.add(value);
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return values.get(code);
+        }
+    }
+
+    /**
+     * Edm.DateTimeOffset values as milliseconds since the epoch
+     */
+    static final class TimestampColumn extends Column {
+
+        private long[] values;
+        private BitSet nulls;
+
+        TimestampColumn(int capacity) {
+            values = new long[capacity];
+            nulls = new BitSet();
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        @Override
+        Object getValue(int row) {
+            return nulls.get(row) ? null : new Timestamp(values[row]);
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            if (value == null) {
+                values[row] = 0;
+                nulls.set(row);
+            } else {
+                values[row] = value instanceof Calendar
+                        ? ((Calendar) value).getTimeInMillis() : ((Date) value).getTime();
+                nulls.clear(row);
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+            nulls.set(to, nulls.get(from));
+        }
+
+        @Override
+        void write(int row, DataOutput out) throws IOException {
+            out.writeBoolean(nulls.get(row));
+            out.writeLong(values[row]);
+        }
+
+        @Override
+        void read(int row, DataInput in) throws IOException {
+            nulls.set(row, in.readBoolean());
+            values[row] = in.readLong();
+        }
+    }
+
+    /**
+     * The content of media entities, as position, length and digest of the blob in the BlobStore
+     */
+    static final class BlobColumn extends Column {
+
+        private static final int NULL_LENGTH = -1;
+
+        private int[] segments;
+        private int[] positions;
+        private int[] lengths;
+        private byte[][] digests;
+
+        BlobColumn(int capacity) {
+            segments = new int[capacity];
+            positions = new int[capacity];
+            lengths = new int[capacity];
+            digests = new byte[capacity][];
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return lengths[row] == NULL_LENGTH;
+        }
+
+        @Override
+        Object getValue(int row) {
+            return isNull(row) ? null 
+                    : new BlobStore.Blob(segments[row], positions[row], lengths[row], digests[row]);
+        }
+
+        /**
+         * The content must have been written to the BlobStore already
+         */
+        @Override
+        void setValue(int row, Object value) {
+            if (value == null) {
+                segments[row] = 0;
+                positions[row] = 0;
+                lengths[row] = NULL_LENGTH;
+                digests[row] = null;
+            } else {
+                BlobStore.Blob blob = (BlobStore.Blob) value;
+                segments[row] = blob.getSegment();
+                positions[row] = blob.getPosition();
+                lengths[row] = blob.getLength();
+                digests[row] = blob.getDigest();
+            }
+        }
+
+        @Override
+        void grow(int capacity) {
+            segments = Arrays.copyOf(segments, capacity);
+            positions = Arrays.copyOf(positions, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            digests = Arrays.copyOf(digests, capacity);
+        }
+
+        @Override
+        void move(int from, int to) {
+            segments[to] = segments[from];
+            positions[to] = positions[from];
+            lengths[to] = lengths[from];
+            digests[to] = digests[from];
+        }
+
+        /**
+         * Only the reference is written, the content is in the segments of the BlobStore
+         */
+        @Override
+        void write(int row, DataOutput out) throws IOException {
+            out.writeInt(lengths[row]);
+            out.writeInt(segments[row]);
+            out.writeInt(positions[row]);
+            if (lengths[row] != NULL_LENGTH) {
+                out.writeInt(digests[row].length);
+                out.write(digests[row]);
+            }
+        }
+
+        @Override
+        void read(int row, DataInput in) throws IOException {
+            lengths[row] = in.readInt();
+            segments[row] = in.readInt();
+            positions[row] = in.readInt();
+            digests[row] = null;
+            if (lengths[row] != NULL_LENGTH) {
+                digests[row] = new byte[in.readInt()];
+                in.readFully(digests[row]);
+            }
+        }
+    }
+
+    /**
+     * Values of all other types
+     */
+    static final class ObjectColumn extends Column {
+
+        private Object[] values;
+
+        ObjectColumn(int capacity) {
+            values = new Object[capacity];
+        }
+
+        @Override
+        boolean isNull(int row) {
+            return values[row] == null;
+        }
+
+        @Override
+        Object getValue(int row) {
+            return values[row];
+        }
+
+        @Override
+        void setValue(int row, Object value) {
+            values[row] = value;
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        void move(int from, int to) {
+            values[to] = values[from];
+        }
+
+        /**
+         * Only null and binary values can be written, the entity types have no other properties
+         */
+        @Override
+        void write(int row, DataOutput out) throws IOException {
+            Object value = values[row];
+            if (value == null) {
+                out.writeInt(-1);
+            } else if (value instanceof byte[]) {
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+            } else {
+                throw new ODataRuntimeException("Values of type " + value.getClass().getName() 
+                        + " can't be written to the storage log");
+            }
+        }
+
+        @Override
+        void read(int row, DataInput in) throws IOException {
+            int length = in.readInt();
+            byte[] value = null;
+            if (length >= 0) {
+                value = new byte[length];
+                in.readFully(value);
+            }
+            values[row] = value;
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package olingo.tutorial.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.FullQualifiedName;
+import org.apache.olingo.commons.api.edm.provider.CsdlEntityType;
+import org.apache.olingo.commons.api.edm.provider.CsdlNavigationProperty;
+import org.apache.olingo.commons.api.edm.provider.CsdlProperty;
+import org.apache.olingo.commons.api.edm.provider.CsdlReferentialConstraint;
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+import olingo.tutorial.service.DemoEdmProvider;
+
+/**
+ * The entities of one entity set, stored column by column.
+ *
+ * Every property of the entity type has a column, which keeps the values of all rows in a
+ * primitive array: Int32 values as int, strings as codes of a dictionary and timestamps as
+ * milliseconds. $filter and $orderby read the values straight from the columns, Entity objects
+ * are only created for the entities which are part of a result. These are copies, so changing
+ * them doesn't change the stored data.
+ *
+ * The rows are kept in the order they were added, which is the order of the IDs. A deleted row
+ * only leaves a gap, the gaps are removed once they make up half of the table. Single entities
+ * are looked up by ID in a hash index. Readers share a read lock, which is held for a whole
+ * query; a writer holds the write lock for a single modification, writers are serialized by the Storage.
+ * A change set of a batch request writes to its own TableChanges, which are committed at once.
+ *
+ * For server-driven paging with $orderby the table keeps the sorted positions of the rows for the
+ * last few sort orders, so following pages don't sort again. Every modification drops them.
+ *
+ * Every row has a version, which changes whenever the row is written, and the entities carry it
+ * as weak ETag. The versions are handed out by a counter of the entity set, which the private
+ * tables of change sets share, so a version is never used twice for the same entity set.
+ *
+ * The foreign key properties of the referential constraints, e.g. CategoryID of a product, have a
+ * ForeignKeyIndex, which finds the entities referring to another entity without a scan.
+ *
+ * If the storage is persistent, the committed table reports every modification to the
+ * StorageLog. The rows are written column by column, with their version, so replaying the log
+ * restores the same rows and ETags.
+ */
+class ColumnTable implements EntityTable, RowSource {
+
+    static final String MEDIA_PROPERTY_NAME = "$value";
+
+    private static final int INITIAL_CAPACITY = 16;
+    // the gaps of deleted rows are removed if there are more than this and more than half the rows
+    private static final int MIN_DELETED_ROWS_TO_COMPACT = 32;
+    private static final int MAX_SORTED_INDEXES = 8;
+
+    private final String entitySetName;
+    private final String entityTypeName;
+    private final List<String> propertyNames = new ArrayList<>();
+    private final List<FullQualifiedName> propertyTypes = new ArrayList<>();
+    private final int idColumn;
+    // the columns of media entities, -1 for other entity types
+    private final int mediaContentTypeColumn;
+    private final int mediaColumn;
+    // the hidden column with the version of each row
+    private final int versionColumn;
+    private final AtomicInteger versions;
+    // the foreign key properties of the referential constraints, with their columns and indexes
+    private final List<String> foreignKeyNames = new ArrayList<>();
+    private final int[] foreignKeyColumns;
+    private final ForeignKeyIndex[] foreignKeyIndexes;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // receives the modifications, null for the tables of change sets and while the log is replayed
+    private StorageLog log;
+    // counts the references of the rows to the media content, null for the tables of change sets
+    private BlobStore blobs;
+
+    private Column[] columns;
+    private BitSet deleted = new BitSet();
+    private RowIndex index = new RowIndex();
+    private int capacity;
+    // number of rows including the deleted ones
+    private int rowCount;
+    private int liveCount;
+    // built by readers while they hold the read lock, so several of them may add an index at the same time
+    private final Map<RowComparator, int[]> sortedIndexes = new ConcurrentHashMap<>();
+
+    ColumnTable(String entitySetName, FullQualifiedName entityTypeName) {
+        this(entitySetName, entityTypeName, new AtomicInteger());
+    }
+
+    private ColumnTable(String entitySetName, FullQualifiedName entityTypeName, AtomicInteger versions) {
+        this.entitySetName = entitySetName;
+        this.versions = versions;
+        this.entityTypeName = entityTypeName.getFullQualifiedNameAsString();
+
+        CsdlEntityType entityType = new DemoEdmProvider().getEntityType(entityTypeName);
+        for (CsdlProperty property : entityType.getProperties()) {
+            propertyNames.add(property.getName());
+            propertyTypes.add(property.getTypeAsFQNObject());
+        }
+        idColumn = propertyNames.indexOf("ID");
+        if (entityType.hasStream()) {
+            mediaContentTypeColumn = propertyNames.size();
+            mediaColumn = propertyNames.size() + 1;
+        } else {
+            mediaContentTypeColumn = -1;
+            mediaColumn = -1;
+        }
+        versionColumn = mediaColumn >= 0 ? mediaColumn + 1 : propertyNames.size();
+        columns = createColumns(INITIAL_CAPACITY);
+
+        for (CsdlNavigationProperty navigationProperty : entityType.getNavigationProperties()) {
+            for (CsdlReferentialConstraint constraint : navigationProperty.getReferentialConstraints()) {
+                foreignKeyNames.add(constraint.getProperty());
+            }
+        }
+        foreignKeyColumns = new int[foreignKeyNames.size()];
+        foreignKeyIndexes = new ForeignKeyIndex[foreignKeyNames.size()];
+        for (int i = 0; i < foreignKeyColumns.length; i++) {
+            foreignKeyColumns[i] = propertyNames.indexOf(foreignKeyNames.get(i));
+            if (!(columns[foreignKeyColumns[i]] instanceof Column.IntColumn)) {
+                throw new ODataRuntimeException("Foreign key " + foreignKeyNames.get(i) + " of " 
+                        + entitySetName + " must be an Int32 property");
+            }
+            foreignKeyIndexes[i] = new ForeignKeyIndex();
+        }
+    }
+
+    /**
+     * Creates an empty table for the same entity set, which shares the versions with this table
+     */
+    ColumnTable newEmptyTable() {
+        return new ColumnTable(entitySetName, new FullQualifiedName(entityTypeName), versions);
+    }
+
+    void setLog(StorageLog log) {
+        this.log = log;
+    }
+
+    void setBlobStore(BlobStore blobs) {
+        this.blobs = blobs;
+    }
+
+    String getEntitySetName() {
+        return entitySetName;
+    }
+
+    List<String> getPropertyNames() {
+        return propertyNames;
+    }
+
+    @Override
+    public List<Entity> getEntities() {
+        lock.readLock().lock();
+        try {
+            List<Entity> entities = new ArrayList<>(liveCount);
+            for (int row = 0; row < rowCount; row++) {
+                if (!deleted.get(row)) {
+                    entities.add(toEntity(row));
+                }
+            }
+            return entities;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Entity getEntity(int id) {
+        lock.readLock().lock();
+        try {
+            int row = index.get(id);
+            return row == RowIndex.NO_ROW ? null : toEntity(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Executes the query on the columns, only the entities of the result are created
+     */
+    @Override
+    public EntityCollection query(EntityQuery query) throws ODataApplicationException {
+        lock.readLock().lock();
+        try {
+            return query.execute(this);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Executes the query on the columns and returns the result as stream. Only the IDs of the
+     * result are collected while the read lock is held, each entity is created when the stream
+     * hands it out. An entity which is deleted in between is skipped.
+     */
+    @Override
+    public EntityStream stream(EntityQuery query) throws ODataApplicationException {
+        EntityQuery.Selection selection;
+        int[] ids;
+        lock.readLock().lock();
+        try {
+            selection = query.select(this);
+            ids = new int[selection.positions.size()];
+            Column idValues = columns[idColumn];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = idValues.getInt(selection.positions.get(i));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new EntityStream(new EntityIterator(ids), selection.count, selection.nextToken);
+    }
+
+    /**
+     * Looks the IDs up in the index of the foreign key
+     */
+    @Override
+    public int[] findIds(String foreignKeyName, int value) {
+        int i = foreignKeyNames.indexOf(foreignKeyName);
+        if (i < 0) {
+            throw new IllegalArgumentException(foreignKeyName + " is no foreign key of " + entitySetName);
+        }
+        lock.readLock().lock();
+        try {
+            return foreignKeyIndexes[i].get(value);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    boolean contains(int id) {
+        lock.readLock().lock();
+        try {
+            return index.get(id) != RowIndex.NO_ROW;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the version of the entity with the ID, 0 if there is none
+     */
+    int getVersion(int id) {
+        lock.readLock().lock();
+        try {
+            int row = index.get(id);
+            return row == RowIndex.NO_ROW ? 0 : columns[versionColumn].getInt(row);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void putEntity(Entity entity) {
+        lock.writeLock().lock();
+        try {
+            putEntity(entity, versions.incrementAndGet());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the entity with the given version, e.g. the version a change set has given it, so
+     * the ETag returned to the client stays valid after the commit
+     */
+    void putEntity(Entity entity, int version) {
+        lock.writeLock().lock();
+        try {
+            sortedIndexes.clear();
+            int id = getId(entity);
+            BlobStore.Blob oldMedia = getMedia(index.get(id));
+            int row = getRowForPut(id);
+            List<Property> properties = entity.getProperties();
+            for (int column = 0; column < propertyNames.size(); column++) {
+                String name = propertyNames.get(column);
+                Property property;
+                // the entities normally have their properties in the order of the entity type
+                if (column < properties.size() && name.equals(properties.get(column).getName())) {
+                    property = properties.get(column);
+                } else {
+                    property = entity.getProperty(name);
+                }
+                columns[column].setValue(row, property == null ? null : property.getValue());
+            }
+            if (mediaColumn >= 0) {
+                Property media = entity.getProperty(MEDIA_PROPERTY_NAME);
+                columns[mediaContentTypeColumn].setValue(row, entity.getMediaContentType());
+                columns[mediaColumn].setValue(row, media == null ? null : media.getValue());
+                replaceMedia(oldMedia, row);
+            }
+            columns[versionColumn].setValue(row, version);
+            addForeignKeys(row);
+            if (log != null) {
+                log.put(this, row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity) {
+        removeEntity(getId(entity));
+    }
+
+    void removeEntity(int id) {
+        lock.writeLock().lock();
+        try {
+            int row = index.get(id);
+            if (row == RowIndex.NO_ROW) {
+                return;
+            }
+            if (log != null) {
+                log.remove(this, id);
+            }
+            sortedIndexes.clear();
+            removeForeignKeys(row);
+            releaseMedia(row);
+            index.remove(id);
+            deleted.set(row);
+            liveCount--;
+            int deletedRows = rowCount - liveCount;
+            if (deletedRows > MIN_DELETED_ROWS_TO_COMPACT && deletedRows * 2 > rowCount) {
+                // the IDs of the deleted entities must not be used again
+                compact(new RowIndex(index.getNextId()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            sortedIndexes.clear();
+            for (int row = 0; row < rowCount; row++) {
+                if (!deleted.get(row)) {
+                    releaseMedia(row);
+                }
+            }
+            columns = createColumns(INITIAL_CAPACITY);
+            deleted = new BitSet();
+            index = new RowIndex();
+            rowCount = 0;
+            liveCount = 0;
+            for (ForeignKeyIndex foreignKeyIndex : foreignKeyIndexes) {
+                foreignKeyIndex.clear();
+            }
+            if (log != null) {
+                log.clear(this);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void truncate(int amount) {
+        lock.writeLock().lock();
+        try {
+            if (log != null) {
+                log.truncate(this, amount);
+            }
+            int kept = 0;
+            int row = 0;
+            while (row < rowCount && kept < amount) {
+                if (!deleted.get(row)) {
+                    kept++;
+                }
+                row++;
+            }
+            for (int removed = row; removed < rowCount; removed++) {
+                if (!deleted.get(removed)) {
+                    releaseMedia(removed);
+                }
+            }
+            deleted.set(row, rowCount);
+            sortedIndexes.clear();
+            compact(new RowIndex());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ID for a new entity. The IDs are handed out in ascending order, the
+     * IDs of deleted entities are not reused.
+     */
+    @Override
+    public int getNextId() {
+        lock.readLock().lock();
+        try {
+            return index.getNextId();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies the changes of a change set at once, readers see either none or all of them.
+     * Updated entities keep their rows, so the rows stay in the order of the IDs.
+     */
+    void commit(TableChanges changes) {
+        lock.writeLock().lock();
+        try {
+            if (changes.isCleared()) {
+                clear();
+            }
+            BitSet removedIds = changes.getRemovedIds();
+            for (int id = removedIds.nextSetBit(0); id >= 0; id = removedIds.nextSetBit(id + 1)) {
+                removeEntity(id);
+            }
+            if (changes.isReuseIds()) {
+                reuseIds();
+            }
+            // the entities keep the versions of the change set, which its responses returned as ETags
+            for (Entity entity : changes.getWrittenEntities()) {
+                putEntity(entity, changes.getWrittenVersion(getId(entity)));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the gaps of the deleted rows, the IDs above the highest remaining ID are handed out again
+     */
+    void reuseIds() {
+        lock.writeLock().lock();
+        try {
+            sortedIndexes.clear();
+            compact(new RowIndex());
+            if (log != null) {
+                log.reuseIds(this);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static int getId(Entity entity) {
+        return (Integer) entity.getProperty("ID").getValue();
+    }
+
+    /* StorageLog */
+
+    /**
+     * Writes a row with all its columns and its version, readRow restores it
+     */
+    void writeRow(int row, DataOutput out) throws IOException {
+        out.writeInt(columns[idColumn].getInt(row));
+        for (Column column : columns) {
+            column.write(row, out);
+        }
+    }
+
+    /**
+     * Stores a row written by writeRow, an existing row with the same ID is overwritten
+     */
+    void readRow(DataInput in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            sortedIndexes.clear();
+            int id = in.readInt();
+            BlobStore.Blob oldMedia = getMedia(index.get(id));
+            int row = getRowForPut(id);
+            for (Column column : columns) {
+                column.read(row, in);
+            }
+            if (mediaColumn >= 0) {
+                replaceMedia(oldMedia, row);
+            }
+            int version = columns[versionColumn].getInt(row);
+            if (version > versions.get()) {
+                versions.set(version);
+            }
+            addForeignKeys(row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes all rows for a snapshot of the table, together with the next ID and version
+     */
+    void writeTo(DataOutput out) throws IOException {
+        lock.readLock().lock();
+        try {
+            out.writeInt(index.getNextId());
+            out.writeInt(versions.get());
+            out.writeInt(liveCount);
+            for (int row = 0; row < rowCount; row++) {
+                if (!deleted.get(row)) {
+                    writeRow(row, out);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the rows with the rows of a snapshot written by writeTo
+     */
+    void readFrom(DataInput in) throws IOException {
+        lock.writeLock().lock();
+        try {
+            clear();
+            index = new RowIndex(in.readInt());
+            versions.set(in.readInt());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                readRow(in);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /* RowSource, used by EntityQuery while the read lock is held */
+
+    @Override
+    public int getPositionCount() {
+        return rowCount;
+    }
+
+    @Override
+    public boolean exists(int position) {
+        return !deleted.get(position);
+    }
+
+    @Override
+    public int getId(int position) {
+        return columns[idColumn].getInt(position);
+    }
+
+    @Override
+    public int[] getSortedPositions(RowComparator orderBy) {
+        int[] sorted = sortedIndexes.get(orderBy);
+        if (sorted == null) {
+            sorted = EntityQuery.sort(this, orderBy);
+            if (sortedIndexes.size() >= MAX_SORTED_INDEXES) {
+                sortedIndexes.clear();
+            }
+            sortedIndexes.put(orderBy, sorted);
+        }
+        return sorted;
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new ColumnCursor();
+    }
+
+    /**
+     * Creates the entity of a row, with the properties in the order of the entity type
+     */
+    @Override
+    public Entity toEntity(int row) {
+        Entity entity = new Entity();
+        for (int column = 0; column < propertyNames.size(); column++) {
+            entity.addProperty(new Property(null, propertyNames.get(column), ValueType.PRIMITIVE,
+                    columns[column].getValue(row)));
+        }
+        if (mediaColumn >= 0) {
+            entity.setMediaContentType(columns[mediaContentTypeColumn].getString(row));
+            entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE,
+                    columns[mediaColumn].getValue(row)));
+        }
+        entity.setType(entityTypeName);
+        entity.setId(createId(columns[idColumn].getInt(row)));
+        entity.setETag("W/\"" + columns[versionColumn].getInt(row) + "\"");
+        return entity;
+    }
+
+    /* HELPER */
+
+    private Column[] createColumns(int capacity) {
+        this.capacity = capacity;
+        Column[] columns = new Column[versionColumn + 1];
+        for (int column = 0; column < propertyNames.size(); column++) {
+            columns[column] = Column.create(propertyTypes.get(column), capacity);
+        }
+        if (mediaColumn >= 0) {
+            columns[mediaContentTypeColumn] = new Column.StringColumn(capacity);
+            columns[mediaColumn] = new Column.BlobColumn(capacity);
+        }
+        columns[versionColumn] = new Column.IntColumn(capacity);
+        return columns;
+    }
+
+    /**
+     * Returns the media content of a row, null if the row doesn't exist or has no content
+     */
+    private BlobStore.Blob getMedia(int row) {
+        if (mediaColumn < 0 || row == RowIndex.NO_ROW) {
+            return null;
+        }
+        return (BlobStore.Blob) columns[mediaColumn].getValue(row);
+    }
+
+    /**
+     * Moves the reference of the row from its old media content to the new one. The new one
+     * is referenced first, it may be the same.
+     */
+    private void replaceMedia(BlobStore.Blob oldMedia, int row) {
+        if (blobs != null) {
+            blobs.reference(getMedia(row));
+            blobs.release(oldMedia);
+        }
+    }
+
+    private void releaseMedia(int row) {
+        if (blobs != null) {
+            blobs.release(getMedia(row));
+        }
+    }
+
+    /**
+     * Returns the row of the entity with the ID, a new row if there is none
+     */
+    private int getRowForPut(int id) {
+        int row = index.get(id);
+        if (row == RowIndex.NO_ROW) {
+            if (rowCount == capacity) {
+                grow(capacity * 2);
+            }
+            row = rowCount++;
+            liveCount++;
+            index.put(id, row);
+        } else {
+            removeForeignKeys(row);
+        }
+        return row;
+    }
+
+    private void grow(int newCapacity) {
+        for (Column column : columns) {
+            column.grow(newCapacity);
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * Moves the remaining rows together, in their order, and indexes them in the new index
+     */
+    private void compact(RowIndex newIndex) {
+        int to = 0;
+        for (int from = 0; from < rowCount; from++) {
+            if (deleted.get(from)) {
+                continue;
+            }
+            if (from != to) {
+                for (Column column : columns) {
+                    column.move(from, to);
+                }
+            }
+            newIndex.put(columns[idColumn].getInt(to), to);
+            to++;
+        }
+        // release the values of the rows which are not used any more
+        for (int row = to; row < rowCount; row++) {
+            for (Column column : columns) {
+                column.setValue(row, null);
+            }
+        }
+        deleted = new BitSet();
+        index = newIndex;
+        rowCount = to;
+        liveCount = to;
+        // the rows of truncated entities are gone as well
+        for (ForeignKeyIndex foreignKeyIndex : foreignKeyIndexes) {
+            foreignKeyIndex.clear();
+        }
+        for (int row = 0; row < rowCount; row++) {
+            addForeignKeys(row);
+        }
+    }
+
+    private void addForeignKeys(int row) {
+        for (int i = 0; i < foreignKeyColumns.length; i++) {
+            Column column = columns[foreignKeyColumns[i]];
+            if (!column.isNull(row)) {
+                foreignKeyIndexes[i].add(column.getInt(row), columns[idColumn].getInt(row));
+            }
+        }
+    }
+
+    private void removeForeignKeys(int row) {
+        for (int i = 0; i < foreignKeyColumns.length; i++) {
+            Column column = columns[foreignKeyColumns[i]];
+            if (!column.isNull(row)) {
+                foreignKeyIndexes[i].remove(column.getInt(row), columns[idColumn].getInt(row));
+            }
+        }
+    }
+
+    private URI createId(int id) {
+        try {
+            return new URI(entitySetName + "(" + id + ")");
+        } catch (URISyntaxException e) {
+            throw new ODataRuntimeException("Unable to create id for entity: " + entitySetName + "(" + id + ")", e);
+        }
+    }
+
+    /**
+     * Reads the values of the current row from the columns
+     */
+    private class ColumnCursor implements Cursor {
+
+        private int row;
+
+        @Override
+        public void moveTo(int position) {
+            row = position;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return columns[column].isNull(row);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return columns[column].getInt(row);
+        }
+
+        @Override
+        public String getString(int column) {
+            return columns[column].getString(row);
+        }
+
+        @Override
+        public Object getValue(int column) {
+            return columns[column].getValue(row);
+        }
+    }
+
+    /**
+     * Creates the entities with the given IDs one after the other
+     */
+    private class EntityIterator implements Iterator<Entity> {
+
+        private final int[] ids;
+        private int index;
+        private Entity next;
+
+        EntityIterator(int[] ids) {
+            this.ids = ids;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && index < ids.length) {
+                next = getEntity(ids[index++]);
+            }
+            return next != null;
+        }
+
+        @Override
+        public Entity next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entity entity = next;
+            next = null;
+            return entity;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
+}
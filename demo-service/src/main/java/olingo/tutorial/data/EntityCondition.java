@@ -0,0 +1,17 @@
+package olingo.tutorial.data;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * A condition on the current state of an entity, e.g. the If-Match header of a request.
+ * The Storage checks it under the write lock right before the entity is changed, so no other
+ * client can change the entity in between.
+ */
+public interface EntityCondition {
+
+    /**
+     * Throws an ODataApplicationException if the entity must not be changed
+     */
+    void check(Entity entity) throws ODataApplicationException;
+}
@@ -0,0 +1,15 @@
+package olingo.tutorial.data;
+
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The condition of a $filter expression, evaluated for one row at a time.
+ */
+public interface EntityFilter {
+
+    /**
+     * Returns true if the entity of the row belongs to the result.
+     * An ODataApplicationException reports an expression which can't be evaluated, e.g. because of wrong types.
+     */
+    boolean matches(Row row) throws ODataApplicationException;
+}
@@ -0,0 +1,396 @@
+package olingo.tutorial.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The system query options $filter, $orderby, $skip, $top and $count of a request,
+ * ready to be executed against the rows of an entity set.
+ *
+ * The options are applied in the order defined by OData: the filter first, then the count,
+ * the sort order and at last $skip and $top. The rows are visited only once, through a cursor,
+ * and only their positions are collected; entities are created for the rows of the result only:
+ * - without $orderby the scan stops as soon as $skip + $top rows have matched
+ *   (unless the count is requested, which needs all matches)
+ * - with $orderby and $top only the best $skip + $top rows are kept in a bounded heap,
+ *   so the costs are O(n log k) instead of sorting all matches
+ *
+ * Entities which are equal according to $orderby keep the order of the entity set,
+ * so paging through a sorted result neither skips nor repeats an entity.
+ *
+ * With a page size the result is split into pages (server-driven paging). A page ends with a
+ * $skiptoken, which holds the key of its last entity. The next page seeks this key with a binary
+ * search, in the rows themselves, which are sorted by ID, or in a sorted index for $orderby.
+ * So a page costs O(log n) plus the rows of the page, no matter how many pages came before.
+ */
+public final class EntityQuery {
+
+    public static final int NO_LIMIT = -1;
+
+    private final EntityFilter filter;
+    private final RowComparator orderBy;
+    private final int skip;
+    private final int top;
+    private final boolean count;
+    private final int pageSize;
+    private final SkipToken skipToken;
+
+    private EntityQuery(Builder builder) {
+        this.filter = builder.filter;
+        this.orderBy = builder.orderBy;
+        this.skip = builder.skip;
+        this.top = builder.top;
+        this.count = builder.count;
+        this.pageSize = builder.pageSize;
+        this.skipToken = builder.skipToken;
+    }
+
+    public static Builder with() {
+        return new Builder();
+    }
+
+    /**
+     * Executes the query against the given entities, which have to be in the order of the entity set,
+     * e.g. the result of a navigation.
+     *
+     * @param propertyNames the property names of the entity type, in the order of the entity type
+     */
+    public EntityStream stream(List<Entity> entities, List<String> propertyNames)
+            throws ODataApplicationException {
+        EntityRows rows = new EntityRows(entities, propertyNames);
+        Selection selection = select(rows);
+        List<Entity> result = new ArrayList<>(selection.positions.size());
+        for (int position : selection.positions) {
+            result.add(rows.toEntity(position));
+        }
+        return new EntityStream(result.iterator(), selection.count, selection.nextToken);
+    }
+
+    /**
+     * Executes the query against the rows, the entities are only created for the rows of the result.
+     */
+    EntityCollection execute(RowSource rows) throws ODataApplicationException {
+        Selection selection = select(rows);
+
+        EntityCollection entityCollection = new EntityCollection();
+        List<Entity> entities = entityCollection.getEntities();
+        for (int position : selection.positions) {
+            entities.add(rows.toEntity(position));
+        }
+        entityCollection.setCount(selection.count);
+        return entityCollection;
+    }
+
+    /**
+     * Returns the positions of the rows of the result, in the order of the result
+     */
+    Selection select(RowSource rows) throws ODataApplicationException {
+        if (pageSize > 0 || skipToken != null) {
+            return selectPage(rows);
+        }
+
+        // number of entities which have to be found, counting the skipped ones as well
+        long limit = top == NO_LIMIT ? Long.MAX_VALUE : (long) skip + top;
+        int positionCount = rows.getPositionCount();
+        RowSource.Cursor row = rows.cursor();
+
+        List<Integer> result;
+        int matchCount = 0;
+        if (orderBy == null) {
+            result = new ArrayList<>();
+            for (int position = 0; position < positionCount; position++) {
+                if (!matches(rows, row, position)) {
+                    continue;
+                }
+                matchCount++;
+                if (matchCount > skip && matchCount <= limit) {
+                    result.add(position);
+                } else if (matchCount > limit && !count) {
+                    break;
+                }
+            }
+        } else if (limit < Integer.MAX_VALUE) {
+            // keep the best rows in a heap, the worst of them on top, so it can be replaced quickly
+            Comparator<Integer> ranking = new PositionComparator(rows, orderBy);
+            PriorityQueue<Integer> heap = new PriorityQueue<>((int) Math.min(limit + 1, 1024), 
+                    Collections.reverseOrder(ranking));
+            for (int position = 0; position < positionCount; position++) {
+                if (!matches(rows, row, position)) {
+                    continue;
+                }
+                matchCount++;
+                if (heap.size() < limit) {
+                    heap.add(position);
+                } else if (limit > 0 && ranking.compare(position, heap.peek()) < 0) {
+                    heap.poll();
+                    heap.add(position);
+                }
+            }
+            List<Integer> best = new ArrayList<>(heap);
+            Collections.sort(best, ranking);
+            result = skip < best.size() ? best.subList(skip, best.size()) : Collections.<Integer>emptyList();
+        } else {
+            // no $top, all matches have to be sorted anyway
+            List<Integer> matches = new ArrayList<>();
+            for (int position = 0; position < positionCount; position++) {
+                if (matches(rows, row, position)) {
+                    matches.add(position);
+                }
+            }
+            matchCount = matches.size();
+            Collections.sort(matches, new PositionComparator(rows, orderBy));
+            result = skip < matches.size() ? matches.subList(skip, matches.size()) : Collections.<Integer>emptyList();
+        }
+
+        return new Selection(result, count ? matchCount : null, null);
+    }
+
+    /**
+     * Returns the positions of the rows of one page. The first page starts after $skip matches,
+     * the following pages right after the key of the skip token.
+     */
+    private Selection selectPage(RowSource rows) throws ODataApplicationException {
+        RowSource.Cursor row = rows.cursor();
+        // without $orderby the rows are visited in their order, otherwise in the order of the sorted index
+        int[] sorted = orderBy == null ? null : rows.getSortedPositions(orderBy);
+        int end = sorted == null ? rows.getPositionCount() : sorted.length;
+
+        int start = 0;
+        int toSkip = skip;
+        int remaining = top;
+        if (skipToken != null) {
+            if (!skipToken.isFor(orderBy)) {
+                throw new ODataApplicationException("The $skiptoken doesn't belong to this $orderby", 
+                        HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
+            }
+            // $skip has been applied by the first page, $top is counted down by the tokens
+            start = seek(rows, sorted, end);
+            toSkip = 0;
+            remaining = skipToken.getRemaining();
+        }
+        long pageLimit = pageSize > 0 ? pageSize : Long.MAX_VALUE;
+        if (remaining != NO_LIMIT) {
+            pageLimit = Math.min(pageLimit, remaining);
+        }
+
+        List<Integer> result = new ArrayList<>();
+        boolean more = false;
+        for (int i = start; i < end; i++) {
+            int position = sorted == null ? i : sorted[i];
+            if (!matches(rows, row, position)) {
+                continue;
+            }
+            if (toSkip > 0) {
+                toSkip--;
+            } else if (result.size() < pageLimit) {
+                result.add(position);
+            } else {
+                more = true;
+                break;
+            }
+        }
+
+        SkipToken nextToken = null;
+        int left = remaining == NO_LIMIT ? NO_LIMIT : remaining - result.size();
+        if (more && left != 0) {
+            int last = result.get(result.size() - 1);
+            row.moveTo(last);
+            nextToken = SkipToken.create(row, rows.getId(last), orderBy, left);
+        }
+
+        Integer matchCount = null;
+        if (count) {
+            matchCount = 0;
+            for (int position = 0; position < rows.getPositionCount(); position++) {
+                if (matches(rows, row, position)) {
+                    matchCount++;
+                }
+            }
+        }
+        return new Selection(result, matchCount, nextToken);
+    }
+
+    /**
+     * Returns the index of the first row after the key of the skip token, by binary search
+     */
+    private int seek(RowSource rows, int[] sorted, int end) {
+        Row key = skipToken.getKey();
+        RowSource.Cursor row = rows.cursor();
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int position = sorted == null ? middle : sorted[middle];
+            int result = 0;
+            if (orderBy != null) {
+                row.moveTo(position);
+                result = orderBy.compare(row, key);
+            }
+            if (result == 0) {
+                result = Integer.compare(rows.getId(position), skipToken.getId());
+            }
+            if (result <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the positions of all existing rows, sorted by orderBy and then by position
+     */
+    static int[] sort(RowSource rows, Comparator<Row> orderBy) {
+        List<Integer> positions = new ArrayList<>();
+        for (int position = 0; position < rows.getPositionCount(); position++) {
+            if (rows.exists(position)) {
+                positions.add(position);
+            }
+        }
+        Collections.sort(positions, new PositionComparator(rows, orderBy));
+        int[] sorted = new int[positions.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = positions.get(i);
+        }
+        return sorted;
+    }
+
+    private boolean matches(RowSource rows, RowSource.Cursor row, int position) throws ODataApplicationException {
+        if (!rows.exists(position)) {
+            return false;
+        }
+        row.moveTo(position);
+        return filter == null || filter.matches(row);
+    }
+
+    public static class Builder {
+
+        private EntityFilter filter;
+        private RowComparator orderBy;
+        private int skip;
+        private int top = NO_LIMIT;
+        private boolean count;
+        private int pageSize;
+        private SkipToken skipToken;
+
+        private Builder() {
+        }
+
+        /**
+         * Only entities matching the filter are returned, all entities if the filter is null
+         */
+        public Builder filter(EntityFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Sorts the result, the order of the entity set is kept if the comparator is null
+         */
+        public Builder orderBy(RowComparator orderBy) {
+            this.orderBy = orderBy;
+            return this;
+        }
+
+        public Builder skip(int skip) {
+            if (skip < 0) {
+                throw new IllegalArgumentException("skip must not be negative");
+            }
+            this.skip = skip;
+            return this;
+        }
+
+        /**
+         * Returns at most top entities, NO_LIMIT returns all entities
+         */
+        public Builder top(int top) {
+            if (top < 0 && top != NO_LIMIT) {
+                throw new IllegalArgumentException("top must not be negative");
+            }
+            this.top = top;
+            return this;
+        }
+
+        /**
+         * Sets the number of all entities matching the filter at the result
+         */
+        public Builder count(boolean count) {
+            this.count = count;
+            return this;
+        }
+
+        /**
+         * Returns at most pageSize entities and a skip token for the rest, 0 returns all entities at once
+         */
+        public Builder pageSize(int pageSize) {
+            if (pageSize < 0) {
+                throw new IllegalArgumentException("pageSize must not be negative");
+            }
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * Continues the result after the page which returned the token, $skip is ignored then
+         */
+        public Builder skipToken(SkipToken skipToken) {
+            this.skipToken = skipToken;
+            return this;
+        }
+
+        public EntityQuery build() {
+            return new EntityQuery(this);
+        }
+    }
+
+    /**
+     * The positions of the rows of a result, the number of all matches if the count is requested
+     * and the skip token of the next page if there is one
+     */
+    static final class Selection {
+
+        final List<Integer> positions;
+        final Integer count;
+        final SkipToken nextToken;
+
+        Selection(List<Integer> positions, Integer count, SkipToken nextToken) {
+            this.positions = positions;
+            this.count = count;
+            this.nextToken = nextToken;
+        }
+    }
+
+    /**
+     * Compares the rows at two positions, rows which are equal according to $orderby keep their order
+     */
+    private static final class PositionComparator implements Comparator<Integer> {
+
+        private final Comparator<Row> orderBy;
+        private final RowSource.Cursor row1;
+        private final RowSource.Cursor row2;
+
+        PositionComparator(RowSource rows, Comparator<Row> orderBy) {
+            this.orderBy = orderBy;
+            this.row1 = rows.cursor();
+            this.row2 = rows.cursor();
+        }
+
+        @Override
+        public int compare(Integer position1, Integer position2) {
+            row1.moveTo(position1);
+            row2.moveTo(position2);
+            int result = orderBy.compare(row1, row2);
+            return result != 0 ? result : Integer.compare(position1, position2);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package olingo.tutorial.data;
+
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+
+/**
+ * Rows on top of a list of entities, e.g. the result of a navigation or a function.
+ */
+class EntityRows implements RowSource {
+
+    private final List<Entity> entities;
+    private final List<String> propertyNames;
+
+    /**
+     * @param propertyNames the property names of the entity type, which define the column positions
+     */
+    EntityRows(List<Entity> entities, List<String> propertyNames) {
+        this.entities = entities;
+        this.propertyNames = propertyNames;
+    }
+
+    @Override
+    public int getPositionCount() {
+        return entities.size();
+    }
+
+    @Override
+    public boolean exists(int position) {
+        return true;
+    }
+
+    @Override
+    public int getId(int position) {
+        return (Integer) entities.get(position).getProperty("ID").getValue();
+    }
+
+    @Override
+    public int[] getSortedPositions(RowComparator orderBy) {
+        return EntityQuery.sort(this, orderBy);
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new EntityCursor();
+    }
+
+    @Override
+    public Entity toEntity(int position) {
+        return entities.get(position);
+    }
+
+    private class EntityCursor implements Cursor {
+
+        private Entity entity;
+
+        @Override
+        public void moveTo(int position) {
+            entity = entities.get(position);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return getValue(column) == null;
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (Integer) getValue(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return (String) getValue(column);
+        }
+
+        @Override
+        public Object getValue(int column) {
+            // the entities normally have their properties in the order of the entity type,
+            // otherwise the property is searched by name
+            String name = propertyNames.get(column);
+            List<Property> properties = entity.getProperties();
+            Property property;
+            if (column < properties.size() && name.equals(properties.get(column).getName())) {
+                property = properties.get(column);
+            } else {
+                property = entity.getProperty(name);
+            }
+            return property == null ? null : property.getValue();
+        }
+    }
+}
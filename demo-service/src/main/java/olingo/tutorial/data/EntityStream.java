@@ -0,0 +1,69 @@
+package olingo.tutorial.data;
+
+import java.net.URI;
+import java.util.Iterator;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The entities of a result, handed out one by one. A stream from the Storage creates each entity
+ * only when it is requested, so the response can be serialized while the entities are read.
+ *
+ * If the result is one page of a larger result, the stream has the skip token of the next page.
+ * Like an EntityCollection it takes the next link, which the processor builds from the token.
+ */
+public class EntityStream implements Iterator<Entity> {
+
+    private final Iterator<Entity> entities;
+    private final Integer count;
+    private final SkipToken skipToken;
+    private URI next;
+
+    /**
+     * @param count the number of all matches for $count, null if the count isn't requested
+     */
+    public EntityStream(Iterator<Entity> entities, Integer count) {
+        this(entities, count, null);
+    }
+
+    /**
+     * @param count the number of all matches for $count, null if the count isn't requested
+     * @param skipToken the token of the next page, null if this is the last page
+     */
+    public EntityStream(Iterator<Entity> entities, Integer count, SkipToken skipToken) {
+        this.entities = entities;
+        this.count = count;
+        this.skipToken = skipToken;
+    }
+
+    public Integer getCount() {
+        return count;
+    }
+
+    public SkipToken getSkipToken() {
+        return skipToken;
+    }
+
+    public URI getNext() {
+        return next;
+    }
+
+    public void setNext(URI next) {
+        this.next = next;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return entities.hasNext();
+    }
+
+    @Override
+    public Entity next() {
+        return entities.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+}
@@ -0,0 +1,57 @@
+package olingo.tutorial.data;
+
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The entities of one entity set, as the Storage reads and writes them. This is either the
+ * committed data of a ColumnTable or the private version of a change set, see TableChanges.
+ * The entities handed out are copies, changing them doesn't change the table.
+ */
+interface EntityTable {
+
+    /**
+     * Returns all entities in the order of their IDs
+     */
+    List<Entity> getEntities();
+
+    /**
+     * Returns the entity with the ID or null
+     */
+    Entity getEntity(int id);
+
+    EntityCollection query(EntityQuery query) throws ODataApplicationException;
+
+    EntityStream stream(EntityQuery query) throws ODataApplicationException;
+
+    int size();
+
+    /**
+     * Returns the IDs of the entities whose foreign key has the value, in ascending order.
+     * Only the foreign keys of referential constraints can be searched.
+     */
+    int[] findIds(String foreignKeyName, int value);
+
+    /**
+     * Returns the ID for a new entity, which is higher than the IDs of all entities
+     */
+    int getNextId();
+
+    /**
+     * Stores the entity, an existing entity with the same ID is overwritten
+     */
+    void putEntity(Entity entity);
+
+    void removeEntity(Entity entity);
+
+    void clear();
+
+    /**
+     * Keeps the first entities in the order of their IDs and removes all others.
+     * The IDs of the removed entities can be used again.
+     */
+    void truncate(int amount);
+}
@@ -0,0 +1,88 @@
+package olingo.tutorial.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reverse index of a foreign key column, maps a value of the foreign key to the IDs of the
+ * entities which refer to it, e.g. the ID of a category to the IDs of its products.
+ *
+ * The IDs of each value are kept in a sorted int array, so the entities of a value are found in
+ * constant time plus the number of entities, in the order of their IDs. New entities have the
+ * highest IDs, adding them only appends them to the array. The index doesn't synchronize, the
+ * ColumnTable guards it.
+ */
+class ForeignKeyIndex {
+
+    private static final int[] NO_IDS = new int[0];
+
+    private final Map<Integer, IdList> idLists = new HashMap<>();
+
+    /**
+     * Returns the IDs of the entities with the foreign key value, in ascending order
+     */
+    int[] get(int value) {
+        IdList idList = idLists.get(value);
+        return idList == null ? NO_IDS : Arrays.copyOf(idList.ids, idList.size);
+    }
+
+    void add(int value, int id) {
+        IdList idList = idLists.get(value);
+        if (idList == null) {
+            idList = new IdList();
+            idLists.put(value, idList);
+        }
+        idList.add(id);
+    }
+
+    void remove(int value, int id) {
+        IdList idList = idLists.get(value);
+        if (idList != null && idList.remove(id) && idList.size == 0) {
+            idLists.remove(value);
+        }
+    }
+
+    void clear() {
+        idLists.clear();
+    }
+
+    /**
+     * A sorted set of IDs
+     */
+    private static final class IdList {
+
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] < id) {
+                insert(size, id);
+                return;
+            }
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0) {
+                insert(-position - 1, id);
+            }
+        }
+
+        boolean remove(int id) {
+            int position = Arrays.binarySearch(ids, 0, size, id);
+            if (position < 0) {
+                return false;
+            }
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            size--;
+            return true;
+        }
+
+        private void insert(int position, int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            ids[position] = id;
+            size++;
+        }
+    }
+}
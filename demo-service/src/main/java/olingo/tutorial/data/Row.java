@@ -0,0 +1,27 @@
+package olingo.tutorial.data;
+
+/**
+ * Read access to the property values of one entity, used to evaluate $filter and $orderby.
+ *
+ * The properties are addressed by their position in the entity type. The column store provides
+ * the values straight from its columns, without creating an Entity object for each row.
+ */
+public interface Row {
+
+    boolean isNull(int column);
+
+    /**
+     * Returns the value of an Edm.Int32 property, which must not be null
+     */
+    int getInt(int column);
+
+    /**
+     * Returns the value of an Edm.String property or null
+     */
+    String getString(int column);
+
+    /**
+     * Returns the value of a property of any type or null
+     */
+    Object getValue(int column);
+}
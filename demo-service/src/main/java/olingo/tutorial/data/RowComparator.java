@@ -0,0 +1,76 @@
+package olingo.tutorial.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compares rows by the properties of $orderby, null values are sorted first.
+ * Int32 properties are compared as primitive ints, without reading boxed values.
+ *
+ * The comparator knows its sort columns, so a $skiptoken can store the sort values of the last
+ * entity of a page. Comparators with the same sort columns are equal, the ColumnTable uses them
+ * as key of its sorted indexes.
+ */
+public final class RowComparator implements Comparator<Row> {
+
+    private final int[] columns;
+    private final boolean[] intColumns;
+    private final boolean[] descending;
+
+    /**
+     * @param columns the sort columns, the most significant first
+     * @param intColumns true for the sort columns holding Int32 values
+     * @param descending true for the sort columns which are sorted in descending order
+     */
+    public RowComparator(int[] columns, boolean[] intColumns, boolean[] descending) {
+        if (columns.length != intColumns.length || columns.length != descending.length) {
+            throw new IllegalArgumentException("columns, intColumns and descending must have the same length");
+        }
+        this.columns = columns.clone();
+        this.intColumns = intColumns.clone();
+        this.descending = descending.clone();
+    }
+
+    int[] getColumns() {
+        return columns.clone();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public int compare(Row o1, Row o2) {
+        for (int i = 0; i < columns.length; i++) {
+            int column = columns[i];
+            boolean null1 = o1.isNull(column);
+            boolean null2 = o2.isNull(column);
+            int result;
+            if (null1 || null2) {
+                result = null1 == null2 ? 0 : (null1 ? -1 : 1);
+            } else if (intColumns[i]) {
+                result = Integer.compare(o1.getInt(column), o2.getInt(column));
+            } else {
+                result = ((Comparable) o1.getValue(column)).compareTo(o2.getValue(column));
+            }
+            if (result != 0) {
+                return descending[i] ? -result : result;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof RowComparator)) {
+            return false;
+        }
+        RowComparator other = (RowComparator) obj;
+        return Arrays.equals(columns, other.columns) && Arrays.equals(intColumns, other.intColumns)
+                && Arrays.equals(descending, other.descending);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(columns) + Arrays.hashCode(descending);
+    }
+}
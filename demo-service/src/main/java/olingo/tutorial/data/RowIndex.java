@@ -0,0 +1,147 @@
+package olingo.tutorial.data;
+
+import java.util.Arrays;
+
+/**
+ * Primary key index of an entity set, maps the Int32 ID of an entity to its row in the ColumnTable.
+ *
+ * The index is an open addressing hash table with linear probing on plain arrays, so a lookup
+ * takes constant time and neither boxes the key nor allocates anything. The index doesn't
+ * synchronize, the ColumnTable guards it.
+ *
+ * The index also hands out the IDs of new entities. It remembers the highest ID it has seen,
+ * so a new ID is found in constant time and the IDs of deleted entities are not reused.
+ */
+class RowIndex {
+
+    static final int NO_ROW = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // a slot is free if its row is NO_ROW, so every int can be used as key
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private int[] rows = newRows(INITIAL_CAPACITY);
+    private int size;
+    // one above the highest ID put into the index
+    private int nextId;
+
+    RowIndex() {
+        this(1);
+    }
+
+    /**
+     * Creates an empty index, which hands out IDs starting at nextId
+     */
+    RowIndex(int nextId) {
+        this.nextId = nextId;
+    }
+
+    /**
+     * Returns the row of the entity with the ID or NO_ROW
+     */
+    int get(int id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (rows[slot] != NO_ROW) {
+            if (keys[slot] == id) {
+                return rows[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_ROW;
+    }
+
+    /**
+     * Returns the ID for a new entity, which isn't used by any entity in the index
+     */
+    int getNextId() {
+        return nextId;
+    }
+
+    void put(int id, int row) {
+        if (id >= nextId) {
+            nextId = id + 1;
+        }
+        // keep the load factor below 0.5, so the probe sequences stay short
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (rows[slot] != NO_ROW) {
+            if (keys[slot] == id) {
+                rows[slot] = row;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        rows[slot] = row;
+        size++;
+    }
+
+    void remove(int id) {
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (rows[slot] != NO_ROW && keys[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        if (rows[slot] == NO_ROW) {
+            return;
+        }
+        rows[slot] = NO_ROW;
+        size--;
+
+        // move the following entries of the probe sequence back, so that no lookup stops early
+        // at the slot which just became free
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mask;
+            if (rows[next] == NO_ROW) {
+                break;
+            }
+            int home = hash(keys[next]) & mask;
+            boolean reachable = next > slot
+                    ? home > slot && home <= next
+                    : home > slot || home <= next;
+            if (!reachable) {
+                keys[slot] = keys[next];
+                rows[slot] = rows[next];
+                rows[next] = NO_ROW;
+                slot = next;
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldRows = rows;
+        int[] newKeys = new int[capacity];
+        int[] newRows = newRows(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldRows[i] != NO_ROW) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (newRows[slot] != NO_ROW) {
+                    slot = (slot + 1) & mask;
+                }
+                newKeys[slot] = oldKeys[i];
+                newRows[slot] = oldRows[i];
+            }
+        }
+        keys = newKeys;
+        rows = newRows;
+    }
+
+    private static int[] newRows(int capacity) {
+        int[] rows = new int[capacity];
+        Arrays.fill(rows, NO_ROW);
+        return rows;
+    }
+
+    private static int hash(int id) {
+        // IDs are mostly consecutive numbers, spread them over the table
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
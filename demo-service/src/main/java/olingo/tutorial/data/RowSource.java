@@ -0,0 +1,44 @@
+package olingo.tutorial.data;
+
+import org.apache.olingo.commons.api.data.Entity;
+
+/**
+ * The rows a query is executed on. The rows are addressed by their position, which is also
+ * their order in the entity set; positions of deleted rows are skipped. The entity set is in
+ * the order of the IDs, so the rows are sorted by ID as well.
+ */
+interface RowSource {
+
+    /**
+     * Returns the number of positions, including the positions of deleted rows
+     */
+    int getPositionCount();
+
+    boolean exists(int position);
+
+    /**
+     * Returns the ID of the row at the position, also for deleted rows
+     */
+    int getId(int position);
+
+    /**
+     * Returns the positions of all existing rows, sorted by orderBy and then by position.
+     * The array must not be changed, it may be shared by several queries.
+     */
+    int[] getSortedPositions(RowComparator orderBy);
+
+    /**
+     * Returns a new cursor, which can be moved to any position
+     */
+    Cursor cursor();
+
+    /**
+     * Creates the entity of the row at the position, for the result of a query
+     */
+    Entity toEntity(int position);
+
+    interface Cursor extends Row {
+
+        void moveTo(int position);
+    }
+}
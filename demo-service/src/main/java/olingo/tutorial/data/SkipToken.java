@@ -0,0 +1,200 @@
+package olingo.tutorial.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The position after the last entity of a page, the value of $skiptoken in the next link.
+ *
+ * The token holds the key of the last entity: its ID and its values of the $orderby columns.
+ * The next page starts with the first entity which is sorted after this key, the query seeks
+ * this entity instead of skipping all entities of the previous pages. As the token doesn't refer
+ * to a position in the table, it stays valid if entities are added or deleted in between.
+ *
+ * The token also remembers how many entities $top still allows. Clients must treat the
+ * token as opaque, it is encoded as base64url so it can be used in a URL as is.
+ */
+public final class SkipToken {
+
+    private static final byte VERSION = 1;
+    private static final byte NULL_VALUE = 'n';
+    private static final byte INT_VALUE = 'i';
+    private static final byte STRING_VALUE = 's';
+    private static final byte TIMESTAMP_VALUE = 't';
+
+    private final int id;
+    private final int remaining;
+    private final int[] columns;
+    private final Object[] values;
+
+    private SkipToken(int id, int remaining, int[] columns, Object[] values) {
+        this.id = id;
+        this.remaining = remaining;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Creates the token for the row, the last one of a page
+     *
+     * @param orderBy the sort order of the query, null if the result is in the order of the entity set
+     * @param remaining the number of entities $top allows for the next pages, or EntityQuery.NO_LIMIT
+     */
+    static SkipToken create(Row row, int id, RowComparator orderBy, int remaining) {
+        int[] columns = orderBy == null ? new int[0] : orderBy.getColumns();
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            values[i] = row.getValue(columns[i]);
+        }
+        return new SkipToken(id, remaining, columns, values);
+    }
+
+    /**
+     * Decodes the value of $skiptoken
+     */
+    public static SkipToken parse(String token) throws ODataApplicationException {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+            if (in.readByte() != VERSION) {
+                throw invalidToken(null);
+            }
+            int id = in.readInt();
+            int remaining = in.readInt();
+            int count = in.readUnsignedByte();
+            int[] columns = new int[count];
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                columns[i] = in.readUnsignedByte();
+                byte type = in.readByte();
+                if (type == INT_VALUE) {
+                    values[i] = in.readInt();
+                } else if (type == STRING_VALUE) {
+                    values[i] = in.readUTF();
+                } else if (type == TIMESTAMP_VALUE) {
+                    values[i] = new Timestamp(in.readLong());
+                } else if (type != NULL_VALUE) {
+                    throw invalidToken(null);
+                }
+            }
+            if (in.available() > 0) {
+                throw invalidToken(null);
+            }
+            return new SkipToken(id, remaining, columns, values);
+        } catch (IOException | IllegalArgumentException e) {
+            throw invalidToken(e);
+        }
+    }
+
+    /**
+     * Encodes the token as value of $skiptoken
+     */
+    public String format() throws ODataApplicationException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VERSION);
+            out.writeInt(id);
+            out.writeInt(remaining);
+            out.writeByte(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                out.writeByte(columns[i]);
+                Object value = values[i];
+                if (value == null) {
+                    out.writeByte(NULL_VALUE);
+                } else if (value instanceof Integer) {
+                    out.writeByte(INT_VALUE);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof String) {
+                    out.writeByte(STRING_VALUE);
+                    out.writeUTF((String) value);
+                } else if (value instanceof Date) {
+                    out.writeByte(TIMESTAMP_VALUE);
+                    out.writeLong(((Date) value).getTime());
+                } else if (value instanceof Calendar) {
+                    out.writeByte(TIMESTAMP_VALUE);
+                    out.writeLong(((Calendar) value).getTimeInMillis());
+                } else {
+                    throw new ODataApplicationException("Server-driven paging is not supported for $orderby on "
+                            + value.getClass().getSimpleName() + " values",
+                            HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new ODataApplicationException("Unable to create $skiptoken",
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH, e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Returns the ID of the last entity of the previous page
+     */
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the number of entities $top allows for this and the following pages, or EntityQuery.NO_LIMIT
+     */
+    int getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Returns true if the token was created for a query with this sort order
+     */
+    boolean isFor(RowComparator orderBy) {
+        return Arrays.equals(columns, orderBy == null ? new int[0] : orderBy.getColumns());
+    }
+
+    /**
+     * Returns the key as row, it has values for the sort columns only
+     */
+    Row getKey() {
+        return new Row() {
+
+            @Override
+            public boolean isNull(int column) {
+                return getValue(column) == null;
+            }
+
+            @Override
+            public int getInt(int column) {
+                return (Integer) getValue(column);
+            }
+
+            @Override
+            public String getString(int column) {
+                return (String) getValue(column);
+            }
+
+            @Override
+            public Object getValue(int column) {
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] == column) {
+                        return values[i];
+                    }
+                }
+                throw new IllegalArgumentException("The $skiptoken has no value for column " + column);
+            }
+        };
+    }
+
+    private static ODataApplicationException invalidToken(Exception cause) {
+        return new ODataApplicationException("Invalid value for $skiptoken",
+                HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT, cause);
+    }
+}
@@ -1,11 +1,24 @@
 package olingo.tutorial.data;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
@@ -27,98 +40,365 @@ import org.apache.olingo.server.api.uri.UriResourceFunction;
 import olingo.tutorial.service.DemoEdmProvider;
 import olingo.tutorial.util.Util;
 
+/**
+ * The data of the service. One instance can be shared by all clients: the entity sets are
+ * column tables, which run queries on their columns under a read lock, while writers (and the
+ * change sets of a batch request) are serialized by a write lock. The entities handed out by the
+ * storage are copies of the stored data.
+ *
+ * A change set works on a private version of the tables: its writes go to TableChanges, which
+ * only hold the written rows, and the other clients don't see them before the commit.
+ * Beginning a change set copies nothing, a rollback just drops the changes.
+ *
+ * Every write gives the entity a new version, its ETag. Modifications can be made conditional,
+ * the EntityCondition is checked under the write lock against the current entity.
+ *
+ * StorageListeners are told which entity sets have changed, e.g. to drop cached responses.
+ *
+ * A storage created with a directory is persistent: the modifications of the committed tables
+ * are written to a StorageLog in the directory, and a new storage for the same directory
+ * recovers the data. A write returns once its modifications are on the disk, see unlock.
+ * Other clients may read the modifications before.
+ *
+ * The media content of the advertisements is kept off the heap in a BlobStore, the entities only
+ * refer to it. A persistent storage keeps the blobs in the directory as well. Advertisements with
+ * the same content share one blob, which is freed when the last of them is deleted or gets
+ * another content.
+ */
 public class Storage {
-    
-    private static final String MEDIA_PROPERTY_NAME = "$value";
 
-    private List<Entity> productList;
-    private List<Entity> categoryList;
-    private List<Entity> advertisementList;
+    private static final String MEDIA_PROPERTY_NAME = ColumnTable.MEDIA_PROPERTY_NAME;
+
+    private final ColumnTable productTable = 
+            new ColumnTable(DemoEdmProvider.ES_PRODUCTS_NAME, DemoEdmProvider.ET_PRODUCT_FQN);
+    private final ColumnTable categoryTable = 
+            new ColumnTable(DemoEdmProvider.ES_CATEGORIES_NAME, DemoEdmProvider.ET_CATEGORY_FQN);
+    private final ColumnTable advertisementTable = 
+            new ColumnTable(DemoEdmProvider.ES_ADVERTISEMENTS_NAME, DemoEdmProvider.ET_ADVERTISEMENT_FQN);
+
+    // held by the thread which modifies the data, for a change set from begin to commit/rollback
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final List<StorageListener> listeners = new CopyOnWriteArrayList<>();
+    // null if the data is only kept in memory
+    private final StorageLog log;
+    private final BlobStore blobs;
 
     public Storage() {
-        productList = new ArrayList<>();
-        categoryList = new ArrayList<>();
-        advertisementList = new ArrayList<>();
+        log = null;
+        blobs = new BlobStore();
+        advertisementTable.setBlobStore(blobs);
         initProductSampleData();
         initCategorySampleData();
         initAdvertisementSampleData();
     }
 
-    private List<Entity> productListBeforeTransaction;
-    private List<Entity> categoryListBeforeTransaction;
-    private List<Entity> advertisementListBeforeTransaction;
+    /**
+     * Creates a persistent storage, which recovers the data from the directory. A new directory
+     * starts with the sample data.
+     *
+     * @param checkpointLogSize the number of bytes the log may grow before a snapshot of the data is written
+     */
+    public Storage(File directory, long checkpointLogSize) throws IOException {
+        blobs = new BlobStore(new File(directory, "media"), BlobStore.DEFAULT_SEGMENT_SIZE);
+        advertisementTable.setBlobStore(blobs);
+        log = new StorageLog(directory, checkpointLogSize, 
+                Arrays.asList(productTable, categoryTable, advertisementTable));
+        if (!log.recover()) {
+            initProductSampleData();
+            initCategorySampleData();
+            initAdvertisementSampleData();
+            blobs.force();
+            log.checkpoint();
+        }
+        // e.g. the segments of uploads which didn't end or were removed before the snapshot
+        blobs.releaseUnreferencedSegments();
+        blobs.deleteSegments(blobs.takeReleasedSegments());
+        log.attach();
+    }
+
+    /**
+     * Closes the log of a persistent storage, all writes which returned are on the disk already
+     */
+    public void close() throws IOException {
+        if (log != null) {
+            writeLock.lock();
+            try {
+                blobs.close();
+                log.close();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    // the changes of the running change set per table, only used by the thread holding the write lock
+    private Map<ColumnTable, TableChanges> changeSet;
+    // the entity sets the running change set has modified, the listeners are notified on commit
+    private Set<String> changedEntitySets;
+    // the blobs written by the running write, which hold a reference until the outermost write ends
+    private final List<BlobStore.Blob> writtenBlobs = new ArrayList<>();
 
     public void beginTransaction() throws ODataApplicationException {
-        if (productListBeforeTransaction != null
-                || categoryListBeforeTransaction != null
-                || advertisementListBeforeTransaction != null) {
+        if (writeLock.isHeldByCurrentThread()) {
             throw new ODataApplicationException("Transaction in progress",
                     HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
-        productListBeforeTransaction = cloneEntityCollection(productList);
-        categoryListBeforeTransaction = cloneEntityCollection(categoryList);
-        advertisementListBeforeTransaction = cloneEntityCollection(advertisementList); 
+        // wait for the transactions of other clients
+        writeLock.lock();
+        changeSet = new IdentityHashMap<>();
+        changedEntitySets = new LinkedHashSet<>();
     }
 
     public void commitTransaction() throws ODataApplicationException {
-        if (productListBeforeTransaction == null
-                || categoryListBeforeTransaction == null
-                || advertisementListBeforeTransaction == null) {        
-            throw new ODataApplicationException("There is no transaction in progress to commit",
-                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+        checkTransaction("There is no transaction in progress to commit");
+        for (TableChanges changes : changeSet.values()) {
+            changes.commit();
+        }
+        Set<String> changed = changedEntitySets;
+        changeSet = null;
+        changedEntitySets = null;
+        try {
+            for (String entitySetName : changed) {
+                fireEntitySetChanged(entitySetName);
+            }
+        } finally {
+            unlock();
         }
-        productListBeforeTransaction = null;
-        categoryListBeforeTransaction = null;
-        advertisementListBeforeTransaction = null;
     }
 
     public void rollbackTranscation() throws ODataApplicationException {
-        if (productListBeforeTransaction == null
-                || categoryListBeforeTransaction == null
-                || advertisementListBeforeTransaction == null) {        
-            throw new ODataApplicationException("There is no transaction in progress to rollback",
+        checkTransaction("There is no transaction in progress to rollback");
+        changeSet = null;
+        changedEntitySets = null;
+        unlock();
+    }
+
+    private void checkTransaction(String message) throws ODataApplicationException {
+        if (!writeLock.isHeldByCurrentThread() || changeSet == null) {
+            throw new ODataApplicationException(message,
                     HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
-        productList = productListBeforeTransaction;
-        productListBeforeTransaction = null;
-        categoryList = categoryListBeforeTransaction;
-        categoryListBeforeTransaction = null;
-        advertisementList = advertisementListBeforeTransaction;
-        advertisementListBeforeTransaction = null;
     }
 
-    private List<Entity> cloneEntityCollection(List<Entity> entities) {
-        List<Entity> clonedEntities = new ArrayList<>();
+    /**
+     * Releases the write lock. If the storage is persistent and the outermost write ends, its
+     * modifications are appended to the log as one record before, and the method returns when
+     * the record is on the disk. The lock isn't held while waiting for the disk, so the next
+     * writers can append their records and are written together with this one. The blobs of
+     * the write are forced before, while the lock is still held, so no record which refers to
+     * them can be on the disk before them.
+     *
+     * The written blobs give up their references when the outermost write ends, e.g. after the
+     * commit of the change set, and blob segments without references are deleted once the
+     * records which removed the references are on the disk.
+     */
+    private void unlock() {
+        if (writeLock.getHoldCount() > 1) {
+            writeLock.unlock();
+            return;
+        }
+        long record = 0;
+        List<Integer> releasedSegments;
+        StorageLog.Checkpoint checkpoint = null;
+        try {
+            for (BlobStore.Blob blob : writtenBlobs) {
+                blobs.release(blob);
+            }
+            writtenBlobs.clear();
+            releasedSegments = blobs.takeReleasedSegments();
+            if (log != null) {
+                blobs.force();
+                record = log.endWrite();
+                if (!releasedSegments.isEmpty()) {
+                    // the references may have been removed by the writes of other clients
+                    record = log.lastRecord();
+                }
+                checkpoint = log.startCheckpoint();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (log != null) {
+            log.sync(record);
+        }
+        blobs.deleteSegments(releasedSegments);
+        if (checkpoint != null) {
+            log.finishCheckpoint(checkpoint);
+        }
+    }
+
+    /**
+     * Returns the version of the table the current thread works on: the private version
+     * of its change set, or the committed table
+     */
+    private EntityTable table(ColumnTable table) {
+        if (!writeLock.isHeldByCurrentThread() || changeSet == null) {
+            return table;
+        }
+        TableChanges changes = changeSet.get(table);
+        if (changes == null) {
+            changes = new TableChanges(table);
+            changeSet.put(table, changes);
+        }
+        return changes;
+    }
 
-        for (Entity entity : entities) {
-            Entity clonedEntity = new Entity();
+    /**
+     * Tells the listener about changes of the entity sets from now on
+     */
+    public void addListener(StorageListener listener) {
+        listeners.add(listener);
+    }
 
-            clonedEntity.setId(entity.getId());
-            for (Property property : entity.getProperties()) {
-                Property clonedProperty = new Property(
-                        property.getType(),
-                        property.getName(),
-                        property.getValueType(),
-                        property.getValue());
-                clonedEntity.addProperty(clonedProperty);
-            }
+    public void removeListener(StorageListener listener) {
+        listeners.remove(listener);
+    }
 
-            clonedEntities.add(clonedEntity);
+    /**
+     * Notifies the listeners that the table has been modified, in a change set only on commit.
+     * Must be called while the write lock is held.
+     */
+    private void changed(ColumnTable table) {
+        if (changeSet != null) {
+            changedEntitySets.add(table.getEntitySetName());
+        } else {
+            fireEntitySetChanged(table.getEntitySetName());
         }
+    }
 
-        return clonedEntities;
+    private void fireEntitySetChanged(String entitySetName) {
+        for (StorageListener listener : listeners) {
+            listener.entitySetChanged(entitySetName);
+        }
     }
 
     /* PUBLIC FACADE */
     
-    public byte[] readMedia(Entity entity) {
-        return (byte[]) entity.getProperty(MEDIA_PROPERTY_NAME).asPrimitive();
+    /**
+     * Returns a stream of the media content of the entity, which reads it from the BlobStore
+     */
+    public InputStream readMedia(Entity entity) throws ODataApplicationException {
+        return readMedia(entity, 0, getMediaLength(entity));
+    }
+
+    /**
+     * Returns a stream of a part of the media content, e.g. for a range request: length bytes
+     * starting at offset. Only that part is read from the BlobStore. Answers with 404 if the
+     * content has been deleted since the entity was read.
+     */
+    public InputStream readMedia(Entity entity, long offset, long length) throws ODataApplicationException {
+        Property media = entity.getProperty(MEDIA_PROPERTY_NAME);
+        if (media == null || media.getValue() == null) {
+            // e.g. an advertisement created without content
+            if (offset != 0 || length != 0) {
+                throw new IndexOutOfBoundsException("The entity has no media content");
+            }
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        // a blob has less than 2 GB, see BlobStore
+        InputStream content = blobs.open((BlobStore.Blob) media.getValue(), (int) offset, (int) length);
+        if (content == null) {
+            throw new ODataApplicationException("Entity not found", 
+                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+        }
+        return content;
+    }
+
+    /**
+     * Returns the number of bytes of the media content of the entity
+     */
+    public long getMediaLength(Entity entity) {
+        Property media = entity.getProperty(MEDIA_PROPERTY_NAME);
+        return media == null || media.getValue() == null ? 0 : ((BlobStore.Blob) media.getValue()).getLength();
+    }
+
+    /**
+     * Returns the SHA-256 digest of the media content of the entity as value of a Digest header,
+     * e.g. "SHA-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=", or null if it has no content
+     */
+    public String getMediaDigest(Entity entity) {
+        Property media = entity.getProperty(MEDIA_PROPERTY_NAME);
+        if (media == null || media.getValue() == null) {
+            return null;
+        }
+        return "SHA-256=" + Base64.getEncoder().encodeToString(((BlobStore.Blob) media.getValue()).getDigest());
+    }
+
+    /**
+     * Returns the share of the media bytes which deduplication saves, between 0 and 1: the bytes
+     * of all advertisements which have the same content as another one, relative to the bytes
+     * of all advertisements
+     */
+    public double getMediaDeduplicationRatio() {
+        return blobs.getDeduplicationRatio();
+    }
+
+    /**
+     * Returns the number of media bytes the advertisements share with others, i.e. which aren't
+     * stored again
+     */
+    public long getMediaBytesSaved() {
+        return blobs.getReferencedBytes() - blobs.getStoredBytes();
+    }
+
+    /**
+     * Returns the number of media bytes stored for the advertisements, each content counted once
+     */
+    public long getMediaStoredBytes() {
+        return blobs.getStoredBytes();
+    }
+
+    /**
+     * Returns the number of uploads whose content was stored already
+     */
+    public long getMediaDeduplicatedUploads() {
+        return blobs.getDeduplicatedWrites();
     }
 
-    public void updateMedia(Entity entity, String mediaContentType, byte[] data) {
-        entity.getProperties().remove(entity.getProperty(MEDIA_PROPERTY_NAME));
-        entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, data));
-        entity.setMediaContentType(mediaContentType);
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "Storage [mediaStoredBytes=%d, mediaBytesSaved=%d, "
+                + "mediaDeduplicationRatio=%.3f, mediaDeduplicatedUploads=%d]", getMediaStoredBytes(),
+                getMediaBytesSaved(), getMediaDeduplicationRatio(), getMediaDeduplicatedUploads());
+    }
+
+    /**
+     * Replaces the media content of the entity. The content is written to the BlobStore while
+     * it is read, the entity only refers to it once the whole content has been written.
+     *
+     * @param length the number of bytes of the content, -1 if it is unknown
+     * @param condition checked against the current entity before it is changed, or null
+     */
+    public void updateMedia(Entity entity, String mediaContentType, InputStream content, long length, 
+            EntityCondition condition) throws ODataApplicationException {
+        // don't read the content if the condition fails anyway, it is checked again below
+        if (condition != null) {
+            condition.check(entity);
+        }
+        BlobStore.Blob blob = writeBlob(content, length);
+        writeLock.lock();
+        writtenBlobs.add(blob);
+        try {
+            // the entity is a copy, read it again so changes of other clients in between aren't lost
+            EntityTable advertisements = table(advertisementTable);
+            Entity currentEntity = advertisements.getEntity(ColumnTable.getId(entity));
+            if (currentEntity == null) {
+                throw new ODataApplicationException("Entity not found", 
+                        HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+            }
+            if (condition != null) {
+                condition.check(currentEntity);
+            }
+
+            // the table only changes with putEntity
+            currentEntity.getProperties().remove(currentEntity.getProperty(MEDIA_PROPERTY_NAME));
+            currentEntity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, blob));
+            currentEntity.setMediaContentType(mediaContentType);
+            advertisements.putEntity(currentEntity);
+            changed(advertisementTable);
+        } finally {
+            unlock();
+        }
     }
 
     public EntityCollection readEntitySetData(EdmEntitySet entitySet) 
@@ -129,28 +409,74 @@ public class Storage {
         return getEntitySet(entityType);
     }
 
-    public Entity createMediaEntity(
-            EdmEntityType edmEntityType, String mediaContentType, byte[] data) {
+    /**
+     * Executes the query directly on the columns, only the entities of the result are created
+     */
+    public EntityCollection readEntitySetData(EdmEntitySet entitySet, EntityQuery query) 
+            throws ODataApplicationException {
 
-        if (edmEntityType.getName().equals(DemoEdmProvider.ET_ADVERTISEMENT_NAME)) {
-            
-            int nextId = getNextId(advertisementList);
-            
-            Entity entity = new Entity();
-            entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, nextId));
-            entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, null));
-            entity.addProperty(new Property(null, "AirDate", ValueType.PRIMITIVE, null));
+        EdmEntityType entityType = entitySet.getEntityType();
+
+        return getEntityTable(entityType).query(query);
+    }
 
-            entity.setMediaContentType(mediaContentType);
-            entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, data));
+    /**
+     * Executes the query like readEntitySetData, but the entities of the result are created
+     * one by one while the stream is read
+     */
+    public EntityStream streamEntitySetData(EdmEntitySet entitySet, EntityQuery query) 
+            throws ODataApplicationException {
+
+        EdmEntityType entityType = entitySet.getEntityType();
+
+        return getEntityTable(entityType).stream(query);
+    }
 
-            advertisementList.add(entity);
-            return entity;
+    /**
+     * Creates a media entity, see updateMedia
+     *
+     * @param length the number of bytes of the content, -1 if it is unknown
+     */
+    public Entity createMediaEntity(EdmEntityType edmEntityType, String mediaContentType, 
+            InputStream content, long length) throws ODataApplicationException {
+
+        if (edmEntityType.getName().equals(DemoEdmProvider.ET_ADVERTISEMENT_NAME)) {
+            
+            BlobStore.Blob blob = writeBlob(content, length);
+            writeLock.lock();
+            writtenBlobs.add(blob);
+            try {
+                EntityTable advertisements = table(advertisementTable);
+                int nextId = advertisements.getNextId();
+                
+                Entity entity = new Entity();
+                entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, nextId));
+                entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, null));
+                entity.addProperty(new Property(null, "AirDate", ValueType.PRIMITIVE, null));
+    
+                entity.setMediaContentType(mediaContentType);
+                entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, blob));
+    
+                advertisements.putEntity(entity);
+                changed(advertisementTable);
+                return advertisements.getEntity(nextId);
+            } finally {
+                unlock();
+            }
         }
 
         return null;
     }
 
+    private BlobStore.Blob writeBlob(InputStream content, long length) throws ODataApplicationException {
+        try {
+            return blobs.write(content, length);
+        } catch (IOException e) {
+            throw new ODataApplicationException("Unable to read the media content: " + e.getMessage(),
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH, e);
+        }
+    }
+
     public Entity readEntityData(EdmEntitySet entitySet, List<UriParameter> keyParams) 
             throws ODataApplicationException{
 
@@ -169,25 +495,31 @@ public class Storage {
     
     /**
      * This method is invoked for PATCH or PUT requests
+     * 
+     * @param condition checked against the current entity before it is changed, or null
      * */
     public void updateEntityData(
             EdmEntitySet entitySet, 
             List<UriParameter> keyParams, 
             Entity updateEntity,
-            HttpMethod httpMethod)
+            HttpMethod httpMethod,
+            EntityCondition condition)
                     throws ODataApplicationException {
 
         EdmEntityType entityType = entitySet.getEntityType();
 
-        updateEntity(entityType, keyParams, updateEntity, httpMethod);
+        updateEntity(entityType, keyParams, updateEntity, httpMethod, condition);
     }
 
-    public void deleteEntityData(EdmEntitySet entitySet, List<UriParameter> keyParams)
+    /**
+     * @param condition checked against the current entity before it is deleted, or null
+     */
+    public void deleteEntityData(EdmEntitySet entitySet, List<UriParameter> keyParams, EntityCondition condition)
             throws ODataApplicationException {
 
         EdmEntityType entityType = entitySet.getEntityType();
 
-        deleteEntity(entityType, keyParams);
+        deleteEntity(entityType, keyParams, condition);
     }
 
     /*  INTERNAL */
@@ -195,16 +527,20 @@ public class Storage {
     private EntityCollection getEntitySet(EdmEntityType entityType) 
             throws ODataApplicationException {
         EntityCollection retEntitySet = new EntityCollection();
-        List<Entity> entityList = getEntityList(entityType);
-        retEntitySet.getEntities().addAll(entityList);
+        retEntitySet.getEntities().addAll(getEntityTable(entityType).getEntities());
         return retEntitySet;
     }
 
     private Entity getEntity(EdmEntityType entityType, List<UriParameter> keyParams)
             throws ODataApplicationException {
-        EntityCollection entitySet = getEntitySet(entityType);
 
-        Entity requestedEntity = Util.findEntity(entityType, entitySet, keyParams);
+        Entity requestedEntity;
+        if (Util.isInt32Key(entityType, keyParams)) {
+            // the common case, e.g. Products(3): look the ID up in the primary key index
+            requestedEntity = getEntityTable(entityType).getEntity(Util.getInt32Key(keyParams));
+        } else {
+            requestedEntity = Util.findEntity(entityType, getEntitySet(entityType), keyParams);
+        }
 
         if (requestedEntity == null){
             throw new ODataApplicationException("Entity for requested key doesn't exist",
@@ -214,35 +550,24 @@ public class Storage {
         return requestedEntity;
     }
 
-    private boolean entityIdExists(int id, List<Entity> entityList) {
-
-        for (Entity entity : entityList) {
-            Integer existingID = (Integer) entity.getProperty("ID").getValue();
-            if (existingID.intValue() == id) {
-                return true;
-            }
-        }
+    private EntityTable getEntityTable(EdmEntityType entityType) 
+            throws ODataApplicationException {
 
-        return false;
+        return table(getColumnTable(entityType));
     }
 
-    private int getNextId(List<Entity> entityList) {
-        int newId = 1;
-        while (entityIdExists(newId, entityList)) {
-            newId++;
-        }
-        return newId;
-    }
-    
-    private List<Entity> getEntityList(EdmEntityType entityType) 
+    /**
+     * Returns the committed table of the entity type
+     */
+    private ColumnTable getColumnTable(EdmEntityType entityType) 
             throws ODataApplicationException {
 
         if (entityType.getName().equals(DemoEdmProvider.ET_PRODUCT_NAME)) {
-            return productList;
+            return productTable;
         } else if (entityType.getName().equals(DemoEdmProvider.ET_CATEGORY_NAME)) {
-            return categoryList;
+            return categoryTable;
         } else if (entityType.getName().equals(DemoEdmProvider.ET_ADVERTISEMENT_NAME)) {
-            return advertisementList;
+            return advertisementTable;
         } else {
             throw new ODataApplicationException("Entity type not supported " + entityType.getName(), 
                     HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
@@ -253,33 +578,59 @@ public class Storage {
     private Entity createEntity(EdmEntityType entityType, Entity entity)
             throws ODataApplicationException {
 
-        List<Entity> entityList = getEntityList(entityType);
-        int newId = getNextId(entityList);
-        
-        Property idProperty = entity.getProperty("ID");
-        if (idProperty != null) {
-            idProperty.setValue(ValueType.PRIMITIVE, newId);
-        } else {
-            entity.getProperties().add(new Property(null, "ID", ValueType.PRIMITIVE, newId));
+        writeLock.lock();
+        try {
+            EntityTable entityTable = getEntityTable(entityType);
+            int newId = entityTable.getNextId();
+            
+            Property idProperty = entity.getProperty("ID");
+            if (idProperty != null) {
+                idProperty.setValue(ValueType.PRIMITIVE, newId);
+            } else {
+                entity.getProperties().add(new Property(null, "ID", ValueType.PRIMITIVE, newId));
+            }
+            entityTable.putEntity(entity);
+            changed(getColumnTable(entityType));
+            return entityTable.getEntity(newId);
+        } finally {
+            unlock();
         }
-        entity.setId(createId(entity, "ID"));
-        entityList.add(entity);
-
-        return entity;
     }
     
     private void updateEntity(
             EdmEntityType entityType, 
             List<UriParameter> keyParams, 
             Entity receivedEntity,
-            HttpMethod httpMethod) 
+            HttpMethod httpMethod,
+            EntityCondition condition) 
                     throws ODataApplicationException {
 
-        Entity existingEntity = getEntity(entityType, keyParams);
-        if (existingEntity == null) {
-            throw new ODataApplicationException("Entity not found", 
-                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+        writeLock.lock();
+        try {
+            Entity existingEntity = getEntity(entityType, keyParams);
+            if (existingEntity == null) {
+                throw new ODataApplicationException("Entity not found", 
+                        HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+            }
+            if (condition != null) {
+                condition.check(existingEntity);
+            }
+
+            // the entity is a copy of the stored data, the row is overwritten under the write lock
+            // of the table, so readers never see a half updated entity
+            updateProperties(entityType, existingEntity, receivedEntity, httpMethod);
+            getEntityTable(entityType).putEntity(existingEntity);
+            changed(getColumnTable(entityType));
+        } finally {
+            unlock();
         }
+    }
+
+    private void updateProperties(
+            EdmEntityType entityType, 
+            Entity existingEntity, 
+            Entity receivedEntity, 
+            HttpMethod httpMethod) {
 
         // loop over all properties and replace the values with the values of the given payload
         // Note: ignoring ComplexType, as we don't have it in our odata model
@@ -312,21 +663,31 @@ public class Storage {
         }
     }
 
-    private void deleteEntity(EdmEntityType entityType, List<UriParameter> keyParams)
+    private void deleteEntity(EdmEntityType entityType, List<UriParameter> keyParams, EntityCondition condition)
             throws ODataApplicationException {
 
-        Entity productEntity = getEntity(entityType, keyParams);
-        if (productEntity == null) {
-            throw new ODataApplicationException("Entity not found", 
-                    HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
-        }
+        writeLock.lock();
+        try {
+            Entity productEntity = getEntity(entityType, keyParams);
+            if (productEntity == null) {
+                throw new ODataApplicationException("Entity not found", 
+                        HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+            }
+            if (condition != null) {
+                condition.check(productEntity);
+            }
 
-        List<Entity> entityList = getEntityList(entityType);
-        entityList.remove(productEntity);
+            getEntityTable(entityType).removeEntity(productEntity);
+            changed(getColumnTable(entityType));
+        } finally {
+            unlock();
+        }
     }
 
      /* HELPER */
+
     private void initProductSampleData() {
+        EntityTable products = table(productTable);
 
         Entity entity = new Entity();
 
@@ -334,57 +695,64 @@ public class Storage {
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebook Basic 15"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "Notebook Basic, 1.7GHz - 15 XGA - 1024MB DDR2 SDRAM - 40GB"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 1));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebook Professional 17"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "Notebook Professional, 2.8GHz - 15 XGA - 8GB DDR3 RAM - 500GB"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 1));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 3));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "1UMTS PDA"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "Ultrafast 3G UMTS/HSDPA Pocket PC, supports GSM network"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 2));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 4));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Comfort Easy"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "32 GB Digital Assitant with high-resolution color screen"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 2));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 5));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Ergo Screen"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "19 Optimum Resolution 1024 x 768 @ 85Hz, resolution 1280 x 960"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 3));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 6));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Flat Basic"));
         entity.addProperty(new Property(null, "Description", ValueType.PRIMITIVE,
             "Optimum Hi-Resolution max. 1600 x 1200 @ 85Hz, Dot Pitch: 0.24mm"));
+        entity.addProperty(new Property(null, "CategoryID", ValueType.PRIMITIVE, 3));
         entity.setType(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        productList.add(entity);
+        products.putEntity(entity);
     }
 
     private void initCategorySampleData() {
+        EntityTable categories = table(categoryTable);
 
         Entity entity = new Entity();
         
@@ -392,39 +760,45 @@ public class Storage {
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Notebooks"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categories.putEntity(entity);
         
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Organizers"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categories.putEntity(entity);
         
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 3));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Monitors"));
         entity.setType(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString());
         entity.setId(createId(entity, "ID"));
-        categoryList.add(entity);
+        categories.putEntity(entity);
     }
 
     private void initAdvertisementSampleData() {
+        EntityTable advertisements = table(advertisementTable);
         Entity entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 1));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Old School Lemonade Store, Retro Style"));
         entity.addProperty(new Property(null, "AirDate", ValueType.PRIMITIVE, Timestamp.valueOf("2012-11-07 00:00:00")));
-        entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, "Super content".getBytes()));
+        BlobStore.Blob content = blobs.write("Super content".getBytes());
+        entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, content));
         entity.setMediaContentType(ContentType.parse("text/plain").toContentTypeString());
-        advertisementList.add(entity);
+        advertisements.putEntity(entity);
+        // the row references the content now
+        blobs.release(content);
 
         entity = new Entity();
         entity.addProperty(new Property(null, "ID", ValueType.PRIMITIVE, 2));
         entity.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Early morning start, need coffee"));
         entity.addProperty(new Property(null, "AirDate", ValueType.PRIMITIVE, Timestamp.valueOf("2000-02-29 00:00:00")));
-        entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, "Super content2".getBytes()));
+        content = blobs.write("Super content2".getBytes());
+        entity.addProperty(new Property(null, MEDIA_PROPERTY_NAME, ValueType.PRIMITIVE, content));
         entity.setMediaContentType(ContentType.parse("text/plain").toContentTypeString());
-        advertisementList.add(entity);
+        advertisements.putEntity(entity);
+        blobs.release(content);
     }
 
     public EntityCollection getRelatedEntityCollection(Entity sourceEntity, EdmEntityType targetEntityType) {
@@ -435,36 +809,89 @@ public class Storage {
 
         if (sourceEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString())
                 && relatedEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN)) {
-            // relation Products->Category (result all categories)
-            int productID = (Integer) sourceEntity.getProperty("ID").getValue();
-            if (productID == 1 || productID == 2) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(0));
-            } else if (productID == 3 || productID == 4) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(1));
-            } else if (productID == 5 || productID == 6) {
-                navigationTargetEntityCollection.getEntities().add(categoryList.get(2));
+            // relation Products->Category, the category is found by the foreign key of the product
+            Integer categoryID = getCategoryId(sourceEntity);
+            Entity category = categoryID == null ? null : table(categoryTable).getEntity(categoryID);
+            if (category != null) {
+                navigationTargetEntityCollection.getEntities().add(category);
             }
         } else if (sourceEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString())
                 && relatedEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN)) {
-            // relation Category->Products (result all products)
-            int categoryID = (Integer) sourceEntity.getProperty("ID").getValue();
-            if (categoryID == 1) {
-                // the first 2 products are notebooks
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(0, 2));
-            } else if (categoryID == 2) {
-                // the next 2 products are organizers
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(2, 4));
-            } else if (categoryID == 3) {
-                // the first 2 products are monitors
-                navigationTargetEntityCollection.getEntities().addAll(productList.subList(4, 6));
-            }
+            // relation Category->Products, the products are found by the index of their foreign key
+            navigationTargetEntityCollection.getEntities().addAll(
+                    getProducts(table(productTable), ColumnTable.getId(sourceEntity)));
         }
 
-        if (navigationTargetEntityCollection.getEntities().isEmpty()) {
-            return null;
+        return navigationTargetEntityCollection;
+    }
+
+    /**
+     * Returns the related entities of all source entities at once, by source entity.
+     * Each related entity is read only once, no matter how many source entities refer to it, so
+     * $expand needs one pass per page instead of one lookup per entity. Source entities without
+     * related entities are mapped to an empty list.
+     */
+    public Map<Entity, List<Entity>> getRelatedEntities(List<Entity> sourceEntities, EdmEntityType targetEntityType) {
+        Map<Entity, List<Entity>> relatedEntities = new IdentityHashMap<>();
+        if (sourceEntities.isEmpty()) {
+            return relatedEntities;
         }
+        FullQualifiedName relatedEntityFqn = targetEntityType.getFullQualifiedName();
+        String sourceEntityFqn = sourceEntities.get(0).getType();
 
-        return navigationTargetEntityCollection;
+        if (sourceEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN.getFullQualifiedNameAsString())
+                && relatedEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN)) {
+            // relation Products->Category, each category is read once
+            EntityTable categories = table(categoryTable);
+            Map<Integer, Entity> categoriesById = new HashMap<>();
+            for (Entity product : sourceEntities) {
+                Integer categoryID = getCategoryId(product);
+                if (categoryID != null && !categoriesById.containsKey(categoryID)) {
+                    categoriesById.put(categoryID, categories.getEntity(categoryID));
+                }
+                Entity category = categoryID == null ? null : categoriesById.get(categoryID);
+                List<Entity> related = new ArrayList<>(1);
+                if (category != null) {
+                    related.add(category);
+                }
+                relatedEntities.put(product, related);
+            }
+        } else if (sourceEntityFqn.equals(DemoEdmProvider.ET_CATEGORY_FQN.getFullQualifiedNameAsString())
+                && relatedEntityFqn.equals(DemoEdmProvider.ET_PRODUCT_FQN)) {
+            // relation Category->Products, each category looks up its products in the index
+            EntityTable products = table(productTable);
+            for (Entity category : sourceEntities) {
+                relatedEntities.put(category, getProducts(products, ColumnTable.getId(category)));
+            }
+        } else {
+            for (Entity sourceEntity : sourceEntities) {
+                relatedEntities.put(sourceEntity, new ArrayList<Entity>());
+            }
+        }
+        return relatedEntities;
+    }
+
+    /**
+     * Returns the foreign key of the product's category, null if the product has no category
+     */
+    private static Integer getCategoryId(Entity product) {
+        Property categoryID = product.getProperty(DemoEdmProvider.FK_CATEGORY_ID);
+        return categoryID == null ? null : (Integer) categoryID.getValue();
+    }
+
+    /**
+     * Returns the products of the category in the order of their IDs
+     */
+    private static List<Entity> getProducts(EntityTable products, int categoryID) {
+        int[] productIDs = products.findIds(DemoEdmProvider.FK_CATEGORY_ID, categoryID);
+        List<Entity> result = new ArrayList<>(productIDs.length);
+        for (int productID : productIDs) {
+            Entity product = products.getEntity(productID);
+            if (product != null) {
+                result.add(product);
+            }
+        }
+        return result;
     }
 
     private URI createId(Entity entity, String idPropertyName) {
@@ -523,13 +950,12 @@ public class Storage {
                         HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
             }
 
-            EdmEntityType productEntityType = serviceMetadata.getEdm().getEntityType(DemoEdmProvider.ET_PRODUCT_FQN);
+            EntityTable products = table(productTable);
             List<Entity> resultEntityList = new ArrayList<>();
 
-            // Loop over all categories and check how many products are linked
-            for (Entity category : categoryList) {
-                EntityCollection products = getRelatedEntityCollection(category, productEntityType);
-                if (products.getEntities().size() == amount) {
+            // Loop over all categories and count the linked products in the index
+            for (Entity category : table(categoryTable).getEntities()) {
+                if (products.findIds(DemoEdmProvider.FK_CATEGORY_ID, ColumnTable.getId(category)).length == amount) {
                     resultEntityList.add(category);
                 }
             }
@@ -554,21 +980,31 @@ public class Storage {
     }
     
     public void resetDataSet(int amount) {
-        // Replace the old lists with empty ones
-        productList = new ArrayList<>();
-        categoryList = new ArrayList<>();
-
-        // Create new sample data
-        initProductSampleData();
-        initCategorySampleData();
-
-        // Truncate the lists
-        if (amount < productList.size()) {
-            productList = productList.subList(0, amount);
-            // Products 0, 1 are linked to category 0
-            // Products 2, 3 are linked to category 1
-            // Products 4, 5 are linked to category 2
-            categoryList = categoryList.subList(0, (amount + 1) / 2);
+        writeLock.lock();
+        try {
+            // Replace the old data with empty tables, inside a change set only its version of the tables
+            EntityTable products = table(productTable);
+            EntityTable categories = table(categoryTable);
+            products.clear();
+            categories.clear();
+
+            // Create new sample data
+            initProductSampleData();
+            initCategorySampleData();
+
+            // Truncate the tables
+            if (amount < products.size()) {
+                products.truncate(amount);
+                // Products 1, 2 are linked to category 1
+                // Products 3, 4 are linked to category 2
+                // Products 5, 6 are linked to category 3
+                // see the CategoryID of the sample data
+                categories.truncate((amount + 1) / 2);
+            }
+            changed(productTable);
+            changed(categoryTable);
+        } finally {
+            unlock();
         }
     }
 
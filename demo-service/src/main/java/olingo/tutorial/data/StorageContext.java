@@ -0,0 +1,33 @@
+package olingo.tutorial.data;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * Binds the Storage that serves the current request to the request thread.
+ * The servlet binds the storage before the request is handed over to Olingo and unbinds it
+ * afterwards, so that the processors don't have to hold a storage reference and can be
+ * shared between concurrent requests.
+ */
+public final class StorageContext {
+
+    private static final ThreadLocal<Storage> CURRENT = new ThreadLocal<>();
+
+    private StorageContext() {
+    }
+
+    public static void bind(Storage storage) {
+        CURRENT.set(storage);
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    public static Storage get() {
+        Storage storage = CURRENT.get();
+        if (storage == null) {
+            throw new ODataRuntimeException("There is no storage bound to the current request");
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,14 @@
+package olingo.tutorial.data;
+
+/**
+ * Is notified when the data of an entity set has changed. Changes of a change set are
+ * reported when it is committed, a rollback doesn't report anything.
+ */
+public interface StorageListener {
+
+    /**
+     * Called after the entities of the entity set have been created, updated or deleted.
+     * The write lock of the storage is held, so the listener must not block.
+     */
+    void entitySetChanged(String entitySetName);
+}
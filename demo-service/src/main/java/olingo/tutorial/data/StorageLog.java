@@ -0,0 +1,286 @@
+package olingo.tutorial.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
+
+/**
+ * Makes the committed tables of a Storage persistent with a WriteAheadLog.
+ *
+ * The tables report each modification (put, remove, clear, truncate and reuse of IDs) while the
+ * write lock of the storage is held, and all modifications of one write, e.g. of a whole change
+ * set, go into one record. The Storage appends the record when it releases the write lock and
+ * waits until it is on the disk afterwards, so the writers after it don't wait for the disk and
+ * several of them are forced together. A put writes the whole row, including the version and
+ * the reference to the media content in the BlobStore, replaying the log repeats the
+ * modifications on the tables.
+ *
+ * When the log has grown by checkpointLogSize bytes a checkpoint starts a new segment and
+ * writes a snapshot of all tables. The tables are copied while the write lock is held, the
+ * snapshot file is written after the lock has been released. Recovery reads the snapshot and
+ * replays only the segments after it, so the time to start doesn't grow with the log.
+ */
+final class StorageLog {
+
+    private static final int SNAPSHOT_MAGIC = 0x4f444154;
+
+    private static final byte END = 0;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+    private static final byte TRUNCATE = 4;
+    private static final byte REUSE_IDS = 5;
+
+    private final WriteAheadLog log;
+    private final long checkpointLogSize;
+    private final Map<String, ColumnTable> tables = new LinkedHashMap<>();
+
+    // the modifications of the running write, only used by the thread holding the write lock of the storage
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(record);
+    private volatile boolean checkpointRunning;
+
+    StorageLog(File directory, long checkpointLogSize, List<ColumnTable> tables) throws IOException {
+        this.log = new WriteAheadLog(directory);
+        this.checkpointLogSize = checkpointLogSize;
+        for (ColumnTable table : tables) {
+            this.tables.put(table.getEntitySetName(), table);
+        }
+    }
+
+    /**
+     * Restores the tables from the newest snapshot and the records after it. Returns false if the
+     * directory has no snapshot yet, then the tables are left unchanged.
+     */
+    boolean recover() throws IOException {
+        boolean recovered = false;
+        try (DataInputStream snapshot = log.readSnapshot()) {
+            if (snapshot != null) {
+                if (snapshot.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Invalid snapshot");
+                }
+                int count = snapshot.readInt();
+                for (int i = 0; i < count; i++) {
+                    getTable(snapshot.readUTF()).readFrom(snapshot);
+                }
+                recovered = true;
+            }
+        }
+        log.replay(new WriteAheadLog.RecordHandler() {
+            @Override
+            public void record(DataInput in) throws IOException {
+                replay(in);
+            }
+        });
+        return recovered;
+    }
+
+    private void replay(DataInput in) throws IOException {
+        for (byte operation = in.readByte(); operation != END; operation = in.readByte()) {
+            ColumnTable table = getTable(in.readUTF());
+            switch (operation) {
+            case PUT:
+                table.readRow(in);
+                break;
+            case REMOVE:
+                table.removeEntity(in.readInt());
+                break;
+            case CLEAR:
+                table.clear();
+                break;
+            case TRUNCATE:
+                table.truncate(in.readInt());
+                break;
+            case REUSE_IDS:
+                table.reuseIds();
+                break;
+            default:
+                throw new IOException("Unknown operation " + operation + " in the storage log");
+            }
+        }
+    }
+
+    /**
+     * Lets the tables report their modifications from now on
+     */
+    void attach() {
+        for (ColumnTable table : tables.values()) {
+            table.setLog(this);
+        }
+    }
+
+    void put(ColumnTable table, int row) {
+        try {
+            start(PUT, table);
+            table.writeRow(row, out);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    void remove(ColumnTable table, int id) {
+        try {
+            start(REMOVE, table);
+            out.writeInt(id);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    void clear(ColumnTable table) {
+        try {
+            start(CLEAR, table);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    void truncate(ColumnTable table, int amount) {
+        try {
+            start(TRUNCATE, table);
+            out.writeInt(amount);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    void reuseIds(ColumnTable table) {
+        try {
+            start(REUSE_IDS, table);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    private void start(byte operation, ColumnTable table) throws IOException {
+        out.writeByte(operation);
+        out.writeUTF(table.getEntitySetName());
+    }
+
+    /**
+     * Appends the modifications of the write which ends, returns the number of the record for
+     * sync or 0 if nothing was modified. Must be called while the write lock is held.
+     */
+    long endWrite() {
+        if (record.size() == 0) {
+            return 0;
+        }
+        try {
+            out.writeByte(END);
+            out.flush();
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+        long number = log.append(record.toByteArray());
+        record.reset();
+        return number;
+    }
+
+    /**
+     * Returns the number of the last appended record for sync, e.g. to wait for the writes of
+     * other clients as well
+     */
+    long lastRecord() {
+        return log.lastRecord();
+    }
+
+    /**
+     * Returns when the record is on the disk
+     */
+    void sync(long number) {
+        if (number == 0) {
+            return;
+        }
+        try {
+            log.sync(number);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the storage log", e);
+        }
+    }
+
+    /**
+     * Starts a checkpoint if the log has grown enough and no other checkpoint is running. The
+     * log gets a new segment and the tables are copied into the snapshot, which is written by
+     * finishCheckpoint. Must be called while the write lock is held, returns null if there is
+     * no checkpoint.
+     */
+    Checkpoint startCheckpoint() {
+        if (checkpointRunning || log.size() < checkpointLogSize) {
+            return null;
+        }
+        try {
+            Checkpoint checkpoint = new Checkpoint(log.startGeneration(), snapshot());
+            checkpointRunning = true;
+            return checkpoint;
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to start a checkpoint of the storage log", e);
+        }
+    }
+
+    /**
+     * Writes the snapshot of the checkpoint, afterwards the older segments are deleted
+     */
+    void finishCheckpoint(Checkpoint checkpoint) {
+        try {
+            log.writeSnapshot(checkpoint.generation, checkpoint.snapshot);
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Unable to write the snapshot of the storage", e);
+        } finally {
+            checkpointRunning = false;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the current tables at once, e.g. of the initial data of a new directory
+     */
+    void checkpoint() throws IOException {
+        log.writeSnapshot(log.startGeneration(), snapshot());
+    }
+
+    void close() throws IOException {
+        log.close();
+    }
+
+    private byte[] snapshot() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream snapshot = new DataOutputStream(bytes);
+        snapshot.writeInt(SNAPSHOT_MAGIC);
+        snapshot.writeInt(tables.size());
+        for (ColumnTable table : tables.values()) {
+            snapshot.writeUTF(table.getEntitySetName());
+            table.writeTo(snapshot);
+        }
+        snapshot.flush();
+        return bytes.toByteArray();
+    }
+
+    private ColumnTable getTable(String entitySetName) throws IOException {
+        ColumnTable table = tables.get(entitySetName);
+        if (table == null) {
+            throw new IOException("Unknown entity set " + entitySetName + " in the storage log");
+        }
+        return table;
+    }
+
+    /**
+     * A snapshot of the tables for the segment of a generation
+     */
+    static final class Checkpoint {
+
+        private final long generation;
+        private final byte[] snapshot;
+
+        Checkpoint(long generation, byte[] snapshot) {
+            this.generation = generation;
+            this.snapshot = snapshot;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package olingo.tutorial.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.server.api.ODataApplicationException;
+
+/**
+ * The private version of a ColumnTable for a change set of a batch request.
+ *
+ * The change set doesn't copy the table. Entities it creates or updates are written to a
+ * table of their own, which starts empty, and the IDs of the committed entities it updates or
+ * deletes are hidden. Reads of the change set combine both, all other clients keep reading the
+ * committed table. Creating the version costs O(1) and it holds only the rows which were written,
+ * a rollback just drops it; the commit applies the written rows and the deletes to the table.
+ */
+final class TableChanges implements EntityTable {
+
+    private static final Comparator<Entity> BY_ID = new Comparator<Entity>() {
+        @Override
+        public int compare(Entity o1, Entity o2) {
+            return Integer.compare(ColumnTable.getId(o1), ColumnTable.getId(o2));
+        }
+    };
+
+    private final ColumnTable table;
+    private final ColumnTable written;
+    // IDs of committed entities which the change set updated or deleted
+    private final BitSet hidden = new BitSet();
+    // true if the change set cleared or truncated the table
+    private boolean cleared;
+    private boolean reuseIds;
+    private int nextId;
+
+    TableChanges(ColumnTable table) {
+        this.table = table;
+        this.written = table.newEmptyTable();
+        this.nextId = table.getNextId();
+    }
+
+    @Override
+    public List<Entity> getEntities() {
+        List<Entity> entities = new ArrayList<>();
+        if (!cleared) {
+            for (Entity entity : table.getEntities()) {
+                if (!hidden.get(ColumnTable.getId(entity))) {
+                    entities.add(entity);
+                }
+            }
+        }
+        entities.addAll(written.getEntities());
+        Collections.sort(entities, BY_ID);
+        return entities;
+    }
+
+    @Override
+    public Entity getEntity(int id) {
+        Entity entity = written.getEntity(id);
+        if (entity == null && !cleared && id >= 0 && !hidden.get(id)) {
+            entity = table.getEntity(id);
+        }
+        return entity;
+    }
+
+    @Override
+    public EntityCollection query(EntityQuery query) throws ODataApplicationException {
+        EntityStream entities = stream(query);
+        EntityCollection entityCollection = new EntityCollection();
+        while (entities.hasNext()) {
+            entityCollection.getEntities().add(entities.next());
+        }
+        entityCollection.setCount(entities.getCount());
+        return entityCollection;
+    }
+
+    /**
+     * Executes the query on a copy of all entities, change sets hardly ever read entity sets
+     */
+    @Override
+    public EntityStream stream(EntityQuery query) throws ODataApplicationException {
+        return query.stream(getEntities(), table.getPropertyNames());
+    }
+
+    @Override
+    public int size() {
+        return (cleared ? 0 : table.size() - hidden.cardinality()) + written.size();
+    }
+
+    /**
+     * Combines the committed IDs which the change set didn't touch with the written ones
+     */
+    @Override
+    public int[] findIds(String foreignKeyName, int value) {
+        int[] writtenIds = written.findIds(foreignKeyName, value);
+        if (cleared) {
+            return writtenIds;
+        }
+        int[] committedIds = table.findIds(foreignKeyName, value);
+        int[] ids = Arrays.copyOf(writtenIds, committedIds.length + writtenIds.length);
+        int count = writtenIds.length;
+        for (int id : committedIds) {
+            if (!hidden.get(id)) {
+                ids[count++] = id;
+            }
+        }
+        Arrays.sort(ids, 0, count);
+        return Arrays.copyOf(ids, count);
+    }
+
+    @Override
+    public int getNextId() {
+        return nextId;
+    }
+
+    @Override
+    public void putEntity(Entity entity) {
+        int id = ColumnTable.getId(entity);
+        hide(id);
+        written.putEntity(entity);
+        if (id >= nextId) {
+            nextId = id + 1;
+        }
+    }
+
+    @Override
+    public void removeEntity(Entity entity) {
+        hide(ColumnTable.getId(entity));
+        written.removeEntity(entity);
+    }
+
+    @Override
+    public void clear() {
+        cleared = true;
+        hidden.clear();
+        written.clear();
+        nextId = 1;
+    }
+
+    @Override
+    public void truncate(int amount) {
+        List<Entity> entities = getEntities();
+        for (int i = amount; i < entities.size(); i++) {
+            removeEntity(entities.get(i));
+        }
+        int kept = Math.min(amount, entities.size());
+        nextId = kept == 0 ? 1 : ColumnTable.getId(entities.get(kept - 1)) + 1;
+        reuseIds = true;
+    }
+
+    /**
+     * Applies the changes to the committed table
+     */
+    void commit() {
+        table.commit(this);
+    }
+
+    boolean isCleared() {
+        return cleared;
+    }
+
+    boolean isReuseIds() {
+        return reuseIds;
+    }
+
+    /**
+     * Returns the IDs of the committed entities which the change set deleted
+     */
+    BitSet getRemovedIds() {
+        BitSet removed = (BitSet) hidden.clone();
+        for (int id = hidden.nextSetBit(0); id >= 0; id = hidden.nextSetBit(id + 1)) {
+            if (written.contains(id)) {
+                removed.clear(id);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the entities which the change set created or updated, in the order of their IDs
+     */
+    List<Entity> getWrittenEntities() {
+        List<Entity> entities = written.getEntities();
+        Collections.sort(entities, BY_ID);
+        return entities;
+    }
+
+    /**
+     * Returns the version the change set gave the entity it wrote with the ID
+     */
+    int getWrittenVersion(int id) {
+        return written.getVersion(id);
+    }
+
+    private void hide(int id) {
+        if (!cleared && id >= 0 && table.contains(id)) {
+            hidden.set(id);
+        }
+    }
+}
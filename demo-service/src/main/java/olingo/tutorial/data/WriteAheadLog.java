@@ -0,0 +1,366 @@
+package olingo.tutorial.data;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in a directory, with snapshots which make the older records
+ * unnecessary.
+ *
+ * The log is split into segments, one per generation. A snapshot of generation n holds the state
+ * before the first record of segment n, so recovery reads the newest snapshot and replays the
+ * segments from its generation on. A checkpoint starts a new segment and writes a snapshot for
+ * it, once the snapshot is on disk the older snapshots and segments are deleted.
+ *
+ * Each record is written with its length and a CRC32 of its content. A record which was only
+ * partly written when the process died is found by its length or checksum during recovery, and
+ * the segment is truncated before it.
+ *
+ * Appending a record only copies it into a buffer, sync writes the buffer with FileChannel and
+ * forces it to the disk. Writers which call sync at the same time are served by one force, the
+ * first of them writes the records of all others as well (group commit).
+ *
+ * If writing or forcing the records fails, it isn't known which of them reached the disk, and the
+ * tables contain their changes already. The log is failed then: every later sync throws, so no
+ * record after the lost ones is reported as written, and the storage has to be recovered.
+ */
+final class WriteAheadLog implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "log-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // length and checksum before the content of each record
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Reads the content of one record during recovery
+     */
+    interface RecordHandler {
+
+        void record(DataInput in) throws IOException;
+    }
+
+    private final File directory;
+    // the generation of the newest snapshot, -1 if there is none
+    private final long snapshotGeneration;
+
+    // held by the thread which writes the buffer to the segment
+    private final ReentrantLock syncLock = new ReentrantLock();
+    // the error of a failed write, guarded by the sync lock
+    private IOException failure;
+
+    // the fields below are guarded by this
+    private FileChannel channel;
+    private long generation;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long size;
+    private long appended;
+
+    // the number of records which are on the disk, only increased by the thread holding the sync lock
+    private volatile long synced;
+
+    WriteAheadLog(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + directory);
+        }
+        // a snapshot which wasn't finished is incomplete
+        for (File file : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX + TEMP_SUFFIX)) {
+            Files.delete(file.toPath());
+        }
+        List<Long> snapshots = generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        snapshotGeneration = snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Returns the newest snapshot, or null if there is none
+     */
+    DataInputStream readSnapshot() throws IOException {
+        if (snapshotGeneration < 0) {
+            return null;
+        }
+        return new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX))));
+    }
+
+    /**
+     * Passes the records after the newest snapshot to the handler, in the order they were
+     * appended, and opens the log for appending. Must be called once before records are appended.
+     */
+    synchronized void replay(RecordHandler handler) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        for (long segment : generations(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (segment >= snapshotGeneration) {
+                segments.add(segment);
+            }
+        }
+        generation = Math.max(snapshotGeneration, 0);
+        long validSize = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            generation = segments.get(i);
+            validSize = replay(file(SEGMENT_PREFIX, generation, SEGMENT_SUFFIX), handler);
+            if (validSize < file(SEGMENT_PREFIX, generation, SEGMENT_SUFFIX).length() && i < segments.size() - 1) {
+                // the earlier segments were forced completely before the next one was started
+                throw new IOException("The log segment " + generation + " is corrupt");
+            }
+        }
+        channel = FileChannel.open(file(SEGMENT_PREFIX, generation, SEGMENT_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // drop a record which was only partly written
+        channel.truncate(validSize);
+        channel.position(validSize);
+        channel.force(true);
+        syncDirectory();
+        size = validSize;
+    }
+
+    /**
+     * Replays the records of a segment, returns the size of the complete records
+     */
+    private long replay(File segment, RecordHandler handler) throws IOException {
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 0 || length > segment.length() - position - RECORD_HEADER_SIZE) {
+                        return position;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record);
+                    if ((int) crc.getValue() != checksum) {
+                        return position;
+                    }
+                } catch (EOFException e) {
+                    return position;
+                }
+                handler.record(new DataInputStream(new ByteArrayInputStream(record)));
+                position += RECORD_HEADER_SIZE + record.length;
+            }
+        }
+    }
+
+    /**
+     * Appends a record to the buffer, returns its number for sync
+     */
+    synchronized long append(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        writeInt(buffer, record.length);
+        writeInt(buffer, (int) crc.getValue());
+        buffer.write(record, 0, record.length);
+        size += RECORD_HEADER_SIZE + record.length;
+        return ++appended;
+    }
+
+    /**
+     * Returns when the record with the number is on the disk. If another thread is writing the
+     * log, the record may be written by that thread.
+     */
+    void sync(long record) throws IOException {
+        if (synced >= record) {
+            return;
+        }
+        syncLock.lock();
+        try {
+            // the thread which held the lock may have written the record already
+            if (synced >= record) {
+                return;
+            }
+            flush();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes all appended records, must be called while the sync lock is held
+     */
+    private void flush() throws IOException {
+        if (failure != null) {
+            throw new IOException("The log can't be written since an earlier write failed", failure);
+        }
+        ByteArrayOutputStream records;
+        long last;
+        FileChannel target;
+        synchronized (this) {
+            records = buffer;
+            last = appended;
+            target = channel;
+            buffer = new ByteArrayOutputStream();
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(records.toByteArray());
+        try {
+            while (bytes.hasRemaining()) {
+                target.write(bytes);
+            }
+            target.force(false);
+        } catch (IOException e) {
+            // the records taken from the buffer may be lost, synced must not move past them
+            failure = e;
+            throw e;
+        }
+        synced = last;
+    }
+
+    /**
+     * Returns the number of the last appended record
+     */
+    synchronized long lastRecord() {
+        return appended;
+    }
+
+    /**
+     * Returns the number of bytes appended since the last checkpoint
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Starts the segment of the next generation and returns the generation. The records appended
+     * before belong to the previous segment, which is forced to the disk.
+     */
+    long startGeneration() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                flush();
+                channel.close();
+                generation++;
+                channel = FileChannel.open(file(SEGMENT_PREFIX, generation, SEGMENT_SUFFIX).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                syncDirectory();
+                size = 0;
+                return generation;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the snapshot of the state before the first record of the generation, then deletes the
+     * older snapshots and segments
+     */
+    void writeSnapshot(long snapshotGeneration, byte[] snapshot) throws IOException {
+        File temp = file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX + TEMP_SUFFIX);
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.wrap(snapshot);
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            out.force(true);
+        }
+        Files.move(temp.toPath(), file(SNAPSHOT_PREFIX, snapshotGeneration, SNAPSHOT_SUFFIX).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        for (long older : generations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (older < snapshotGeneration) {
+                Files.delete(file(SNAPSHOT_PREFIX, older, SNAPSHOT_SUFFIX).toPath());
+            }
+        }
+        for (long older : generations(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (older < snapshotGeneration) {
+                Files.delete(file(SEGMENT_PREFIX, older, SEGMENT_SUFFIX).toPath());
+            }
+        }
+    }
+
+    /**
+     * Writes the appended records and closes the segment
+     */
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                if (channel != null && channel.isOpen()) {
+                    flush();
+                    channel.close();
+                }
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the entries of the directory to the disk, so created and renamed files survive a crash.
+     * Not every platform can open a directory, there the entries are written by the file system.
+     */
+    private void syncDirectory() {
+        try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // e.g. on Windows
+        }
+    }
+
+    private File file(String prefix, long generation, String suffix) {
+        return new File(directory, String.format("%s%010d%s", prefix, generation, suffix));
+    }
+
+    private List<File> list(String prefix, String suffix) {
+        List<File> files = new ArrayList<>();
+        File[] all = directory.listFiles();
+        if (all != null) {
+            for (File file : all) {
+                if (file.getName().startsWith(prefix) && file.getName().endsWith(suffix)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Returns the generations of the files with the prefix and suffix, in ascending order
+     */
+    private List<Long> generations(String prefix, String suffix) {
+        List<Long> generations = new ArrayList<>();
+        for (File file : list(prefix, suffix)) {
+            String name = file.getName();
+            try {
+                generations.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+            } catch (NumberFormatException e) {
+                // not a file of the log
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
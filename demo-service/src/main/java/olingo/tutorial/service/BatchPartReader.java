@@ -0,0 +1,144 @@
+package olingo.tutorial.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.olingo.server.api.OData;
+import org.apache.olingo.server.api.deserializer.batch.BatchDeserializerException;
+import org.apache.olingo.server.api.deserializer.batch.BatchOptions;
+import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
+
+/**
+ * Reads the parts of a $batch request body one after the other.
+ *
+ * The body is only split at the delimiter lines of the batch boundary, each part is parsed on its
+ * own by the batch deserializer of Olingo as a batch with this single part, so the same
+ * validation applies as for the whole body. Only the current part is kept in memory. A change
+ * set is one part, together with all its requests.
+ *
+ * The line numbers in the messages of parse errors count from the start of the part.
+ */
+final class BatchPartReader {
+
+    private static final byte LF = '\n';
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OData odata;
+    private final InputStream body;
+    private final String boundary;
+    private final BatchOptions options;
+    private final String delimiter;
+    private final String closeDelimiter;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean started;
+    private boolean finished;
+
+    BatchPartReader(OData odata, InputStream body, String boundary, BatchOptions options) {
+        this.odata = odata;
+        this.body = body;
+        this.boundary = boundary;
+        this.options = options;
+        this.delimiter = "--" + boundary;
+        this.closeDelimiter = delimiter + "--";
+    }
+
+    /**
+     * Returns the next part, null after the last one
+     */
+    BatchRequestPart next() throws BatchDeserializerException, IOException {
+        if (finished) {
+            return null;
+        }
+        // the preamble before the first delimiter is ignored
+        while (!started) {
+            String delimiterLine = readLine(null);
+            if (delimiterLine == null) {
+                // Olingo reports the missing delimiters
+                finished = true;
+                odata.createFixedFormatDeserializer().parseBatchRequest(toStream(""), boundary, options);
+                return null;
+            } else if (delimiterLine.equals(closeDelimiter)) {
+                // a batch without parts
+                finished = true;
+                return null;
+            }
+            started = delimiterLine.equals(delimiter);
+        }
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        String delimiterLine;
+        do {
+            delimiterLine = readLine(part);
+        } while (delimiterLine != null && !delimiterLine.equals(delimiter) && !delimiterLine.equals(closeDelimiter));
+        // the epilogue after the close delimiter isn't read
+        finished = !delimiter.equals(delimiterLine);
+        return parse(new ByteArrayInputStream(part.toByteArray()), delimiterLine != null);
+    }
+
+    private BatchRequestPart parse(InputStream part, boolean closed) throws BatchDeserializerException {
+        InputStream batch = new SequenceInputStream(new SequenceInputStream(
+                toStream(delimiter + "\r\n"), part), toStream(closed ? closeDelimiter + "\r\n" : ""));
+        List<BatchRequestPart> parts = odata.createFixedFormatDeserializer().parseBatchRequest(batch, boundary, options);
+        if (parts.size() != 1) {
+            throw new BatchDeserializerException("Invalid batch part",
+                    BatchDeserializerException.MessageKeys.INVALID_CONTENT, "0");
+        }
+        return parts.get(0);
+    }
+
+    /**
+     * Reads the next line, if it is a delimiter line it returns it without the line break,
+     * otherwise it appends it to the part (if any) and returns an empty string. Returns null
+     * at the end of the body.
+     */
+    private String readLine(ByteArrayOutputStream part) throws IOException {
+        line.reset();
+        boolean endOfLine = false;
+        while (!endOfLine && fill()) {
+            int end = position;
+            while (end < limit && buffer[end] != LF) {
+                end++;
+            }
+            endOfLine = end < limit;
+            if (endOfLine) {
+                end++;
+            }
+            line.write(buffer, position, end - position);
+            position = end;
+        }
+        if (line.size() == 0) {
+            return null;
+        }
+        // a delimiter line is short, only such lines are decoded
+        if (line.size() <= closeDelimiter.length() + 8) {
+            String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1).trim();
+            if (text.equals(delimiter) || text.equals(closeDelimiter)) {
+                return text;
+            }
+        }
+        if (part != null) {
+            line.writeTo(part);
+        }
+        return "";
+    }
+
+    private boolean fill() throws IOException {
+        if (position < limit) {
+            return true;
+        }
+        position = 0;
+        limit = Math.max(body.read(buffer), 0);
+        return limit > 0;
+    }
+
+    private static InputStream toStream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
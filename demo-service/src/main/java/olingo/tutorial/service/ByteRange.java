@@ -0,0 +1,116 @@
+package olingo.tutorial.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A range of bytes of a media content, as requested with the Range header of a GET request.
+ *
+ * Only the unit bytes is supported. A range is given by its first and last position ("0-499"),
+ * from a position to the end ("500-") or as the last bytes of the content ("-500"). A header which
+ * can't be parsed, uses another unit or asks for more than MAX_RANGES ranges is ignored, then the
+ * whole content is sent.
+ */
+final class ByteRange {
+
+    static final String UNIT = "bytes";
+
+    // more ranges are answered with the whole content, a client can't make the server send a part many times
+    private static final int MAX_RANGES = 16;
+
+    private final long first;
+    private final long last;
+
+    private ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLast() {
+        return last;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value of the Content-Range header of the part
+     */
+    String getContentRange(long length) {
+        return UNIT + ' ' + first + '-' + last + '/' + length;
+    }
+
+    /**
+     * Returns the value of the Content-Range header of a 416 response
+     */
+    static String getUnsatisfiedContentRange(long length) {
+        return UNIT + " */" + length;
+    }
+
+    /**
+     * Returns the ranges of the header for a content of the given length, in the order they were
+     * requested. Ranges which start behind the content are left out, so the list is empty if
+     * none of them can be satisfied. Returns null if the header is missing or ignored.
+     */
+    static List<ByteRange> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+        header = header.trim();
+        if (!header.regionMatches(true, 0, UNIT + '=', 0, UNIT.length() + 1)) {
+            return null;
+        }
+        String[] specs = header.substring(UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            try {
+                if (dash == 0) {
+                    // the last bytes of the content
+                    long suffix = parsePosition(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    first = Math.max(length - suffix, 0);
+                    last = length - 1;
+                } else {
+                    first = parsePosition(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : parsePosition(spec.substring(dash + 1));
+                    if (last < first) {
+                        return null;
+                    }
+                    last = Math.min(last, length - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (first < length) {
+                ranges.add(new ByteRange(first, last));
+            }
+        }
+        return ranges;
+    }
+
+    private static long parsePosition(String position) {
+        for (int i = 0; i < position.length(); i++) {
+            if (position.charAt(i) < '0' || position.charAt(i) > '9') {
+                throw new NumberFormatException("Invalid position " + position);
+            }
+        }
+        return Long.parseLong(position);
+    }
+}
@@ -20,16 +20,12 @@ import org.apache.olingo.server.api.uri.UriInfo;
 import org.apache.olingo.server.api.uri.UriResourceAction;
 
 import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
 
 public class DemoActionVoidProcessor implements ActionVoidProcessor {
 
-    private Storage storage;
     private OData odata;
     
-    public DemoActionVoidProcessor(Storage storage) {
-        this.storage = storage;
-    }
-    
     @Override
     public void init(OData odata, ServiceMetadata serviceMetadata) {
         this.odata = odata;
@@ -52,6 +48,7 @@ public class DemoActionVoidProcessor implements ActionVoidProcessor {
             DeserializerResult deserializerResult = deserializer.actionParameters(request.getBody(), action);
             Map<String, Parameter> actionParameters = deserializerResult.getActionParameters();
             Parameter param = actionParameters.get(DemoEdmProvider.PARAMETER_AMOUNT);
+            Storage storage = StorageContext.get();
             if (param == null) {
                 storage.resetDataSet();
             } else {
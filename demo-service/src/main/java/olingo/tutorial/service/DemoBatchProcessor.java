@@ -1,39 +1,91 @@
 package olingo.tutorial.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
+import org.apache.olingo.commons.api.ex.ODataRuntimeException;
 import org.apache.olingo.commons.api.format.ContentType;
 import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpMethod;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.ODataLibraryException;
 import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
+import org.apache.olingo.server.api.ODataServerError;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.batch.BatchFacade;
+import org.apache.olingo.server.api.deserializer.DeserializerException;
 import org.apache.olingo.server.api.deserializer.batch.BatchOptions;
 import org.apache.olingo.server.api.deserializer.batch.BatchRequestPart;
 import org.apache.olingo.server.api.deserializer.batch.ODataResponsePart;
 import org.apache.olingo.server.api.processor.BatchProcessor;
+import org.apache.olingo.server.api.processor.Processor;
+import org.apache.olingo.server.core.ODataExceptionHelper;
+import org.apache.olingo.server.core.ODataHandler;
+import org.apache.olingo.server.core.debug.ServerCoreDebugger;
 
 import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
 
+/**
+ * Executes the parts of a $batch request.
+ *
+ * The batch is processed while the response is sent: the parts are read from the request body
+ * one after the other, see BatchPartReader, and the response of each part is written as soon as
+ * it is ready and all parts before it have been written. Neither the whole request nor the
+ * whole response is kept in memory. As the status of the batch response is sent before the
+ * later parts are read, a part which can't be parsed or fails with an exception ends the batch,
+ * its error is the last part of the response.
+ *
+ * Consecutive GET requests outside of change sets don't depend on each other, they run
+ * concurrently on the executor, up to MAX_PENDING_PARTS ahead of the response which is written.
+ * Each of them gets its own Olingo handler, as a handler must not process two requests at the
+ * same time, and its response is serialized on the worker thread. When the next response to be
+ * written hasn't been started yet, the request thread runs it itself. Change sets and other
+ * modifying requests wait until all parts before them are finished and run on the request
+ * thread, the parts after them start afterwards, so they see the changes.
+ *
+ * Without an executor all parts run one after the other.
+ */
 public class DemoBatchProcessor implements BatchProcessor {
-    
+
+    // the number of reads which may run ahead of the written response, each holds its response
+    private static final int MAX_PENDING_PARTS = 16;
+
+    private final ExecutorService executor;
+    private final List<Processor> processors;
     private OData odata;
-    private Storage storage;
+    private ServiceMetadata serviceMetadata;
 
-    public DemoBatchProcessor(Storage storage) {
-        this.storage = storage;
+    /**
+     * Creates a processor which runs the GET parts on the executor (null to run them one after the
+     * other), with handlers that get the given processors
+     */
+    public DemoBatchProcessor(ExecutorService executor, List<Processor> processors) {
+        this.executor = executor;
+        this.processors = processors;
     }
 
     @Override
         public void init(OData odata, ServiceMetadata serviceMetadata) {
         this.odata = odata;
+        this.serviceMetadata = serviceMetadata;
     }
 
     @Override
@@ -43,25 +95,22 @@ public class DemoBatchProcessor implements BatchProcessor {
         // 1 - Extract the boundary
         String boundary = facade.extractBoundaryFromContentType(request.getHeader(HttpHeader.CONTENT_TYPE));
         
-        // 2 - Parse batch parts
+        // 2 - Parse the first batch part, an invalid one still fails the whole request
         BatchOptions options = BatchOptions.with()
                 .rawBaseUri(request.getRawBaseUri())
                 .rawServiceResolutionUri(request.getRawServiceResolutionUri())
                 .build();
-        List<BatchRequestPart> batchParts = odata.createFixedFormatDeserializer()
-                .parseBatchRequest(request.getBody(), boundary, options);
-        
-        // 3 - Execute batch parts
-        List<ODataResponsePart> responses = new ArrayList<>();
-        for (BatchRequestPart batchRequestPart : batchParts) {
-            ODataResponsePart partResponse = facade.handleBatchRequest(batchRequestPart);
-            responses.add(partResponse);
+        BatchPartReader reader = new BatchPartReader(odata, request.getBody(), boundary, options);
+        BatchRequestPart firstPart;
+        try {
+            firstPart = reader.next();
+        } catch (IOException e) {
+            throw new ODataRuntimeException("Error on reading the batch request", e);
         }
-        
-        // 4 - Serialize the response
+
+        // 3 - Execute the batch parts and serialize their responses while the response is read
         String newBoundary = "batch_" + UUID.randomUUID().toString();
-        InputStream serializedResponse = odata.createFixedFormatSerializer()
-                .batchResponse(responses, newBoundary);
+        InputStream serializedResponse = new BatchResponseStream(facade, reader, firstPart, newBoundary);
         response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.MULTIPART_MIXED + ";boundary=" + newBoundary);
         response.setContent(serializedResponse);
         response.setStatusCode(HttpStatusCode.ACCEPTED.getStatusCode());
@@ -71,10 +120,11 @@ public class DemoBatchProcessor implements BatchProcessor {
     public ODataResponsePart processChangeSet(BatchFacade facade, List<ODataRequest> requests)
             throws ODataApplicationException, ODataLibraryException {
         List<ODataResponse> responses = new ArrayList<>();
+        Storage storage = StorageContext.get();
         
         try {
             storage.beginTransaction();
-            
+        
             for (ODataRequest request : requests) {
                 ODataResponse response = facade.handleODataRequest(request);
                 int statusCode = response.getStatusCode();
@@ -93,6 +143,265 @@ public class DemoBatchProcessor implements BatchProcessor {
         }
     }
 
-}
+    private boolean isRead(BatchRequestPart batchRequestPart) {
+        return executor != null && !batchRequestPart.isChangeSet()
+                && batchRequestPart.getRequests().get(0).getMethod() == HttpMethod.GET;
+    }
+
+    private static byte[] toByteArray(InputStream content) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = content.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            content.close();
+        }
+    }
+
+    /**
+     * The multipart response of the batch, each part is read from the request, executed and
+     * serialized when the previous part of the response has been read
+     */
+    private class BatchResponseStream extends InputStream {
+
+        private final BatchFacade facade;
+        private final BatchPartReader reader;
+        private final String boundary;
+        private final Storage storage = StorageContext.get();
+        private final Thread requestThread = Thread.currentThread();
+        // the reads which have been started, in the order of the parts
+        private final Deque<FutureTask<ODataResponsePart>> pendingReads = new ArrayDeque<>();
+
+        // the next part to execute, null if it hasn't been read yet
+        private BatchRequestPart nextPart;
+        private boolean endOfParts;
+        // the error which ends the batch, it is written after the pending reads
+        private ODataResponsePart failure;
+        private boolean finished;
+
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        BatchResponseStream(BatchFacade facade, BatchPartReader reader, BatchRequestPart firstPart, String boundary) {
+            this.facade = facade;
+            this.reader = reader;
+            this.boundary = boundary;
+            this.nextPart = firstPart;
+            this.endOfParts = firstPart == null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int total = 0;
+            while (total < len && fill()) {
+                int count = Math.min(len - total, chunk.length - position);
+                System.arraycopy(chunk, position, b, off + total, count);
+                position += count;
+                total += count;
+            }
+            return total == 0 && len > 0 ? -1 : total;
+        }
+
+        /**
+         * Stops the reads which are still running, e.g. if the client has gone
+         */
+        @Override
+        public void close() throws IOException {
+            finished = true;
+            for (FutureTask<ODataResponsePart> read : pendingReads) {
+                read.cancel(true);
+            }
+            pendingReads.clear();
+        }
+
+        private boolean fill() throws IOException {
+            while (position == chunk.length) {
+                if (finished) {
+                    return false;
+                }
+                chunk = nextChunk();
+                position = 0;
+            }
+            return true;
+        }
 
+        /**
+         * Returns the serialized response of the next part, at the end the close delimiter
+         */
+        private byte[] nextChunk() throws IOException {
+            while (true) {
+                // consecutive reads are started before the first of them is written, the pending
+                // reads are only written when the next part has to wait for them
+                if (!pendingReads.isEmpty() && (pendingReads.size() >= MAX_PENDING_PARTS || endOfParts
+                        || nextPart != null && !isRead(nextPart))) {
+                    try {
+                        return serialize(getResponse(pendingReads.removeFirst()));
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException) {
+                            throw (IOException) e.getCause();
+                        } else if (!(e.getCause() instanceof Exception)) {
+                            throw new IOException(e.getCause());
+                        }
+                        return fail((Exception) e.getCause());
+                    }
+                } else if (endOfParts) {
+                    if (failure != null) {
+                        ODataResponsePart response = failure;
+                        failure = null;
+                        return serialize(response);
+                    }
+                    finished = true;
+                    return ("--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                } else if (nextPart == null) {
+                    try {
+                        nextPart = reader.next();
+                        endOfParts = nextPart == null;
+                    } catch (DeserializerException e) {
+                        failure = createErrorResponse(ODataExceptionHelper.createServerErrorObject(e, null));
+                        endOfParts = true;
+                    }
+                    continue;
+                }
 
+                BatchRequestPart part = nextPart;
+                nextPart = null;
+                if (isRead(part)) {
+                    FutureTask<ODataResponsePart> read = new FutureTask<>(new ReadTask(this, part.getRequests().get(0)));
+                    executor.execute(read);
+                    pendingReads.add(read);
+                } else {
+                    // the parts before have been written, the parts after haven't been started
+                    try {
+                        return serialize(facade.handleBatchRequest(part));
+                    } catch (ODataApplicationException | ODataLibraryException | RuntimeException e) {
+                        // the status has been sent already, e.g. a reference to an unknown Content-ID
+                        // of a change set can't fail the whole request any more
+                        return fail(e);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Ends the batch with the error of the exception as its last part, the reads which are
+         * still pending aren't written
+         */
+        private byte[] fail(Exception e) throws IOException {
+            for (FutureTask<ODataResponsePart> read : pendingReads) {
+                read.cancel(true);
+            }
+            pendingReads.clear();
+            nextPart = null;
+            failure = null;
+            endOfParts = true;
+            ODataServerError error;
+            if (e instanceof ODataApplicationException) {
+                error = ODataExceptionHelper.createServerErrorObject((ODataApplicationException) e);
+            } else if (e instanceof ODataLibraryException) {
+                error = ODataExceptionHelper.createServerErrorObject((ODataLibraryException) e, null);
+            } else {
+                error = ODataExceptionHelper.createServerErrorObject(e);
+            }
+            return serialize(createErrorResponse(error));
+        }
+
+        private ODataResponsePart getResponse(FutureTask<ODataResponsePart> read)
+                throws IOException, ExecutionException {
+            // the request thread doesn't wait idle for a read which no worker has started yet
+            read.run();
+            try {
+                return read.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the batch parts", e);
+            }
+        }
+
+        private ODataResponsePart createErrorResponse(ODataServerError error) throws IOException {
+            ODataResponse response = new ODataResponse();
+            response.setStatusCode(error.getStatusCode());
+            response.setHeader(HttpHeader.CONTENT_TYPE, ContentType.JSON.toContentTypeString());
+            try {
+                response.setContent(odata.createSerializer(ContentType.JSON).error(error).getContent());
+            } catch (ODataLibraryException e) {
+                throw new IOException(e);
+            }
+            return new ODataResponsePart(response, false);
+        }
+
+        /**
+         * Serializes the response part with the batch serializer of Olingo, as the only part of
+         * a batch without its close delimiter
+         */
+        private byte[] serialize(ODataResponsePart response) throws IOException {
+            byte[] content;
+            try {
+                content = toByteArray(odata.createFixedFormatSerializer()
+                        .batchResponse(Collections.singletonList(response), boundary));
+            } catch (ODataLibraryException e) {
+                throw new IOException(e);
+            }
+            int closeDelimiterLength = ("--" + boundary + "--\r\n").length();
+            return Arrays.copyOf(content, content.length - closeDelimiterLength);
+        }
+    }
+
+    /**
+     * Processes a GET request of the batch on a worker thread, or on the request thread if it
+     * gets there first
+     */
+    private class ReadTask implements Callable<ODataResponsePart> {
+
+        private final Storage storage;
+        private final Thread requestThread;
+        private final ODataRequest request;
+
+        ReadTask(BatchResponseStream stream, ODataRequest request) {
+            this.storage = stream.storage;
+            this.requestThread = stream.requestThread;
+            this.request = request;
+        }
+
+        @Override
+        public ODataResponsePart call() throws IOException {
+            ODataHandler handler = new ODataHandler(odata, serviceMetadata, new ServerCoreDebugger(odata));
+            for (Processor processor : processors) {
+                handler.register(processor);
+            }
+            // the request thread has the storage bound already, and keeps it
+            boolean worker = Thread.currentThread() != requestThread;
+            if (worker) {
+                StorageContext.bind(storage);
+            }
+            try {
+                ODataResponse response = handler.process(request);
+                // as the BatchFacade does for requests outside of change sets
+                String contentId = request.getHeader(HttpHeader.CONTENT_ID);
+                if (contentId != null) {
+                    response.setHeader(HttpHeader.CONTENT_ID, contentId);
+                }
+                // streamed content would otherwise be serialized by the request thread
+                if (response.getContent() != null) {
+                    response.setContent(new ByteArrayInputStream(toByteArray(response.getContent())));
+                }
+                return new ODataResponsePart(response, false);
+            } finally {
+                if (worker) {
+                    StorageContext.unbind();
+                }
+            }
+        }
+    }
+}
@@ -38,6 +38,7 @@ import org.apache.olingo.commons.api.edm.provider.CsdlNavigationPropertyBinding;
 import org.apache.olingo.commons.api.edm.provider.CsdlParameter;
 import org.apache.olingo.commons.api.edm.provider.CsdlProperty;
 import org.apache.olingo.commons.api.edm.provider.CsdlPropertyRef;
+import org.apache.olingo.commons.api.edm.provider.CsdlReferentialConstraint;
 import org.apache.olingo.commons.api.edm.provider.CsdlReturnType;
 import org.apache.olingo.commons.api.edm.provider.CsdlSchema;
 
@@ -71,6 +72,9 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
     public static final String ES_PRODUCTS_NAME = "Products";
     public static final String ES_CATEGORIES_NAME = "Categories";
     public static final String ES_ADVERTISEMENTS_NAME = "Advertisements";
+
+    // Foreign Keys
+    public static final String FK_CATEGORY_ID = "CategoryID";
   
     // Action
     public static final String ACTION_RESET = "Reset";
@@ -217,22 +221,29 @@ public class DemoEdmProvider extends CsdlAbstractEdmProvider {
             CsdlProperty  description = new CsdlProperty()
                     .setName("Description")
                     .setType(EdmPrimitiveTypeKind.String.getFullQualifiedName());
+            CsdlProperty categoryId = new CsdlProperty()
+                    .setName(FK_CATEGORY_ID)
+                    .setType(EdmPrimitiveTypeKind.Int32.getFullQualifiedName());
             
             // Key
             CsdlPropertyRef propertyRef = new CsdlPropertyRef()
                     .setName("ID");
             
-            // Navigation
+            // Navigation, the category is the one with the ID of the CategoryID property
+            CsdlReferentialConstraint categoryConstraint = new CsdlReferentialConstraint()
+                    .setProperty(FK_CATEGORY_ID)
+                    .setReferencedProperty("ID");
             CsdlNavigationProperty navigationProperty = new CsdlNavigationProperty()
                     .setName("Category")
                     .setType(ET_CATEGORY_FQN)
                     .setNullable(false)
-                    .setPartner("Products");
+                    .setPartner("Products")
+                    .setReferentialConstraints(Arrays.asList(categoryConstraint));
             
             // Entity type
             return new CsdlEntityType()
                     .setName(ET_PRODUCT_NAME)
-                    .setProperties(Arrays.asList(id, name , description))
+                    .setProperties(Arrays.asList(id, name , description, categoryId))
                     .setKey(Arrays.asList(propertyRef))
                     .setNavigationProperties(Arrays.asList(navigationProperty));
             
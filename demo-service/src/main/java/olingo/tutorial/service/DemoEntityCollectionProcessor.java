@@ -18,30 +18,35 @@
  */
 package olingo.tutorial.service;
 
-import java.util.Collections;
-import java.util.Comparator;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.ContextURL.Suffix;
 import org.apache.olingo.commons.api.data.Entity;
 import org.apache.olingo.commons.api.data.EntityCollection;
-import org.apache.olingo.commons.api.data.Link;
 import org.apache.olingo.commons.api.edm.EdmEntitySet;
 import org.apache.olingo.commons.api.edm.EdmEntityType;
 import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
-import org.apache.olingo.commons.api.edm.EdmNavigationPropertyBinding;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
 import org.apache.olingo.commons.api.edm.EdmProperty;
 import org.apache.olingo.commons.api.format.ContentType;
 import org.apache.olingo.commons.api.http.HttpHeader;
 import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.commons.core.Decoder;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataApplicationException;
 import org.apache.olingo.server.api.ODataRequest;
 import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.prefer.PreferencesApplied;
 import org.apache.olingo.server.api.processor.EntityCollectionProcessor;
 import org.apache.olingo.server.api.serializer.EntityCollectionSerializerOptions;
 import org.apache.olingo.server.api.serializer.ODataSerializer;
@@ -56,19 +61,27 @@ import org.apache.olingo.server.api.uri.UriResourceFunction;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 import org.apache.olingo.server.api.uri.UriResourcePrimitiveProperty;
 import org.apache.olingo.server.api.uri.queryoption.CountOption;
-import org.apache.olingo.server.api.uri.queryoption.ExpandItem;
 import org.apache.olingo.server.api.uri.queryoption.ExpandOption;
 import org.apache.olingo.server.api.uri.queryoption.FilterOption;
 import org.apache.olingo.server.api.uri.queryoption.OrderByItem;
 import org.apache.olingo.server.api.uri.queryoption.OrderByOption;
 import org.apache.olingo.server.api.uri.queryoption.SelectOption;
 import org.apache.olingo.server.api.uri.queryoption.SkipOption;
+import org.apache.olingo.server.api.uri.queryoption.SkipTokenOption;
 import org.apache.olingo.server.api.uri.queryoption.TopOption;
-import org.apache.olingo.server.api.uri.queryoption.expression.Expression;
-import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitException;
 import org.apache.olingo.server.api.uri.queryoption.expression.Member;
+import org.apache.olingo.server.core.serializer.json.ODataJsonSerializer;
 
+import olingo.tutorial.data.EntityFilter;
+import olingo.tutorial.data.EntityQuery;
+import olingo.tutorial.data.EntityStream;
+import olingo.tutorial.data.RowComparator;
+import olingo.tutorial.data.SkipToken;
 import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
+import olingo.tutorial.service.QueryPlanCache.QueryPlan;
+import olingo.tutorial.service.ResponseCache.CachedResponse;
+import olingo.tutorial.service.ResponseCache.Recording;
 import olingo.tutorial.util.Util;
 
 /**
@@ -81,11 +94,22 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
 
     private OData odata;
     private ServiceMetadata serviceMetadata;
-  
-    private Storage storage;
+    private final QueryPlanCache queryPlanCache;
+    private final ResponseCache responseCache;
+    private final int maxPageSize;
 
-    public DemoEntityCollectionProcessor(Storage storage) {
-        this.storage = storage;
+    /**
+     * The processor compiles $filter and $orderby only if the plan isn't found in the cache.
+     * A repeated read of the same page is answered with the response kept in the responseCache.
+     * 
+     * A result with more than maxPageSize entities is returned in pages, each page ends with a next
+     * link for the following page. A client may ask for smaller pages with the preference
+     * odata.maxpagesize. A maxPageSize of 0 returns all entities at once, unless the client asks for pages.
+     */
+    public DemoEntityCollectionProcessor(QueryPlanCache queryPlanCache, ResponseCache responseCache, int maxPageSize) {
+        this.queryPlanCache = queryPlanCache;
+        this.responseCache = responseCache;
+        this.maxPageSize = maxPageSize;
     }
   
     // our processor is initialized with the OData context object
@@ -127,6 +151,7 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
 
         // 1st step: Analyze the URI and fetch the entity collection returned by the function import
         // Function Imports are always the first segment of the resource path
+        Storage storage = StorageContext.get();
         UriResourceFunction uriResourceFunction = (UriResourceFunction) uriInfo.getUriResourceParts().get(0);
         EntityCollection entityCol = storage.readFunctionImportCollection(uriResourceFunction, serviceMetadata);
         
@@ -150,8 +175,9 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
             ContentType responseFormat) 
                     throws ODataApplicationException, SerializerException {
 
+        Storage storage = StorageContext.get();
         EdmEntitySet responseEntitySet;
-        EntityCollection responseEntityCollection;
+        EntityStream responseEntities;
         
         // 1st we have retrieve the requested EntitySet from the uriInfo object 
         // (representation of the parsed service URI)
@@ -161,11 +187,32 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         UriResourceEntitySet uriResourceEntitySet = (UriResourceEntitySet) resourcePaths.get(0);
         EdmEntitySet startEntitySet = uriResourceEntitySet.getEntitySet();
         
+        // the page size of the server, or the smaller one the client prefers
+        int pageSize = maxPageSize;
+        Integer preferredPageSize = odata.createPreferences(request.getHeaders(HttpHeader.PREFER)).getMaxPageSize();
+        boolean preferenceApplied = preferredPageSize != null && preferredPageSize > 0 
+                && (pageSize == 0 || preferredPageSize < pageSize);
+        if (preferenceApplied) {
+            pageSize = preferredPageSize;
+        }
+        
+        // a repeated read gets the response of the first one, until one of its entity sets changes
+        String cacheKey = ResponseCache.createKey(request, responseFormat, pageSize);
+        CachedResponse cachedResponse = responseCache.get(cacheKey);
+        if (cachedResponse != null) {
+            cachedResponse.writeTo(response);
+            return;
+        }
+        Recording recording = responseCache.startRecording(cacheKey);
+        
         // 2nd: fetch the data from backend for this request
+        // $filter, $orderby, $skip, $top and $count are applied while the data is read,
+        // the entities are created one by one while the response is written
         if (segmentCount == 1) { 
             responseEntitySet = startEntitySet;
         
-            responseEntityCollection = storage.readEntitySetData(responseEntitySet);
+            EntityQuery query = createQuery(request, uriInfo, responseEntitySet.getEntityType(), pageSize);
+            responseEntities = storage.streamEntitySetData(responseEntitySet, query);
             
         } else if (segmentCount == 2) {
             
@@ -177,11 +224,16 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
             EdmEntityType targetEntityType = navigationProperty.getType();
             responseEntitySet = Util.getNavigationTargetEntitySet(startEntitySet, navigationProperty);
             
-            responseEntityCollection = storage.getRelatedEntityCollection(sourceEntity, targetEntityType);
+            EntityQuery query = createQuery(request, uriInfo, targetEntityType, pageSize);
+            EntityCollection relatedEntities = storage.getRelatedEntityCollection(sourceEntity, targetEntityType);
+            responseEntities = query.stream(relatedEntities.getEntities(), targetEntityType.getPropertyNames());
         } else {
             throw new ODataApplicationException("Not supported", 
                     HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
         }
+        if (responseEntities.getSkipToken() != null) {
+            responseEntities.setNext(createNextLink(request, responseEntities.getSkipToken()));
+        }
         
         // 3rd: create a serializer based on the requested format (json)
         ODataSerializer serializer = odata.createSerializer(responseFormat);
@@ -190,26 +242,91 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         EdmEntityType responseEntityType = responseEntitySet.getEntityType();
         ContextURL contextUrl;
     
-        // 5th query params
-        EntityCollection finalEntityCollection = new EntityCollection();
-        List<Entity> entityList = responseEntityCollection.getEntities();
-        // count
+        // 5th query params which are applied to the result only
         CountOption countOption = uriInfo.getCountOption();
-        if (countOption != null) {
-            if (countOption.getValue()) {
-                finalEntityCollection.setCount(entityList.size());
+        // select
+        SelectOption selectOption = uriInfo.getSelectOption();
+        // expand
+        ExpandOption expandOption = uriInfo.getExpandOption();
+        Set<String> readEntitySetNames = new LinkedHashSet<>();
+        readEntitySetNames.add(startEntitySet.getName());
+        readEntitySetNames.add(responseEntitySet.getName());
+        if (expandOption != null) {
+            // the related entities are added to the entities batch by batch while they are serialized
+            EntityExpander expander = new EntityExpander(storage, responseEntitySet, expandOption);
+            readEntitySetNames.addAll(expander.getEntitySetNames());
+            URI next = responseEntities.getNext();
+            responseEntities = new EntityStream(new ExpandIterator(responseEntities, expander), 
+                    responseEntities.getCount());
+            responseEntities.setNext(next);
+        }
+        String selectList = odata.createUriHelper().buildContextURLSelectList(
+                responseEntityType, expandOption, selectOption);
+        contextUrl = ContextURL.with()
+                .entitySet(responseEntitySet)
+                .selectList(selectList)
+                .suffix(Suffix.ENTITY)
+                .build();
+        
+        final String id = request.getRawBaseUri() + "/" + responseEntitySet.getName();
+        EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with()
+                .id(id)
+                .contextURL(contextUrl)
+                .count(countOption)
+                .select(selectOption)
+                .expand(expandOption)
+                .build();
+        InputStream content;
+        if (serializer instanceof ODataJsonSerializer) {
+            // the entities are serialized while the response is sent, neither the entities
+            // nor the serialized response are kept in memory as a whole
+            content = new StreamingJsonSerializer(responseFormat).entityCollectionStreamed(
+                    serviceMetadata, responseEntityType, responseEntities, opts);
+        } else {
+            EntityCollection responseEntityCollection = new EntityCollection();
+            while (responseEntities.hasNext()) {
+                responseEntityCollection.getEntities().add(responseEntities.next());
             }
+            responseEntityCollection.setCount(responseEntities.getCount());
+            responseEntityCollection.setNext(responseEntities.getNext());
+            content = serializer.entityCollection(
+                    serviceMetadata, responseEntityType, responseEntityCollection, opts).getContent();
+        }
+    
+        // Finally: configure the response object: set the body, headers and status code
+        response.setContent(content);
+        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        if (preferenceApplied) {
+            response.setHeader(HttpHeader.PREFERENCE_APPLIED, 
+                    PreferencesApplied.with().maxPageSize(pageSize).build().toValueString());
+        }
+        recording.record(response, readEntitySetNames.toArray(new String[readEntitySetNames.size()]));
+    }
+
+    /**
+     * Translates the system query options $filter, $orderby, $skip, $top, $count and $skiptoken
+     * into a query which the storage executes while reading the entities.
+     */
+    private EntityQuery createQuery(ODataRequest request, UriInfo uriInfo, EdmEntityType entityType, int pageSize) 
+            throws ODataApplicationException {
+        EntityQuery.Builder query = EntityQuery.with();
+        query.pageSize(pageSize);
+
+        // filter and order by
+        FilterOption filterOption = uriInfo.getFilterOption();
+        OrderByOption orderByOption = uriInfo.getOrderByOption();
+        if (filterOption != null || orderByOption != null) {
+            QueryPlan plan = getQueryPlan(request, entityType, filterOption, orderByOption);
+            query.filter(plan.getFilter());
+            query.orderBy(plan.getOrderBy());
         }
         // skip
         SkipOption skipOption = uriInfo.getSkipOption();
         if (skipOption != null) {
             int skipNumber = skipOption.getValue();
             if (skipNumber >= 0) {
-                if(skipNumber <= entityList.size()) {
-                    entityList = entityList.subList(skipNumber, entityList.size());
-                } else {
-                    entityList.clear();
-                }
+                query.skip(skipNumber);
             } else {
                 throw new ODataApplicationException("Invalid value for $skip", 
                         HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
@@ -220,123 +337,139 @@ public class DemoEntityCollectionProcessor implements EntityCollectionProcessor
         if (topOption != null) {
             int topNumber = topOption.getValue();
             if (topNumber >= 0) {
-                if (topNumber < entityList.size()) {
-                    entityList = entityList.subList(0, topNumber);
-                }
+                query.top(topNumber);
             } else {
                 throw new ODataApplicationException("Invalid value for $top", 
                         HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ROOT);
             }
         }
-        // select
-        SelectOption selectOption = uriInfo.getSelectOption();
-        // expand
-        ExpandOption expandOption = uriInfo.getExpandOption();
-        EdmNavigationProperty navigationProperty = null;
-        if (expandOption != null) {
-            ExpandItem expandItem = expandOption.getExpandItems().get(0);
-            if (expandItem.isStar()) {
-                EdmNavigationPropertyBinding binding = 
-                        responseEntitySet.getNavigationPropertyBindings().get(0);
-                navigationProperty = (EdmNavigationProperty) responseEntityType.getProperty(binding.getPath());
-            } else {
-                UriResourceNavigation uriResource = 
-                        (UriResourceNavigation) expandItem.getResourcePath().getUriResourceParts().get(0);
-                navigationProperty = uriResource.getProperty();
-            }
+        // count
+        CountOption countOption = uriInfo.getCountOption();
+        if (countOption != null && countOption.getValue()) {
+            query.count(true);
         }
-        if (navigationProperty != null) {
-            EdmEntityType navEntityType = navigationProperty.getType();
-            String navPropName = navigationProperty.getName();
-            for (Entity entity : entityList) {
-                EntityCollection expandEntities = storage.getRelatedEntityCollection(entity, navEntityType);
-                Entity expandEntity = expandEntities.getEntities().get(0);
-                Link link = new Link();
-                link.setTitle(navPropName);
-                link.setInlineEntity(expandEntity);
-                entity.getNavigationLinks().add(link);
+        // skip token, the next page of a previous request
+        SkipTokenOption skipTokenOption = uriInfo.getSkipTokenOption();
+        if (skipTokenOption != null) {
+            query.skipToken(SkipToken.parse(skipTokenOption.getValue()));
+        }
+
+        return query.build();
+    }
+
+    /**
+     * Returns the URL of the next page: the URL of this request with the skip token instead of
+     * $skip and $top, which are applied by the token
+     */
+    private URI createNextLink(ODataRequest request, SkipToken skipToken) throws ODataApplicationException {
+        StringBuilder nextLink = new StringBuilder(request.getRawBaseUri())
+                .append(request.getRawODataPath())
+                .append('?');
+        String rawQueryPath = request.getRawQueryPath();
+        if (rawQueryPath != null && !rawQueryPath.isEmpty()) {
+            for (String option : rawQueryPath.split("&")) {
+                int separator = option.indexOf('=');
+                String name = Decoder.decode(separator < 0 ? option : option.substring(0, separator));
+                if (!"$skip".equals(name) && !"$top".equals(name) && !"$skiptoken".equals(name)) {
+                    nextLink.append(option).append('&');
+                }
             }
         }
-        String selectList = odata.createUriHelper().buildContextURLSelectList(
-                responseEntityType, expandOption, selectOption);
-        contextUrl = ContextURL.with()
-                .entitySet(responseEntitySet)
-                .selectList(selectList)
-                .suffix(Suffix.ENTITY)
-                .build();
-        
-        // order by
-        OrderByOption orderByOption = uriInfo.getOrderByOption();
-        if (orderByOption != null) {
-            List<OrderByItem> orderItemList = orderByOption.getOrders();
-            OrderByItem orderByItem = orderItemList.get(0);
+        nextLink.append("$skiptoken=").append(skipToken.format());
+        try {
+            return new URI(nextLink.toString());
+        } catch (URISyntaxException e) {
+            throw new ODataApplicationException("Unable to create the next link", 
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH, e);
+        }
+    }
+
+    private QueryPlan getQueryPlan(ODataRequest request, EdmEntityType entityType, 
+            FilterOption filterOption, OrderByOption orderByOption) throws ODataApplicationException {
+
+        String key = QueryPlanCache.createKey(entityType, request.getRawQueryPath());
+        QueryPlan plan = queryPlanCache.get(key);
+        if (plan == null) {
+            // the filter is compiled once and then evaluated for each entity
+            EntityFilter filter = filterOption == null ? null 
+                    : FilterCompiler.compile(filterOption.getExpression(), entityType);
+            RowComparator comparator = orderByOption == null ? null 
+                    : createComparator(orderByOption.getOrders(), entityType);
+            plan = new QueryPlan(filter, comparator);
+            queryPlanCache.put(key, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Compares the rows by all items of $orderby
+     */
+    private RowComparator createComparator(List<OrderByItem> orderItemList, EdmEntityType entityType) 
+            throws ODataApplicationException {
+        int itemCount = orderItemList.size();
+        int[] sortColumns = new int[itemCount];
+        boolean[] intColumns = new boolean[itemCount];
+        boolean[] descending = new boolean[itemCount];
+        List<String> propertyNames = entityType.getPropertyNames();
+        for (int i = 0; i < itemCount; i++) {
+            OrderByItem orderByItem = orderItemList.get(i);
+            if (!(orderByItem.getExpression() instanceof Member)) {
+                throw new ODataApplicationException("Only properties are supported in $orderby", 
+                        HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+            }
             Member member = (Member) orderByItem.getExpression();
             UriInfoResource resourcePath = member.getResourcePath();
             UriResourcePrimitiveProperty uriResource = 
                     (UriResourcePrimitiveProperty) resourcePath.getUriResourceParts().get(0);
             EdmProperty sortProperty = uriResource.getProperty();
-            final String sortPropertyName = sortProperty.getName();
-            final boolean desc = orderByItem.isDescending();
-            Comparator<Entity> comparator = new Comparator<Entity>() {
-                @SuppressWarnings({ "rawtypes", "unchecked" })
-                @Override
-                public int compare(Entity o1, Entity o2) {
-                    Comparable val1 = (Comparable) o1.getProperty(sortPropertyName).getValue();
-                    Comparable val2 = (Comparable) o2.getProperty(sortPropertyName).getValue();
-                    int result = val1.compareTo(val2);
-                    if (desc) {
-                        return -result;
-                    } else {
-                        return result;
-                    }
-                }
-            };
-            Collections.sort(entityList, comparator);
+            sortColumns[i] = propertyNames.indexOf(sortProperty.getName());
+            intColumns[i] = sortProperty.getType() instanceof EdmPrimitiveType
+                    && ((EdmPrimitiveType) sortProperty.getType()).getDefaultType() == Integer.class;
+            descending[i] = orderByItem.isDescending();
         }
-        // filter
-        FilterOption filterOption = uriInfo.getFilterOption();
-        if (filterOption != null) {
-            Expression expression = filterOption.getExpression();
-            Iterator<Entity> iterator = entityList.iterator();
-            while (iterator.hasNext()) {
-                Entity entity = iterator.next();
-                FilterExpressionVisitor visitor = new FilterExpressionVisitor(entity);
-                Object result;
-                try {
-                    result = expression.accept(visitor);
-                } catch (ExpressionVisitException e) {
-                    throw new ODataApplicationException("Exception in filter evaluation",
-                            HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+
+        return new RowComparator(sortColumns, intColumns, descending);
+    }
+
+    /**
+     * Reads the entities of the result in batches and expands each batch at once. A batch has
+     * the size of a default page, the memory for the entities doesn't grow with the collection.
+     */
+    private static final class ExpandIterator implements Iterator<Entity> {
+
+        private static final int BATCH_SIZE = 1000;
+
+        private final Iterator<Entity> entities;
+        private final EntityExpander expander;
+        private final List<Entity> batch = new ArrayList<>();
+        private int position;
+
+        ExpandIterator(Iterator<Entity> entities, EntityExpander expander) {
+            this.entities = entities;
+            this.expander = expander;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < batch.size() || entities.hasNext();
+        }
+
+        @Override
+        public Entity next() {
+            if (position == batch.size()) {
+                batch.clear();
+                position = 0;
+                while (batch.size() < BATCH_SIZE && entities.hasNext()) {
+                    batch.add(entities.next());
                 }
-                if (result instanceof Boolean) {
-                    if (!Boolean.TRUE.equals(result)) {
-                        // The expression evaluated to false (or null)
-                        iterator.remove();
-                    }
-                 } else {
-                     throw new ODataApplicationException("A filter expression must evaulate to type Edm.Boolean", 
-                             HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
-                 }
+                expander.expand(batch);
             }
+            return batch.get(position++);
         }
-        
-        finalEntityCollection.getEntities().addAll(entityList);
-        
-        final String id = request.getRawBaseUri() + "/" + responseEntitySet.getName();
-        EntityCollectionSerializerOptions opts = EntityCollectionSerializerOptions.with()
-                .id(id)
-                .contextURL(contextUrl)
-                .count(countOption)
-                .select(selectOption)
-                .expand(expandOption)
-                .build();
-        SerializerResult serializedResult = serializer.entityCollection(
-                serviceMetadata, responseEntityType, finalEntityCollection, opts);
-    
-        // Finally: configure the response object: set the body, headers and status code
-        response.setContent(serializedResult.getContent());
-        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
-        response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
-    }
 
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
 }
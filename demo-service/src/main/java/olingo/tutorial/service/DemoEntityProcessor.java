@@ -18,9 +18,15 @@
  */
 package olingo.tutorial.service;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.UUID;
 
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
@@ -41,6 +47,7 @@ import org.apache.olingo.server.api.ODataResponse;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.deserializer.DeserializerException;
 import org.apache.olingo.server.api.deserializer.ODataDeserializer;
+import org.apache.olingo.server.api.etag.PreconditionException;
 import org.apache.olingo.server.api.processor.EntityProcessor;
 import org.apache.olingo.server.api.processor.MediaEntityProcessor;
 import org.apache.olingo.server.api.serializer.EntitySerializerOptions;
@@ -54,17 +61,30 @@ import org.apache.olingo.server.api.uri.UriResourceEntitySet;
 import org.apache.olingo.server.api.uri.UriResourceFunction;
 import org.apache.olingo.server.api.uri.UriResourceNavigation;
 
+import olingo.tutorial.data.EntityCondition;
 import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
+import olingo.tutorial.service.ResponseCache.CachedResponse;
+import olingo.tutorial.service.ResponseCache.Recording;
 import olingo.tutorial.util.Util;
 
 public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcessor {
 
+    // the SHA-256 digest of media content, see RFC 3230
+    private static final String DIGEST_HEADER = "Digest";
+    private static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+    private static final String CONTENT_RANGE_HEADER = "Content-Range";
+    private static final String IF_RANGE_HEADER = "If-Range";
+
     private OData odata;
     private ServiceMetadata serviceMetadata;
-    private Storage storage;
+    private final ResponseCache responseCache;
 
-    public DemoEntityProcessor(Storage storage) {
-        this.storage = storage;
+    /**
+     * The processor answers repeated reads of an entity with the response kept in the cache
+     */
+    public DemoEntityProcessor(ResponseCache responseCache) {
+        this.responseCache = responseCache;
     }
 
     public void init(OData odata, ServiceMetadata serviceMetadata) {
@@ -78,7 +98,7 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
             ODataResponse response, 
             UriInfo uriInfo, 
             ContentType responseFormat)
-                    throws ODataApplicationException, SerializerException {
+                    throws ODataApplicationException, ODataLibraryException {
 
         UriResource firstResourceSegment = uriInfo.getUriResourceParts().get(0);
 
@@ -97,11 +117,23 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
             ODataResponse response, 
             UriInfo uriInfo, 
             ContentType responseFormat)
-                    throws ODataApplicationException, SerializerException {
+                    throws ODataApplicationException, ODataLibraryException {
 
+        Storage storage = StorageContext.get();
         EdmEntitySet responseEntitySet;
         Entity responseEntity;
 
+        // 0. a repeated read gets the response of the first one, until the entity set changes
+        String cacheKey = ResponseCache.createKey(request, responseFormat, 0);
+        CachedResponse cachedResponse = responseCache.get(cacheKey);
+        if (cachedResponse != null) {
+            if (!isNotModified(request, response, cachedResponse.getETag())) {
+                cachedResponse.writeTo(response);
+            }
+            return;
+        }
+        Recording recording = responseCache.startRecording(cacheKey);
+
         // 1. analyze resource uri
         List<UriResource> resourcePaths = uriInfo.getUriResourceParts();
         int segmentCount = resourcePaths.size();
@@ -125,7 +157,11 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
             EdmEntityType targetEntityType = navigationProperty.getType();
             
             EntityCollection relatedEntities = storage.getRelatedEntityCollection(sourceEntity, targetEntityType);
-            assert relatedEntities.getCount() == 1;
+            if (relatedEntities.getEntities().isEmpty()) {
+                // e.g. the category of the product has been deleted
+                throw new ODataApplicationException("Related entity doesn't exist", 
+                        HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
+            }
             responseEntity = relatedEntities.getEntities().get(0);
             
         } else {
@@ -133,6 +169,11 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
                     HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
         }
 
+        // a client which already has the current version of the entity doesn't need it again
+        if (isNotModified(request, response, responseEntity.getETag())) {
+            return;
+        }
+
         // 3. serialize
         EdmEntityType responseEntityType = responseEntitySet.getEntityType();
 
@@ -148,6 +189,8 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         response.setContent(entityStream);
         response.setStatusCode(HttpStatusCode.OK.getStatusCode());
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.ETAG, responseEntity.getETag());
+        recording.record(response, startEntitySet.getName(), responseEntitySet.getName());
     }
 
     private void readFunctionImport(
@@ -158,7 +201,7 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
                     throws ODataApplicationException, SerializerException {
         
         UriResourceFunction uriResourseFunction = (UriResourceFunction) uriInfo.getUriResourceParts().get(0);
-        Entity entity = storage.readFunctionImportEntity(uriResourseFunction, serviceMetadata);
+        Entity entity = StorageContext.get().readFunctionImportEntity(uriResourseFunction, serviceMetadata);
         
         EdmEntityType edmType = (EdmEntityType) uriResourseFunction.getFunction().getReturnType().getType();
         ContextURL contextURL = ContextURL.with().type(edmType).build();
@@ -189,7 +232,7 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         InputStream reqInputStream = request.getBody();
         ODataDeserializer deserializer = odata.createDeserializer(requestFormat);
         Entity entity = deserializer.entity(reqInputStream, entityType).getEntity();
-        Entity createdEntity = storage.createEntityData(entitySet, entity);
+        Entity createdEntity = StorageContext.get().createEntityData(entitySet, entity);
 
         // 3. serialize the response (we have to return the created entity)
         ContextURL contextUrl = ContextURL.with().entitySet(entitySet).build();
@@ -201,6 +244,7 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         response.setContent(serializedResponse.getContent());
         response.setStatusCode(HttpStatusCode.CREATED.getStatusCode());
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.ETAG, createdEntity.getETag());
     }
 
 
@@ -224,7 +268,8 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         List<UriParameter> keyPredicates = uriResourceEntitySet.getKeyPredicates();
         // Note that this updateEntity()-method is invoked for both PUT or PATCH operations
         HttpMethod httpMethod = request.getMethod();
-        storage.updateEntityData(entitySet, keyPredicates, requestEntity, httpMethod);
+        StorageContext.get().updateEntityData(entitySet, keyPredicates, requestEntity, httpMethod,
+                getChangeCondition(request));
 
         // 3. configure the response object
         response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
@@ -238,7 +283,7 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
 
         // 2. delete the data backend
         List<UriParameter> keyParams = uriResourceEntitySet.getKeyPredicates();
-        storage.deleteEntityData(entitySet, keyParams);
+        StorageContext.get().deleteEntityData(entitySet, keyParams, getChangeCondition(request));
 
         // 3. configure the response object
         response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
@@ -249,17 +294,86 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
             ContentType responseFormat) 
                     throws ODataApplicationException, ODataLibraryException {
         
+        Storage storage = StorageContext.get();
         UriResourceEntitySet uriResourceEntitySet = Util.getUriResourceEntitySet(uriInfo);
         EdmEntitySet entitySet = uriResourceEntitySet.getEntitySet();
 
         Entity entity = storage.readEntityData(entitySet, uriResourceEntitySet.getKeyPredicates());
+        // the version of the entity changes with the media content as well
+        if (isNotModified(request, response, entity.getETag())) {
+            return;
+        }
 
-        byte[] mediaContent = storage.readMedia(entity);
-        InputStream responseContent = odata.createFixedFormatSerializer().binary(mediaContent);
+        response.setHeader(HttpHeader.ETAG, entity.getETag());
+        response.setHeader(ACCEPT_RANGES_HEADER, ByteRange.UNIT);
+        // the digest is the one of the whole content, also for a partial response
+        setDigest(response, storage.getMediaDigest(entity));
+
+        long length = storage.getMediaLength(entity);
+        List<ByteRange> ranges = getRanges(request, entity.getETag(), length);
+        if (ranges == null) {
+            // the content is streamed from the blob store, it isn't copied into a byte array before
+            response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+            response.setContent(storage.readMedia(entity));
+            response.setHeader(HttpHeader.CONTENT_TYPE, entity.getMediaContentType());
+            response.setHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(length));
+        } else if (ranges.isEmpty()) {
+            response.setStatusCode(HttpStatusCode.RANGE_NOT_SATISFIABLE.getStatusCode());
+            response.setHeader(CONTENT_RANGE_HEADER, ByteRange.getUnsatisfiedContentRange(length));
+        } else if (ranges.size() == 1) {
+            // only the requested slice is read from the blob store
+            ByteRange range = ranges.get(0);
+            response.setStatusCode(HttpStatusCode.PARTIAL_CONTENT.getStatusCode());
+            response.setContent(storage.readMedia(entity, range.getFirst(), range.getLength()));
+            response.setHeader(HttpHeader.CONTENT_TYPE, entity.getMediaContentType());
+            response.setHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(range.getLength()));
+            response.setHeader(CONTENT_RANGE_HEADER, range.getContentRange(length));
+        } else {
+            writeByteRanges(response, storage, entity, ranges, length);
+        }
+    }
 
-        response.setStatusCode(HttpStatusCode.OK.getStatusCode());
-        response.setContent(responseContent);
-        response.setHeader(HttpHeader.CONTENT_TYPE, entity.getMediaContentType());
+    /**
+     * Returns the ranges of the media content requested by the Range header, see ByteRange.parse.
+     * Returns null if the whole content is sent, also if the If-Range header doesn't match the
+     * ETag. If-Range needs a strong comparison (RFC 7233), which a weak ETag never passes, and a
+     * date is never compared as the entity doesn't know when it was modified. The ETags of the
+     * service are weak, so a request with If-Range gets the whole content.
+     */
+    private static List<ByteRange> getRanges(ODataRequest request, String eTag, long length) {
+        String ifRange = request.getHeader(IF_RANGE_HEADER);
+        if (ifRange != null && (eTag == null || eTag.startsWith("W/") || !ifRange.trim().equals(eTag))) {
+            return null;
+        }
+        return ByteRange.parse(request.getHeader(HttpHeader.RANGE), length);
+    }
+
+    /**
+     * Answers a request for several ranges with a multipart/byteranges body. The parts are
+     * streamed from the blob store one after the other, only their headers are built in memory.
+     */
+    private static void writeByteRanges(ODataResponse response, Storage storage, Entity entity,
+            List<ByteRange> ranges, long length) throws ODataApplicationException {
+        String boundary = "byteranges_" + UUID.randomUUID();
+        List<InputStream> parts = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] header = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeader.CONTENT_TYPE + ": " + entity.getMediaContentType() + "\r\n"
+                    + CONTENT_RANGE_HEADER + ": " + range.getContentRange(length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+            parts.add(new ByteArrayInputStream(header));
+            parts.add(storage.readMedia(entity, range.getFirst(), range.getLength()));
+            contentLength += header.length + range.getLength();
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        parts.add(new ByteArrayInputStream(end));
+        contentLength += end.length;
+
+        response.setStatusCode(HttpStatusCode.PARTIAL_CONTENT.getStatusCode());
+        response.setContent(new SequenceInputStream(Collections.enumeration(parts)));
+        response.setHeader(HttpHeader.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+        response.setHeader(HttpHeader.CONTENT_LENGTH, String.valueOf(contentLength));
     }
 
     @Override
@@ -268,11 +382,10 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
                     throws ODataApplicationException, ODataLibraryException {
 
         EdmEntitySet entitySet = Util.getUriResourceEntitySet(uriInfo).getEntitySet();
-        // the whole body of the request contains the content of the media entity
-        byte[] mediaContent = odata.createFixedFormatDeserializer().binary(request.getBody());
-
+        // the whole body of the request contains the content of the media entity, it is streamed to the storage
+        Storage storage = StorageContext.get();
         Entity entity = storage.createMediaEntity(entitySet.getEntityType(),
-                requestFormat.toContentTypeString(), mediaContent);
+                requestFormat.toContentTypeString(), request.getBody(), getContentLength(request));
 
         ContextURL contextUrl = ContextURL.with().entitySet(entitySet).suffix(Suffix.ENTITY).build();
         EntitySerializerOptions opts = EntitySerializerOptions.with().contextURL(contextUrl).build();
@@ -286,6 +399,8 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         response.setStatusCode(HttpStatusCode.CREATED.getStatusCode());
         response.setHeader(HttpHeader.LOCATION, location);
         response.setHeader(HttpHeader.CONTENT_TYPE, responseFormat.toContentTypeString());
+        response.setHeader(HttpHeader.ETAG, entity.getETag());
+        setDigest(response, storage.getMediaDigest(entity));
     }
 
     @Override
@@ -293,26 +408,46 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
             ContentType requestFormat, ContentType responseFormat)
                     throws ODataApplicationException, ODataLibraryException {
 
+        Storage storage = StorageContext.get();
         UriResourceEntitySet uriResourceEntitySet = Util.getUriResourceEntitySet(uriInfo);
         EdmEntitySet entitySet = uriResourceEntitySet.getEntitySet();
 
         Entity entity = storage.readEntityData(entitySet, uriResourceEntitySet.getKeyPredicates());
 
-        byte[] mediaContent = odata.createFixedFormatDeserializer().binary(request.getBody());
-        storage.updateMedia(entity, requestFormat.toContentTypeString(), mediaContent);
+        storage.updateMedia(entity, requestFormat.toContentTypeString(), request.getBody(), 
+                getContentLength(request), getChangeCondition(request));
 
         response.setStatusCode(HttpStatusCode.NO_CONTENT.getStatusCode());
     }
 
+    /**
+     * Returns the length of the request body, -1 if the client didn't send it
+     */
+    private static long getContentLength(ODataRequest request) {
+        String contentLength = request.getHeader(HttpHeader.CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // the body is read until its end
+            }
+        }
+        return -1;
+    }
+
+    private static void setDigest(ODataResponse response, String digest) {
+        if (digest != null) {
+            response.setHeader(DIGEST_HEADER, digest);
+        }
+    }
+
     @Override
     public void deleteMediaEntity(ODataRequest request, ODataResponse response, UriInfo uriInfo)
             throws ODataApplicationException, ODataLibraryException {
         /*
-         * In this tutorial, the content of the media entity is stored in a special property.
-         * So no additional steps to delete the content of the media entity are necessary.
-         *
-         * A real service may store the content on the file system. So we have to take care to
-         * delete external files too.
+         * In this tutorial, the content of the media entity is stored in the blob store of the
+         * storage, the entity only refers to it. So no additional steps to delete the content of
+         * the media entity are necessary.
          *
          * DELETE request to /Advertisements(ID) will be dispatched to the deleteEntity(...) method
          * DELETE request to /Advertisements(ID)/$value will be dispatched to the deleteMediaEntity(...) method
@@ -322,4 +457,42 @@ public class DemoEntityProcessor implements EntityProcessor, MediaEntityProcesso
         deleteEntity(request, response, uriInfo);
     }
 
+    /**
+     * Answers a conditional read with 304 if the If-None-Match header matches the ETag of the
+     * entity, the entity isn't serialized then. A failed If-Match is answered with 412.
+     */
+    private boolean isNotModified(ODataRequest request, ODataResponse response, String eTag) 
+            throws PreconditionException {
+        if (odata.createETagHelper().checkReadPreconditions(eTag, 
+                request.getHeaders(HttpHeader.IF_MATCH), request.getHeaders(HttpHeader.IF_NONE_MATCH))) {
+            response.setStatusCode(HttpStatusCode.NOT_MODIFIED.getStatusCode());
+            response.setHeader(HttpHeader.ETAG, eTag);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the If-Match and If-None-Match headers of a modifying request as condition, which the
+     * storage checks against the current ETag of the entity. A failed condition is answered with 412.
+     */
+    private EntityCondition getChangeCondition(ODataRequest request) {
+        final List<String> ifMatch = request.getHeaders(HttpHeader.IF_MATCH);
+        final List<String> ifNoneMatch = request.getHeaders(HttpHeader.IF_NONE_MATCH);
+        if (ifMatch == null && ifNoneMatch == null) {
+            return null;
+        }
+        return new EntityCondition() {
+            @Override
+            public void check(Entity entity) throws ODataApplicationException {
+                try {
+                    odata.createETagHelper().checkChangePreconditions(entity.getETag(), ifMatch, ifNoneMatch);
+                } catch (PreconditionException e) {
+                    throw new ODataApplicationException(e.getMessage(), 
+                            HttpStatusCode.PRECONDITION_FAILED.getStatusCode(), Locale.ENGLISH, e);
+                }
+            }
+        };
+    }
+
 }
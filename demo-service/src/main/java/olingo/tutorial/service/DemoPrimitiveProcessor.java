@@ -22,7 +22,7 @@ import java.io.InputStream;
 import java.util.List;
 import java.util.Locale;
 
-import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
 
 import org.apache.olingo.commons.api.data.ContextURL;
 import org.apache.olingo.commons.api.data.Entity;
@@ -53,13 +53,8 @@ import org.apache.olingo.server.api.uri.UriResourceProperty;
 public class DemoPrimitiveProcessor implements PrimitiveProcessor {
 
     private OData odata;
-    private Storage storage;
     private ServiceMetadata serviceMetadata;
 
-    public DemoPrimitiveProcessor(Storage storage) {
-        this.storage = storage;
-    }
-
     public void init(OData odata, ServiceMetadata serviceMetadata) {
         this.odata = odata;
         this.serviceMetadata = serviceMetadata;
@@ -96,7 +91,7 @@ public class DemoPrimitiveProcessor implements PrimitiveProcessor {
 
         // 2. retrieve data from backend
         // 2.1. retrieve the entity data, for which the property has to be read
-        Entity entity = storage.readEntityData(edmEntitySet, keyPredicates);
+        Entity entity = StorageContext.get().readEntityData(edmEntitySet, keyPredicates);
         if (entity == null) { // Bad request
             throw new ODataApplicationException("Entity not found", HttpStatusCode.NOT_FOUND.getStatusCode(), Locale.ENGLISH);
         }
@@ -0,0 +1,134 @@
+package olingo.tutorial.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.data.Link;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.edm.EdmNavigationPropertyBinding;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriResourceNavigation;
+import org.apache.olingo.server.api.uri.queryoption.ExpandItem;
+import org.apache.olingo.server.api.uri.queryoption.ExpandOption;
+
+import olingo.tutorial.data.Storage;
+import olingo.tutorial.util.Util;
+
+/**
+ * Adds the related entities of $expand to a list of entities, e.g. one page of a collection.
+ *
+ * The related entities of all entities of the list are read with one call of the storage per
+ * navigation property, instead of one call per entity. All expand items are supported, also
+ * "*" and nested $expand, the nested items are resolved for the related entities of the whole
+ * list at once as well. The links are added to the entities of the response, which are copies
+ * of the stored data.
+ *
+ * The navigation properties and their entity sets are resolved when the expander is created,
+ * so expanding the entities doesn't fail on the $expand option any more.
+ */
+final class EntityExpander {
+
+    private final Storage storage;
+    private final List<Step> steps;
+    private final Set<String> entitySetNames = new LinkedHashSet<>();
+
+    EntityExpander(Storage storage, EdmEntitySet entitySet, ExpandOption expandOption)
+            throws ODataApplicationException {
+        this.storage = storage;
+        this.steps = createSteps(entitySet, expandOption);
+    }
+
+    /**
+     * Returns the names of the entity sets the related entities are read from
+     */
+    Set<String> getEntitySetNames() {
+        return Collections.unmodifiableSet(entitySetNames);
+    }
+
+    void expand(List<Entity> entities) {
+        expand(entities, steps);
+    }
+
+    private void expand(List<Entity> entities, List<Step> steps) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        for (Step step : steps) {
+            Map<Entity, List<Entity>> relatedEntities =
+                    storage.getRelatedEntities(entities, step.navigationProperty.getType());
+            // an entity which is related to several entities is expanded only once
+            Map<Entity, Boolean> distinctEntities = new IdentityHashMap<>();
+            for (Entity entity : entities) {
+                List<Entity> related = relatedEntities.get(entity);
+                Link link = new Link();
+                link.setTitle(step.navigationProperty.getName());
+                if (step.navigationProperty.isCollection()) {
+                    EntityCollection inlineEntities = new EntityCollection();
+                    inlineEntities.getEntities().addAll(related);
+                    link.setInlineEntitySet(inlineEntities);
+                } else if (!related.isEmpty()) {
+                    link.setInlineEntity(related.get(0));
+                }
+                entity.getNavigationLinks().add(link);
+                for (Entity relatedEntity : related) {
+                    distinctEntities.put(relatedEntity, Boolean.TRUE);
+                }
+            }
+            if (!step.steps.isEmpty()) {
+                expand(new ArrayList<>(distinctEntities.keySet()), step.steps);
+            }
+        }
+    }
+
+    private List<Step> createSteps(EdmEntitySet entitySet, ExpandOption expandOption)
+            throws ODataApplicationException {
+        List<Step> steps = new ArrayList<>();
+        if (expandOption == null) {
+            return steps;
+        }
+        for (ExpandItem expandItem : expandOption.getExpandItems()) {
+            if (expandItem.isStar()) {
+                // all navigation properties of the entity set, without nested options
+                for (EdmNavigationPropertyBinding binding : entitySet.getNavigationPropertyBindings()) {
+                    EdmNavigationProperty navigationProperty =
+                            entitySet.getEntityType().getNavigationProperty(binding.getPath());
+                    steps.add(createStep(entitySet, navigationProperty, null));
+                }
+            } else {
+                UriResourceNavigation uriResource =
+                        (UriResourceNavigation) expandItem.getResourcePath().getUriResourceParts().get(0);
+                steps.add(createStep(entitySet, uriResource.getProperty(), expandItem.getExpandOption()));
+            }
+        }
+        return steps;
+    }
+
+    private Step createStep(EdmEntitySet entitySet, EdmNavigationProperty navigationProperty,
+            ExpandOption nestedExpandOption) throws ODataApplicationException {
+        EdmEntitySet targetEntitySet = Util.getNavigationTargetEntitySet(entitySet, navigationProperty);
+        entitySetNames.add(targetEntitySet.getName());
+        return new Step(navigationProperty, createSteps(targetEntitySet, nestedExpandOption));
+    }
+
+    /**
+     * A navigation property to expand, with the nested expand items for the related entities
+     */
+    private static final class Step {
+
+        private final EdmNavigationProperty navigationProperty;
+        private final List<Step> steps;
+
+        Step(EdmNavigationProperty navigationProperty, List<Step> steps) {
+            this.navigationProperty = navigationProperty;
+            this.steps = steps;
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package olingo.tutorial.service;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmEnumType;
+import org.apache.olingo.commons.api.edm.EdmPrimitiveType;
+import org.apache.olingo.commons.api.edm.EdmType;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.server.api.ODataApplicationException;
+import org.apache.olingo.server.api.uri.UriInfoResource;
+import org.apache.olingo.server.api.uri.UriResource;
+import org.apache.olingo.server.api.uri.UriResourcePrimitiveProperty;
+import org.apache.olingo.server.api.uri.queryoption.expression.BinaryOperatorKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.Expression;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitException;
+import org.apache.olingo.server.api.uri.queryoption.expression.ExpressionVisitor;
+import org.apache.olingo.server.api.uri.queryoption.expression.Literal;
+import org.apache.olingo.server.api.uri.queryoption.expression.MethodKind;
+import org.apache.olingo.server.api.uri.queryoption.expression.UnaryOperatorKind;
+
+import olingo.tutorial.data.EntityFilter;
+import olingo.tutorial.data.Row;
+
+/**
+ * Compiles a $filter expression into a tree of predicates, which is built once per request and
+ * then evaluated for every row of the entity set.
+ *
+ * It supports the same expressions as the FilterExpressionVisitor, but all the work which doesn't
+ * depend on the entity is done while compiling: the types of the operands are checked, literals are
+ * parsed and property names are resolved to the column of the property, i.e. its position in the
+ * entity type.
+ * Int32 values are calculated as primitive ints, so the evaluation doesn't box any values.
+ *
+ * A comparison or a method call with an operand whose property value is null evaluates to false.
+ */
+public class FilterCompiler implements ExpressionVisitor<FilterCompiler.Operand> {
+
+    private final List<String> propertyNames;
+
+    private FilterCompiler(EdmEntityType entityType) {
+        this.propertyNames = entityType.getPropertyNames();
+    }
+
+    public static EntityFilter compile(Expression expression, EdmEntityType entityType)
+            throws ODataApplicationException {
+        Operand operand;
+        try {
+            operand = expression.accept(new FilterCompiler(entityType));
+        } catch (ExpressionVisitException e) {
+            throw new ODataApplicationException("Exception in filter evaluation",
+                    HttpStatusCode.INTERNAL_SERVER_ERROR.getStatusCode(), Locale.ENGLISH);
+        }
+        if (operand.type != Type.BOOLEAN) {
+            throw new ODataApplicationException("A filter expression must evaulate to type Edm.Boolean",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+        }
+        return new CompiledFilter(operand.asBoolean());
+    }
+
+    @Override
+    public Operand visitBinaryOperator(BinaryOperatorKind operator, Operand left, Operand right)
+            throws ExpressionVisitException, ODataApplicationException {
+        if (operator == BinaryOperatorKind.ADD
+                || operator == BinaryOperatorKind.MOD
+                || operator == BinaryOperatorKind.MUL
+                || operator == BinaryOperatorKind.DIV
+                || operator == BinaryOperatorKind.SUB) {
+            return compileArithmeticOperation(operator, left, right);
+        } else if (operator == BinaryOperatorKind.EQ
+                || operator == BinaryOperatorKind.NE
+                || operator == BinaryOperatorKind.GE
+                || operator == BinaryOperatorKind.GT
+                || operator == BinaryOperatorKind.LE
+                || operator == BinaryOperatorKind.LT) {
+            return compileComparisonOperation(operator, left, right);
+        } else if (operator == BinaryOperatorKind.AND
+                || operator == BinaryOperatorKind.OR) {
+            return compileBooleanOperation(operator, left, right);
+        } else {
+            throw new ODataApplicationException("Binary operation " + operator.name() + " is not implemented",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        }
+    }
+
+    private Operand compileBooleanOperation(BinaryOperatorKind operator, Operand left, Operand right)
+            throws ODataApplicationException {
+        if (left.type != Type.BOOLEAN || right.type != Type.BOOLEAN) {
+            throw new ODataApplicationException("Boolean operations needs two boolean operands",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+        }
+        Predicate<Row> node = operator == BinaryOperatorKind.AND
+                ? new And(left.asBoolean(), right.asBoolean())
+                : new Or(left.asBoolean(), right.asBoolean());
+        return Operand.ofBoolean(node);
+    }
+
+    private Operand compileComparisonOperation(BinaryOperatorKind operator, Operand left, Operand right)
+            throws ODataApplicationException {
+        if (left.type != right.type) {
+            throw new ODataApplicationException("Comparison needs two equal types",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+        }
+        int[] properties = merge(left.properties, right.properties);
+        Predicate<Row> node;
+        if (left.type == Type.INT32) {
+            if (left.node instanceof IntProperty && right.node instanceof IntConstant) {
+                // the common case, e.g. ID gt 3
+                node = new IntPropertyComparison(operator, ((IntProperty) left.node).column,
+                        ((IntConstant) right.node).value);
+            } else {
+                node = new IntComparison(operator, left.asInt(), right.asInt(), properties);
+            }
+        } else if (left.type == Type.STRING) {
+            node = new StringComparison(operator, left.asString(), right.asString(), properties);
+        } else {
+            node = new BooleanComparison(operator, left.asBoolean(), right.asBoolean());
+        }
+        return Operand.ofBoolean(node);
+    }
+
+    private Operand compileArithmeticOperation(BinaryOperatorKind operator, Operand left, Operand right)
+            throws ODataApplicationException {
+        if (left.type != Type.INT32 || right.type != Type.INT32) {
+            throw new ODataApplicationException("Arithmetic operations needs two numeric operands",
+                    HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+        }
+        return Operand.ofInt(new IntArithmetic(operator, left.asInt(), right.asInt()),
+                merge(left.properties, right.properties));
+    }
+
+    @Override
+    public Operand visitUnaryOperator(UnaryOperatorKind operator, Operand operand)
+            throws ExpressionVisitException, ODataApplicationException {
+        if (operator == UnaryOperatorKind.NOT && operand.type == Type.BOOLEAN) {
+            // 1.) boolean negation
+            return Operand.ofBoolean(operand.asBoolean().negate());
+        } else if (operator == UnaryOperatorKind.MINUS && operand.type == Type.INT32) {
+            // 2.) arithmetic minus
+            if (operand.node instanceof IntConstant) {
+                return Operand.ofInt(new IntConstant(-((IntConstant) operand.node).value), operand.properties);
+            }
+            return Operand.ofInt(new IntNegation(operand.asInt()), operand.properties);
+        }
+
+        // Operation not processed, throw an exception
+        throw new ODataApplicationException("Invalid type for unary operator",
+                HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+    }
+
+    @Override
+    public Operand visitMethodCall(MethodKind methodCall, List<Operand> parameters)
+            throws ExpressionVisitException, ODataApplicationException {
+        // contains(String, String) -> Boolean
+        if (methodCall == MethodKind.CONTAINS) {
+            Operand first = parameters.get(0);
+            Operand second = parameters.get(1);
+            if (first.type == Type.STRING && second.type == Type.STRING) {
+                return Operand.ofBoolean(new Contains(first.asString(), second.asString(),
+                        merge(first.properties, second.properties)));
+            } else {
+                throw new ODataApplicationException("Contains needs two parametes of type Edm.String",
+                        HttpStatusCode.BAD_REQUEST.getStatusCode(), Locale.ENGLISH);
+            }
+        } else {
+            throw new ODataApplicationException("Method call " + methodCall + " not implemented",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        }
+    }
+
+    @Override
+    public Operand visitLiteral(Literal literal) throws ExpressionVisitException, ODataApplicationException {
+        String literalAsString = literal.getText();
+        Class<?> literalType = literal.getType() instanceof EdmPrimitiveType
+                ? ((EdmPrimitiveType) literal.getType()).getDefaultType() : null;
+        if (literalType == String.class) {
+            // String literals start and end with an single quotation mark, quotes inside are doubled
+            String stringLiteral = "";
+            if (literalAsString.length() > 2) {
+                stringLiteral = literalAsString.substring(1, literalAsString.length() - 1).replace("''", "'");
+            }
+            return Operand.ofString(new StringConstant(stringLiteral), Operand.NO_PROPERTIES);
+        } else if (literalType == Boolean.class) {
+            return Operand.ofBoolean(new BooleanConstant(Boolean.parseBoolean(literalAsString)));
+        } else {
+            // Try to convert the literal into an Java Integer
+            try {
+                return Operand.ofInt(new IntConstant(Integer.parseInt(literalAsString)), Operand.NO_PROPERTIES);
+            } catch (NumberFormatException e) {
+                throw new ODataApplicationException("Only Edm.Int32 and Edm.String literals are implemented",
+                        HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+            }
+        }
+    }
+
+    @Override
+    public Operand visitMember(UriInfoResource member) throws ExpressionVisitException, ODataApplicationException {
+        List<UriResource> uriResourceParts = member.getUriResourceParts();
+        if (uriResourceParts.size() == 1 && uriResourceParts.get(0) instanceof UriResourcePrimitiveProperty) {
+            UriResourcePrimitiveProperty primitiveProperty = (UriResourcePrimitiveProperty) uriResourceParts.get(0);
+            String propertyName = primitiveProperty.getProperty().getName();
+            int column = propertyNames.indexOf(propertyName);
+            int[] properties = new int[] { column };
+
+            EdmType edmType = primitiveProperty.getProperty().getType();
+            Class<?> valueType = edmType instanceof EdmPrimitiveType
+                    ? ((EdmPrimitiveType) edmType).getDefaultType() : null;
+            if (valueType == Integer.class) {
+                return Operand.ofInt(new IntProperty(column), properties);
+            } else if (valueType == String.class) {
+                return Operand.ofString(new StringProperty(column), properties);
+            } else if (valueType == Boolean.class) {
+                return Operand.ofBoolean(new BooleanProperty(column));
+            }
+            throw new ODataApplicationException("Only Edm.Int32, Edm.String and Edm.Boolean properties are "
+                    + "implemented in filter expressions", HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        } else {
+            throw new ODataApplicationException("Only primitive properties are implemented in filter expressions",
+                    HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+        }
+    }
+
+    @Override
+    public Operand visitLambdaExpression(String lambdaFunction, String lambdaVariable, Expression expression)
+            throws ExpressionVisitException, ODataApplicationException {
+        throw new ODataApplicationException("Lambda expressions are not implemented",
+                HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+    }
+
+    @Override
+    public Operand visitAlias(String aliasName) throws ExpressionVisitException, ODataApplicationException {
+        throw new ODataApplicationException("Aliases are not implemented",
+                HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+    }
+
+    @Override
+    public Operand visitTypeLiteral(EdmType type) throws ExpressionVisitException, ODataApplicationException {
+        throw new ODataApplicationException("Type literals are not implemented",
+                HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+    }
+
+    @Override
+    public Operand visitLambdaReference(String variableName) throws ExpressionVisitException, ODataApplicationException {
+        throw new ODataApplicationException("Lambda references are not implemented",
+                HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+    }
+
+    @Override
+    public Operand visitEnum(EdmEnumType type, List<String> enumValues)
+            throws ExpressionVisitException, ODataApplicationException {
+        throw new ODataApplicationException("Enums are not implemented",
+                HttpStatusCode.NOT_IMPLEMENTED.getStatusCode(), Locale.ENGLISH);
+    }
+
+    private static int[] merge(int[] first, int[] second) {
+        if (first.length == 0) {
+            return second;
+        } else if (second.length == 0) {
+            return first;
+        }
+        int[] merged = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, merged, first.length, second.length);
+        return merged;
+    }
+
+    private static boolean compareResult(BinaryOperatorKind operator, int result) {
+        switch (operator) {
+        case EQ:
+            return result == 0;
+        case NE:
+            return result != 0;
+        case GE:
+            return result >= 0;
+        case GT:
+            return result > 0;
+        case LE:
+            return result <= 0;
+        default:
+            // BinaryOperatorKind.LT
+            return result < 0;
+        }
+    }
+
+    private static boolean isAnyNull(int[] properties, Row row) {
+        for (int column : properties) {
+            if (row.isNull(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    enum Type {
+        BOOLEAN, INT32, STRING
+    }
+
+    /**
+     * A compiled sub expression: its type, the node which evaluates it and the properties it reads
+     */
+    static final class Operand {
+
+        static final int[] NO_PROPERTIES = new int[0];
+
+        final Type type;
+        final Object node;
+        // the columns of the properties, if one of them is null the value of the operand is undefined
+        final int[] properties;
+
+        private Operand(Type type, Object node, int[] properties) {
+            this.type = type;
+            this.node = node;
+            this.properties = properties;
+        }
+
+        static Operand ofBoolean(Predicate<Row> node) {
+            // boolean nodes handle null values themselves
+            return new Operand(Type.BOOLEAN, node, NO_PROPERTIES);
+        }
+
+        static Operand ofInt(ToIntFunction<Row> node, int[] properties) {
+            return new Operand(Type.INT32, node, properties);
+        }
+
+        static Operand ofString(Function<Row, String> node, int[] properties) {
+            return new Operand(Type.STRING, node, properties);
+        }
+
+        @SuppressWarnings("unchecked")
+        Predicate<Row> asBoolean() {
+            return (Predicate<Row>) node;
+        }
+
+        @SuppressWarnings("unchecked")
+        ToIntFunction<Row> asInt() {
+            return (ToIntFunction<Row>) node;
+        }
+
+        @SuppressWarnings("unchecked")
+        Function<Row, String> asString() {
+            return (Function<Row, String>) node;
+        }
+    }
+
+    private static final class CompiledFilter implements EntityFilter {
+
+        private final Predicate<Row> predicate;
+
+        CompiledFilter(Predicate<Row> predicate) {
+            this.predicate = predicate;
+        }
+
+        @Override
+        public boolean matches(Row row) {
+            return predicate.test(row);
+        }
+    }
+
+    /* Boolean nodes */
+
+    private static final class BooleanConstant implements Predicate<Row> {
+
+        private final boolean value;
+
+        BooleanConstant(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return value;
+        }
+    }
+
+    private static final class BooleanProperty implements Predicate<Row> {
+
+        private final int column;
+
+        BooleanProperty(int column) {
+            this.column = column;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return Boolean.TRUE.equals(row.getValue(column));
+        }
+    }
+
+    private static final class And implements Predicate<Row> {
+
+        private final Predicate<Row> left;
+        private final Predicate<Row> right;
+
+        And(Predicate<Row> left, Predicate<Row> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return left.test(row) && right.test(row);
+        }
+    }
+
+    private static final class Or implements Predicate<Row> {
+
+        private final Predicate<Row> left;
+        private final Predicate<Row> right;
+
+        Or(Predicate<Row> left, Predicate<Row> right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return left.test(row) || right.test(row);
+        }
+    }
+
+    private static final class BooleanComparison implements Predicate<Row> {
+
+        private final BinaryOperatorKind operator;
+        private final Predicate<Row> left;
+        private final Predicate<Row> right;
+
+        BooleanComparison(BinaryOperatorKind operator, Predicate<Row> left, Predicate<Row> right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return compareResult(operator, Boolean.compare(left.test(row), right.test(row)));
+        }
+    }
+
+    private static final class IntPropertyComparison implements Predicate<Row> {
+
+        private final BinaryOperatorKind operator;
+        private final int column;
+        private final int value;
+
+        IntPropertyComparison(BinaryOperatorKind operator, int column, int value) {
+            this.operator = operator;
+            this.column = column;
+            this.value = value;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return !row.isNull(column) && compareResult(operator, Integer.compare(row.getInt(column), value));
+        }
+    }
+
+    private static final class IntComparison implements Predicate<Row> {
+
+        private final BinaryOperatorKind operator;
+        private final ToIntFunction<Row> left;
+        private final ToIntFunction<Row> right;
+        private final int[] properties;
+
+        IntComparison(BinaryOperatorKind operator, ToIntFunction<Row> left, ToIntFunction<Row> right,
+                int[] properties) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.properties = properties;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return !isAnyNull(properties, row)
+                    && compareResult(operator, Integer.compare(left.applyAsInt(row), right.applyAsInt(row)));
+        }
+    }
+
+    private static final class StringComparison implements Predicate<Row> {
+
+        private final BinaryOperatorKind operator;
+        private final Function<Row, String> left;
+        private final Function<Row, String> right;
+        private final int[] properties;
+
+        StringComparison(BinaryOperatorKind operator, Function<Row, String> left, Function<Row, String> right,
+                int[] properties) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.properties = properties;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return !isAnyNull(properties, row)
+                    && compareResult(operator, left.apply(row).compareTo(right.apply(row)));
+        }
+    }
+
+    private static final class Contains implements Predicate<Row> {
+
+        private final Function<Row, String> text;
+        private final Function<Row, String> searchText;
+        private final int[] properties;
+
+        Contains(Function<Row, String> text, Function<Row, String> searchText, int[] properties) {
+            this.text = text;
+            this.searchText = searchText;
+            this.properties = properties;
+        }
+
+        @Override
+        public boolean test(Row row) {
+            return !isAnyNull(properties, row) && text.apply(row).contains(searchText.apply(row));
+        }
+    }
+
+    /* Int32 nodes, only evaluated if none of their properties is null */
+
+    private static final class IntConstant implements ToIntFunction<Row> {
+
+        private final int value;
+
+        IntConstant(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public int applyAsInt(Row row) {
+            return value;
+        }
+    }
+
+    private static final class IntProperty implements ToIntFunction<Row> {
+
+        private final int column;
+
+        IntProperty(int column) {
+            this.column = column;
+        }
+
+        @Override
+        public int applyAsInt(Row row) {
+            return row.getInt(column);
+        }
+    }
+
+    private static final class IntNegation implements ToIntFunction<Row> {
+
+        private final ToIntFunction<Row> operand;
+
+        IntNegation(ToIntFunction<Row> operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public int applyAsInt(Row row) {
+            return -operand.applyAsInt(row);
+        }
+    }
+
+    private static final class IntArithmetic implements ToIntFunction<Row> {
+
+        private final BinaryOperatorKind operator;
+        private final ToIntFunction<Row> left;
+        private final ToIntFunction<Row> right;
+
+        IntArithmetic(BinaryOperatorKind operator, ToIntFunction<Row> left, ToIntFunction<Row> right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public int applyAsInt(Row row) {
+            int valueLeft = left.applyAsInt(row);
+            int valueRight = right.applyAsInt(row);
+            switch (operator) {
+            case ADD:
+                return valueLeft + valueRight;
+            case SUB:
+                return valueLeft - valueRight;
+            case MUL:
+                return valueLeft * valueRight;
+            case DIV:
+                return valueLeft / valueRight;
+            default:
+                // BinaryOperatorKind.MOD
+                return valueLeft % valueRight;
+            }
+        }
+    }
+
+    /* String nodes, only evaluated if none of their properties is null */
+
+    private static final class StringConstant implements Function<Row, String> {
+
+        private final String value;
+
+        StringConstant(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String apply(Row row) {
+            return value;
+        }
+    }
+
+    private static final class StringProperty implements Function<Row, String> {
+
+        private final int column;
+
+        StringProperty(int column) {
+            this.column = column;
+        }
+
+        @Override
+        public String apply(Row row) {
+            return row.getString(column);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package olingo.tutorial.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.core.Decoder;
+
+import olingo.tutorial.data.EntityFilter;
+import olingo.tutorial.data.RowComparator;
+
+/**
+ * Keeps the compiled $filter and $orderby options of recent requests.
+ *
+ * Clients like dashboards send the same queries again and again, a query which is found in the
+ * cache doesn't have to be compiled again. The key is the entity type together with the normalized
+ * text of both options, so different spellings of the same query (percent encoding, additional
+ * blanks) share one entry. If the cache is full, the least recently used plan is removed.
+ */
+public class QueryPlanCache {
+
+    private final int maxSize;
+    private final Map<String, QueryPlan> plans;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache for up to maxSize plans, a cache of size 0 doesn't keep any plans
+     */
+    public QueryPlanCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.plans = Collections.synchronizedMap(new LinkedHashMap<String, QueryPlan>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QueryPlan> eldest) {
+                return size() > QueryPlanCache.this.maxSize;
+            }
+        });
+    }
+
+    /**
+     * Returns the cache key for the $filter and $orderby options of the raw query,
+     * e.g. "$filter=ID%20gt%203&$top=5" results in "OData.Demo.Product|ID gt 3|". The names of
+     * the options are decoded like Olingo does, "%24filter" is $filter as well.
+     */
+    public static String createKey(EdmEntityType entityType, String rawQueryPath) {
+        String filter = null;
+        String orderBy = null;
+        if (rawQueryPath != null) {
+            for (String option : rawQueryPath.split("&")) {
+                int separator = option.indexOf('=');
+                if (separator < 0) {
+                    continue;
+                }
+                String name = Decoder.decode(option.substring(0, separator));
+                if (name.equals("$filter")) {
+                    filter = normalize(option.substring(separator + 1));
+                } else if (name.equals("$orderby")) {
+                    orderBy = normalize(option.substring(separator + 1));
+                }
+            }
+        }
+        return entityType.getFullQualifiedName().getFullQualifiedNameAsString()
+                + '|' + (filter == null ? "" : filter) + '|' + (orderBy == null ? "" : orderBy);
+    }
+
+    public QueryPlan get(String key) {
+        QueryPlan plan = plans.get(key);
+        if (plan != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return plan;
+    }
+
+    public void put(String key, QueryPlan plan) {
+        if (maxSize > 0) {
+            plans.put(key, plan);
+        }
+    }
+
+    public int size() {
+        return plans.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryPlanCache [size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+    }
+
+    /**
+     * Decodes the option and removes blanks which don't change the meaning of the expression.
+     * Blanks inside string literals are kept.
+     */
+    static String normalize(String encodedOption) {
+        String option = Decoder.decode(encodedOption);
+        StringBuilder normalized = new StringBuilder(option.length());
+        boolean inLiteral = false;
+        boolean pendingBlank = false;
+        for (int i = 0; i < option.length(); i++) {
+            char c = option.charAt(i);
+            if (!inLiteral && Character.isWhitespace(c)) {
+                pendingBlank = normalized.length() > 0;
+                continue;
+            }
+            if (pendingBlank) {
+                normalized.append(' ');
+                pendingBlank = false;
+            }
+            if (c == '\'') {
+                // a quote inside a literal is doubled, which toggles twice
+                inLiteral = !inLiteral;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * The compiled $filter and $orderby of a query, both are null if the option is missing.
+     * A plan holds no request state, so it can be used by concurrent requests.
+     */
+    public static final class QueryPlan {
+
+        private final EntityFilter filter;
+        private final RowComparator orderBy;
+
+        public QueryPlan(EntityFilter filter, RowComparator orderBy) {
+            this.filter = filter;
+            this.orderBy = orderBy;
+        }
+
+        public EntityFilter getFilter() {
+            return filter;
+        }
+
+        public RowComparator getOrderBy() {
+            return orderBy;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package olingo.tutorial.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.commons.api.http.HttpHeader;
+import org.apache.olingo.commons.api.http.HttpStatusCode;
+import org.apache.olingo.commons.core.Decoder;
+import org.apache.olingo.server.api.ODataRequest;
+import org.apache.olingo.server.api.ODataResponse;
+
+import olingo.tutorial.data.StorageListener;
+
+/**
+ * Keeps the serialized responses of recent reads, so a repeated GET of e.g. /Categories or
+ * /Products(3) doesn't serialize the entities again.
+ *
+ * The key is the request URI, with the resource path decoded and the query options as sent by the
+ * client, together with the response format and the page size. Each response remembers the entity
+ * sets it was read from, when the storage reports a change of one of them the response is dropped.
+ * A response is recorded while it is sent to the first client and only kept if it was read
+ * completely and no entity set it depends on has changed in the meantime.
+ *
+ * The cache holds at most maxBytes of responses, if it is full the least recently used responses
+ * are removed. A single response may take up to an eighth of the cache, larger ones are not kept.
+ */
+public class ResponseCache implements StorageListener {
+
+    // estimated memory of an entry besides the content: key, headers and the entry objects
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // in the order of access, the least recently used response first
+    private final LinkedHashMap<String, CachedResponse> responses = new LinkedHashMap<>(16, 0.75f, true);
+    // the number of the last change of each entity set, see isChangedSince
+    private final Map<String, Long> lastChanges = new HashMap<>();
+    private long changeCount;
+    private long usedBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Creates a cache for responses of up to maxBytes in total, a cache of size 0 doesn't keep any responses
+     */
+    public ResponseCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    /**
+     * Returns the cache key of the request, the pageSize is the size of the pages the
+     * response is split into, 0 for the response of a single entity
+     */
+    public static String createKey(ODataRequest request, ContentType responseFormat, int pageSize) {
+        StringBuilder key = new StringBuilder()
+                .append(responseFormat.toContentTypeString()).append('|')
+                .append(pageSize).append('|')
+                .append(request.getRawBaseUri())
+                .append(Decoder.decode(request.getRawODataPath()));
+        String rawQueryPath = request.getRawQueryPath();
+        if (rawQueryPath != null && !rawQueryPath.isEmpty()) {
+            // the query isn't normalized, the next link of a page repeats it as it was sent
+            key.append('?').append(rawQueryPath);
+        }
+        return key.toString();
+    }
+
+    public synchronized CachedResponse get(String key) {
+        CachedResponse response = responses.get(key);
+        if (response != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return response;
+    }
+
+    /**
+     * Starts to record the response for the key. It must be called before the data is read from
+     * the storage, a change reported after this call prevents the response from being cached.
+     */
+    public synchronized Recording startRecording(String key) {
+        return new Recording(key, changeCount);
+    }
+
+    /**
+     * Drops all responses which have been read from the entity set
+     */
+    @Override
+    public synchronized void entitySetChanged(String entitySetName) {
+        lastChanges.put(entitySetName, ++changeCount);
+        Iterator<CachedResponse> iterator = responses.values().iterator();
+        while (iterator.hasNext()) {
+            CachedResponse response = iterator.next();
+            if (response.dependsOn(entitySetName)) {
+                iterator.remove();
+                usedBytes -= response.size;
+                invalidations++;
+            }
+        }
+    }
+
+    private synchronized void put(Recording recording, CachedResponse response) {
+        if (isChangedSince(response.entitySetNames, recording.changeCount)) {
+            return;
+        }
+        CachedResponse previous = responses.put(recording.key, response);
+        if (previous != null) {
+            usedBytes -= previous.size;
+        }
+        usedBytes += response.size;
+        Iterator<CachedResponse> iterator = responses.values().iterator();
+        while (usedBytes > maxBytes && iterator.hasNext()) {
+            usedBytes -= iterator.next().size;
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    private boolean isChangedSince(String[] entitySetNames, long count) {
+        for (String entitySetName : entitySetNames) {
+            Long lastChange = lastChanges.get(entitySetName);
+            if (lastChange != null && lastChange > count) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return responses.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the share of the requests which were answered from the cache, between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResponseCache [size=" + responses.size() + ", usedBytes=" + usedBytes + ", hits=" + hits
+                + ", misses=" + misses + ", hitRate=" + String.format("%.2f", getHitRate())
+                + ", evictions=" + evictions + ", invalidations=" + invalidations + "]";
+    }
+
+    /**
+     * A response which is being sent to the first client
+     */
+    public final class Recording {
+
+        private final String key;
+        private final long changeCount;
+
+        private Recording(String key, long changeCount) {
+            this.key = key;
+            this.changeCount = changeCount;
+        }
+
+        /**
+         * Records the content of a successful response while it is sent. The response is kept
+         * until one of the entity sets it has been read from changes.
+         */
+        public void record(ODataResponse response, String... entitySetNames) {
+            if (maxEntryBytes == 0 || response.getStatusCode() != HttpStatusCode.OK.getStatusCode()
+                    || response.getContent() == null) {
+                return;
+            }
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> header : response.getAllHeaders().entrySet()) {
+                headers.put(header.getKey(), new ArrayList<>(header.getValue()));
+            }
+            response.setContent(new RecordingInputStream(response.getContent(), headers, entitySetNames));
+        }
+
+        /**
+         * Copies the content while it is read, at the end of the content it is put into the cache
+         */
+        private final class RecordingInputStream extends FilterInputStream {
+
+            private final Map<String, List<String>> headers;
+            private final String[] entitySetNames;
+            // null if the content is too large for the cache
+            private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+            RecordingInputStream(InputStream content, Map<String, List<String>> headers, String[] entitySetNames) {
+                super(content);
+                this.headers = headers;
+                this.entitySetNames = entitySetNames;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    finish();
+                } else if (copy != null) {
+                    copy.write(b);
+                    checkSize();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = super.read(b, off, len);
+                if (count < 0) {
+                    finish();
+                } else if (copy != null) {
+                    copy.write(b, off, count);
+                    checkSize();
+                }
+                return count;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // skipped bytes are missing in the copy
+                copy = null;
+                return super.skip(n);
+            }
+
+            private void checkSize() {
+                if (copy.size() + ENTRY_OVERHEAD > maxEntryBytes) {
+                    copy = null;
+                }
+            }
+
+            private void finish() {
+                if (copy != null) {
+                    byte[] content = copy.toByteArray();
+                    copy = null;
+                    put(Recording.this, new CachedResponse(content, headers, entitySetNames,
+                            content.length + 2 * key.length() + ENTRY_OVERHEAD));
+                }
+            }
+        }
+    }
+
+    /**
+     * The serialized content and the headers of a response
+     */
+    public static final class CachedResponse {
+
+        private final byte[] content;
+        private final Map<String, List<String>> headers;
+        private final String[] entitySetNames;
+        private final long size;
+
+        private CachedResponse(byte[] content, Map<String, List<String>> headers, String[] entitySetNames, long size) {
+            this.content = content;
+            this.headers = headers;
+            this.entitySetNames = entitySetNames;
+            this.size = size;
+        }
+
+        /**
+         * Returns the ETag of the entity, null for an entity collection
+         */
+        public String getETag() {
+            List<String> eTag = headers.get(HttpHeader.ETAG);
+            return eTag == null || eTag.isEmpty() ? null : eTag.get(0);
+        }
+
+        /**
+         * Sets the status, headers and content of the response, the content isn't copied
+         */
+        public void writeTo(ODataResponse response) {
+            response.setStatusCode(HttpStatusCode.OK.getStatusCode());
+            // the handler has set some of the headers already, e.g. OData-Version, they are replaced
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                List<String> values = header.getValue();
+                response.setHeader(header.getKey(), values.get(0));
+                if (values.size() > 1) {
+                    response.addHeader(header.getKey(), new ArrayList<>(values.subList(1, values.size())));
+                }
+            }
+            response.setContent(new ByteArrayInputStream(content));
+        }
+
+        private boolean dependsOn(String entitySetName) {
+            return Arrays.asList(entitySetNames).contains(entitySetName);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package olingo.tutorial.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.EntityCollection;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.format.ContentType;
+import org.apache.olingo.server.api.ServiceMetadata;
+import org.apache.olingo.server.api.serializer.EntityCollectionSerializerOptions;
+import org.apache.olingo.server.api.serializer.SerializerException;
+import org.apache.olingo.server.core.serializer.json.ODataJsonSerializer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import olingo.tutorial.data.EntityStream;
+
+/**
+ * A JSON serializer which writes an entity collection while the response is sent.
+ *
+ * ODataJsonSerializer.entityCollection serializes the whole collection into a buffer before the
+ * response is sent, so the memory grows with the size of the response. The stream returned by
+ * entityCollectionStreamed serializes the next entities only when the servlet container reads
+ * it, the memory stays the same no matter how many entities there are. The envelope around the
+ * entities (context URL, count, ...) is serialized by ODataJsonSerializer for an empty collection.
+ */
+public class StreamingJsonSerializer extends ODataJsonSerializer {
+
+    private static final String EMPTY_VALUE = "\"value\":[]";
+    // the entities are serialized in chunks of about this size
+    private static final int CHUNK_SIZE = 8192;
+
+    public StreamingJsonSerializer(ContentType contentType) {
+        super(contentType);
+    }
+
+    public InputStream entityCollectionStreamed(ServiceMetadata metadata, EdmEntityType entityType,
+            EntityStream entities, EntityCollectionSerializerOptions options) throws SerializerException {
+        EntityCollection envelope = new EntityCollection();
+        envelope.setCount(entities.getCount());
+        envelope.setNext(entities.getNext());
+        String text;
+        try {
+            text = toString(entityCollection(metadata, entityType, envelope, options).getContent());
+        } catch (IOException e) {
+            throw new SerializerException("An I/O exception occurred.", e, SerializerException.MessageKeys.IO_EXCEPTION);
+        }
+        int valueStart = text.lastIndexOf(EMPTY_VALUE);
+        byte[] prefix = text.substring(0, valueStart + EMPTY_VALUE.length() - 2).getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = text.substring(valueStart + EMPTY_VALUE.length()).getBytes(StandardCharsets.UTF_8);
+        return new EntityCollectionStream(metadata, entityType, entities, options, prefix, suffix);
+    }
+
+    private static String toString(InputStream content) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = content.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            content.close();
+        }
+    }
+
+    /**
+     * Serializes the next chunk of entities whenever the previous chunk has been read
+     */
+    private class EntityCollectionStream extends InputStream {
+
+        private final ServiceMetadata metadata;
+        private final EdmEntityType entityType;
+        private final EntityStream entities;
+        private final EntityCollectionSerializerOptions options;
+        private final byte[] suffix;
+
+        private final Chunk chunk = new Chunk();
+        private final JsonGenerator json;
+        private int position;
+        private boolean finished;
+
+        EntityCollectionStream(ServiceMetadata metadata, EdmEntityType entityType, EntityStream entities,
+                EntityCollectionSerializerOptions options, byte[] prefix, byte[] suffix) throws SerializerException {
+            this.metadata = metadata;
+            this.entityType = entityType;
+            this.entities = entities;
+            this.options = options;
+            this.suffix = suffix;
+            try {
+                json = new JsonFactory().createGenerator(chunk);
+                chunk.write(prefix);
+                json.writeStartArray();
+                json.flush();
+            } catch (IOException e) {
+                throw new SerializerException("An I/O exception occurred.", e, SerializerException.MessageKeys.IO_EXCEPTION);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk.buffer()[position++] & 0xff;
+        }
+
+        /**
+         * Fills the whole array unless the end is reached. ODataHttpHandlerImpl copies the content
+         * with a buffer which never grows again after a short read, so a short read at the end of
+         * a chunk would slow down the rest of the response.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int total = 0;
+            while (total < len && fill()) {
+                int count = Math.min(len - total, chunk.size() - position);
+                System.arraycopy(chunk.buffer(), position, b, off + total, count);
+                position += count;
+                total += count;
+            }
+            return total == 0 && len > 0 ? -1 : total;
+        }
+
+        /**
+         * Serializes the next chunk if the current one has been read, returns false at the end
+         */
+        private boolean fill() throws IOException {
+            if (position < chunk.size()) {
+                return true;
+            } else if (finished) {
+                return false;
+            }
+            chunk.reset();
+            position = 0;
+            try {
+                // the generator buffers the output itself, it is flushed to check the chunk size
+                while (chunk.size() < CHUNK_SIZE && entities.hasNext()) {
+                    writeEntity(entities.next());
+                    json.flush();
+                }
+            } catch (SerializerException e) {
+                throw new IOException(e);
+            }
+            if (chunk.size() < CHUNK_SIZE) {
+                json.writeEndArray();
+                json.close();
+                chunk.write(suffix);
+                finished = true;
+            }
+            return chunk.size() > 0;
+        }
+
+        private void writeEntity(Entity entity) throws IOException, SerializerException {
+            if (options.getWriteOnlyReferences()) {
+                json.writeStartObject();
+                json.writeStringField("@odata.id", entity.getId().toASCIIString());
+                json.writeEndObject();
+            } else {
+                StreamingJsonSerializer.this.writeEntity(metadata, entityType, entity, null,
+                        options.getExpand(), options.getSelect(), false, json);
+            }
+        }
+    }
+
+    /**
+     * The buffer of the current chunk, read directly without copying it
+     */
+    private static final class Chunk extends ByteArrayOutputStream {
+
+        Chunk() {
+            super(CHUNK_SIZE * 2);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
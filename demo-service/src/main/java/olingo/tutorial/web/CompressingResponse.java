@@ -0,0 +1,445 @@
+package olingo.tutorial.web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Compresses the body of a response with the content coding the client accepts, gzip or deflate.
+ *
+ * The body is compressed while it is written. Up to threshold bytes are buffered first: a body
+ * which ends before is sent as it is, with its Content-Length, as compressing it would hardly
+ * save anything. If the handler has set a Content-Length, the decision is made at once and
+ * nothing is buffered. A compressed body has no Content-Length, it is sent chunked.
+ *
+ * Bodies of media types which are compressed already (images, audio, video and archives) are
+ * not compressed again, neither are partial content and bodies which have a Content-Encoding.
+ */
+final class CompressingResponse extends HttpServletResponseWrapper {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final String ACCEPT_ENCODING_HEADER = "Accept-Encoding";
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    private static final String CONTENT_LENGTH_HEADER = "Content-Length";
+    private static final String CONTENT_TYPE_HEADER = "Content-Type";
+    private static final String VARY_HEADER = "Vary";
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+            "font/woff", "font/woff2"));
+
+    private final String encoding;
+    private final int threshold;
+    private final Statistics statistics;
+
+    private int status = SC_OK;
+    private String contentType;
+    // -1 if the handler hasn't set it, it is passed on only if the body isn't compressed
+    private long contentLength = -1;
+    private boolean encoded;
+    private CompressingOutputStream out;
+    private PrintWriter writer;
+
+    CompressingResponse(HttpServletResponse response, String encoding, int threshold, Statistics statistics) {
+        super(response);
+        this.encoding = encoding;
+        this.threshold = threshold;
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the content coding for the Accept-Encoding header of the request, gzip is preferred
+     * if the client accepts both equally. Returns null if the client accepts neither.
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip")) {
+                gzip = quality;
+            } else if (name.equals(DEFLATE)) {
+                deflate = quality;
+            } else if (name.equals("*")) {
+                any = quality;
+            }
+        }
+        // a coding which isn't listed has the quality of *
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * Returns the content coding the request accepts, see negotiate
+     */
+    static String negotiate(HttpServletRequest request) {
+        return negotiate(request.getHeader(ACCEPT_ENCODING_HEADER));
+    }
+
+    @Override
+    public void setStatus(int status) {
+        this.status = status;
+        super.setStatus(status);
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int status, String message) {
+        this.status = status;
+        super.setStatus(status, message);
+    }
+
+    @Override
+    public void setContentType(String type) {
+        contentType = type;
+        super.setContentType(type);
+    }
+
+    @Override
+    public void setContentLength(int length) {
+        contentLength = length;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (!intercept(name, value)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (!intercept(name, value)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (!intercept(name, String.valueOf(value))) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (!intercept(name, String.valueOf(value))) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    /**
+     * Remembers the headers the decision depends on, returns true if the header is held back
+     */
+    private boolean intercept(String name, String value) {
+        if (CONTENT_LENGTH_HEADER.equalsIgnoreCase(name)) {
+            try {
+                contentLength = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            return true;
+        }
+        if (CONTENT_TYPE_HEADER.equalsIgnoreCase(name)) {
+            contentType = value;
+        } else if (CONTENT_ENCODING_HEADER.equalsIgnoreCase(name)) {
+            encoded = true;
+        }
+        return false;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has been called already");
+        }
+        if (out == null) {
+            out = new CompressingOutputStream();
+        }
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (out != null) {
+                throw new IllegalStateException("getOutputStream() has been called already");
+            }
+            out = new CompressingOutputStream();
+            writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        } else if (out != null) {
+            out.flush();
+        }
+        super.flushBuffer();
+    }
+
+    /**
+     * Writes the rest of the body, must be called when the handler has finished the response
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.close();
+        } else if (out != null) {
+            out.close();
+        } else if (contentLength >= 0) {
+            // there is no body, e.g. of a HEAD request
+            super.setHeader(CONTENT_LENGTH_HEADER, String.valueOf(contentLength));
+        }
+    }
+
+    /**
+     * Returns false if the body must be sent as it is
+     */
+    private boolean isCompressible() {
+        if (encoded || status == SC_PARTIAL_CONTENT || status == SC_NO_CONTENT || status == SC_NOT_MODIFIED
+                || contentType == null || contentLength == 0) {
+            return false;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/")) {
+            return type.equals("image/svg+xml");
+        }
+        return !type.startsWith("audio/") && !type.startsWith("video/") && !COMPRESSED_TYPES.contains(type);
+    }
+
+    /**
+     * Decides on the first write, and when the buffer is full, whether the body is compressed
+     */
+    private final class CompressingOutputStream extends ServletOutputStream {
+
+        // the body until the decision is made, null afterwards
+        private byte[] buffer;
+        private int buffered;
+        // the stream the body is written to once the decision is made
+        private OutputStream target;
+        private CountingOutputStream compressed;
+        private long uncompressedBytes;
+        private boolean closed;
+
+        CompressingOutputStream() throws IOException {
+            if (!isCompressible() || contentLength >= 0 && contentLength <= threshold) {
+                startUncompressed();
+            } else if (contentLength > threshold) {
+                startCompressed();
+            } else {
+                buffer = new byte[Math.min(threshold, BUFFER_SIZE)];
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("The response has been closed");
+            }
+            if (target == null) {
+                if (buffered + len <= threshold) {
+                    if (buffered + len > buffer.length) {
+                        buffer = Arrays.copyOf(buffer, Math.min(threshold, Math.max(buffered + len, buffer.length * 2)));
+                    }
+                    System.arraycopy(b, off, buffer, buffered, len);
+                    buffered += len;
+                    return;
+                }
+                // the body is larger than the threshold
+                startCompressed();
+                writeBuffer();
+            }
+            target.write(b, off, len);
+            uncompressedBytes += len;
+        }
+
+        /**
+         * Writes what has been written so far, unless the body is still buffered
+         */
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (target == null) {
+                // the whole body is smaller than the threshold
+                contentLength = buffered;
+                startUncompressed();
+                writeBuffer();
+            }
+            closed = true;
+            target.close();
+            if (compressed != null) {
+                statistics.compressed(uncompressedBytes, compressed.count);
+            } else {
+                statistics.uncompressed();
+            }
+        }
+
+        private void startUncompressed() throws IOException {
+            if (contentLength >= 0) {
+                CompressingResponse.super.setHeader(CONTENT_LENGTH_HEADER, String.valueOf(contentLength));
+            }
+            target = CompressingResponse.super.getOutputStream();
+        }
+
+        private void startCompressed() throws IOException {
+            CompressingResponse.super.setHeader(CONTENT_ENCODING_HEADER, encoding);
+            CompressingResponse.super.addHeader(VARY_HEADER, ACCEPT_ENCODING_HEADER);
+            compressed = new CountingOutputStream(CompressingResponse.super.getOutputStream());
+            target = GZIP.equals(encoding) ? new GZIPOutputStream(compressed, BUFFER_SIZE)
+                    : new DeflaterOutputStream(compressed);
+        }
+
+        private void writeBuffer() throws IOException {
+            if (buffered > 0) {
+                target.write(buffer, 0, buffered);
+                uncompressedBytes += buffered;
+            }
+            buffer = null;
+        }
+    }
+
+    /**
+     * Counts the compressed bytes on their way to the client
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The number of bytes before and after compression, for all responses of a servlet
+     */
+    static final class Statistics {
+
+        private final AtomicLong compressedResponses = new AtomicLong();
+        private final AtomicLong uncompressedResponses = new AtomicLong();
+        private final AtomicLong bytesBeforeCompression = new AtomicLong();
+        private final AtomicLong bytesAfterCompression = new AtomicLong();
+
+        void compressed(long before, long after) {
+            compressedResponses.incrementAndGet();
+            bytesBeforeCompression.addAndGet(before);
+            bytesAfterCompression.addAndGet(after);
+        }
+
+        void uncompressed() {
+            uncompressedResponses.incrementAndGet();
+        }
+
+        public long getCompressedResponses() {
+            return compressedResponses.get();
+        }
+
+        /**
+         * Returns the number of responses of clients which accept compression, which were sent
+         * as they are, e.g. because they were too small
+         */
+        public long getUncompressedResponses() {
+            return uncompressedResponses.get();
+        }
+
+        public long getBytesBeforeCompression() {
+            return bytesBeforeCompression.get();
+        }
+
+        public long getBytesAfterCompression() {
+            return bytesAfterCompression.get();
+        }
+
+        /**
+         * Returns the size of the compressed bodies relative to their original size, between 0 and 1
+         */
+        public double getCompressionRatio() {
+            long before = getBytesBeforeCompression();
+            return before == 0 ? 1 : (double) getBytesAfterCompression() / before;
+        }
+
+        @Override
+        public String toString() {
+            return "CompressionStatistics [compressed=" + getCompressedResponses() + ", uncompressed="
+                    + getUncompressedResponses() + ", bytesBefore=" + getBytesBeforeCompression()
+                    + ", bytesAfter=" + getBytesAfterCompression() + "]";
+        }
+    }
+}
@@ -18,8 +18,15 @@
  */
 package olingo.tutorial.web;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -28,17 +35,30 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import olingo.tutorial.data.Storage;
+import olingo.tutorial.data.StorageContext;
 import olingo.tutorial.service.DemoActionVoidProcessor;
 import olingo.tutorial.service.DemoBatchProcessor;
 import olingo.tutorial.service.DemoEdmProvider;
 import olingo.tutorial.service.DemoEntityCollectionProcessor;
 import olingo.tutorial.service.DemoEntityProcessor;
 import olingo.tutorial.service.DemoPrimitiveProcessor;
+import olingo.tutorial.service.QueryPlanCache;
+import olingo.tutorial.service.ResponseCache;
 
+import org.apache.olingo.commons.api.edm.Edm;
+import org.apache.olingo.commons.api.edm.EdmActionImport;
+import org.apache.olingo.commons.api.edm.EdmEntityContainer;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.commons.api.edm.EdmEntityType;
+import org.apache.olingo.commons.api.edm.EdmFunctionImport;
+import org.apache.olingo.commons.api.edm.EdmNavigationProperty;
+import org.apache.olingo.commons.api.edm.EdmNavigationPropertyBinding;
+import org.apache.olingo.commons.api.edm.EdmSchema;
 import org.apache.olingo.server.api.OData;
 import org.apache.olingo.server.api.ODataHttpHandler;
 import org.apache.olingo.server.api.ServiceMetadata;
 import org.apache.olingo.server.api.edmx.EdmxReference;
+import org.apache.olingo.server.api.processor.Processor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,41 +66,306 @@ import org.slf4j.LoggerFactory;
  * This class represents a standard HttpServlet implementation.
  * It is used as main entry point for the web application that carries the OData service.
  * The implementation of this HttpServlet simply delegates the user requests to the ODataHttpHandler
+ * 
+ * By default the service metadata and the processors are built once in init() and every worker
+ * thread keeps its own handler, because the Olingo handler holds per request state and must not
+ * be used by two requests at the same time. Setting the init parameter "reuseHandler" to false
+ * builds everything again for each request, as the tutorial did originally.
+ * 
+ * All clients work on one application wide Storage. For isolated demos the init parameter
+ * "storageMode" can be set to "session", then each HttpSession gets its own copy of the data.
+ * 
+ * If the init parameter "dataDirectory" is set, the shared storage is persistent: its
+ * modifications are written to a log in the directory, and a snapshot of the data is written
+ * whenever the log has grown by "checkpointLogSize" bytes. On startup the data is recovered from
+ * the directory. The session storages are only kept in memory.
+ * 
+ * The compiled $filter and $orderby options of the last requests are kept in a cache, the init
+ * parameter "queryPlanCacheSize" sets its size.
+ * 
+ * The serialized responses of entity and entity collection reads are kept in a cache of at most
+ * "responseCacheSize" bytes, until the data they were read from changes. The cache is only used
+ * with the shared storage, as the sessions have different data behind the same URLs.
+ * 
+ * Entity collections are returned in pages of at most "maxPageSize" entities, with a next link
+ * to the following page. A maxPageSize of 0 returns the whole collection at once.
+ * 
+ * The GET requests of a $batch request run concurrently on up to "batchThreads" threads, which
+ * are shared by all batch requests. The threads are virtual threads if the JVM supports them.
+ * With 0 batch threads the parts of a batch run one after the other.
+ * 
+ * Responses are compressed with gzip or deflate if the client accepts it and the body is larger
+ * than "compressionThreshold" bytes, a negative threshold turns compression off. The number of
+ * bytes before and after compression is logged when the servlet is destroyed.
  */
 public class DemoServlet extends HttpServlet {
 
     private static final long serialVersionUID = 1L;
     private static final Logger LOG = LoggerFactory.getLogger(DemoServlet.class);
 
+    public static final String REUSE_HANDLER_PARAMETER = "reuseHandler";
+    public static final String STORAGE_MODE_PARAMETER = "storageMode";
+    public static final String STORAGE_MODE_SHARED = "shared";
+    public static final String STORAGE_MODE_SESSION = "session";
+    public static final String DATA_DIRECTORY_PARAMETER = "dataDirectory";
+    public static final String CHECKPOINT_LOG_SIZE_PARAMETER = "checkpointLogSize";
+    public static final int DEFAULT_CHECKPOINT_LOG_SIZE = 16 * 1024 * 1024;
+    public static final String QUERY_PLAN_CACHE_SIZE_PARAMETER = "queryPlanCacheSize";
+    public static final int DEFAULT_QUERY_PLAN_CACHE_SIZE = 100;
+    public static final String RESPONSE_CACHE_SIZE_PARAMETER = "responseCacheSize";
+    public static final int DEFAULT_RESPONSE_CACHE_SIZE = 4 * 1024 * 1024;
+    public static final String MAX_PAGE_SIZE_PARAMETER = "maxPageSize";
+    public static final int DEFAULT_MAX_PAGE_SIZE = 1000;
+    public static final String BATCH_THREADS_PARAMETER = "batchThreads";
+    public static final int DEFAULT_BATCH_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final String COMPRESSION_THRESHOLD_PARAMETER = "compressionThreshold";
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    private boolean reuseHandler;
+    private transient ThreadLocal<ODataHttpHandler> handlers;
+    // null if each session has its own storage
+    private transient Storage sharedStorage;
+    private transient QueryPlanCache queryPlanCache;
+    private transient ResponseCache responseCache;
+    private int maxPageSize;
+    // null if the parts of a batch run one after the other
+    private transient ExecutorService batchExecutor;
+    // negative if the responses aren't compressed
+    private int compressionThreshold;
+    private transient CompressingResponse.Statistics compressionStatistics;
+
+    @Override
+    public void init() throws ServletException {
+        String storageMode = getInitParameter(STORAGE_MODE_PARAMETER);
+        String dataDirectory = getInitParameter(DATA_DIRECTORY_PARAMETER);
+        if (dataDirectory != null && dataDirectory.trim().isEmpty()) {
+            dataDirectory = null;
+        }
+        if (storageMode == null || storageMode.equalsIgnoreCase(STORAGE_MODE_SHARED)) {
+            sharedStorage = dataDirectory != null ? openStorage(dataDirectory.trim()) : new Storage();
+        } else if (!storageMode.equalsIgnoreCase(STORAGE_MODE_SESSION)) {
+            throw new ServletException("Unknown storage mode " + storageMode);
+        }
+
+        queryPlanCache = new QueryPlanCache(getIntInitParameter(
+                QUERY_PLAN_CACHE_SIZE_PARAMETER, DEFAULT_QUERY_PLAN_CACHE_SIZE));
+        int responseCacheSize = getIntInitParameter(RESPONSE_CACHE_SIZE_PARAMETER, DEFAULT_RESPONSE_CACHE_SIZE);
+        if (responseCacheSize < 0) {
+            throw new ServletException("Invalid value for init parameter " + RESPONSE_CACHE_SIZE_PARAMETER + ": " 
+                    + responseCacheSize);
+        }
+        responseCache = new ResponseCache(sharedStorage != null ? responseCacheSize : 0);
+        if (sharedStorage != null) {
+            sharedStorage.addListener(responseCache);
+        }
+        maxPageSize = getIntInitParameter(MAX_PAGE_SIZE_PARAMETER, DEFAULT_MAX_PAGE_SIZE);
+        if (maxPageSize < 0) {
+            throw new ServletException("Invalid value for init parameter " + MAX_PAGE_SIZE_PARAMETER + ": " + maxPageSize);
+        }
+        int batchThreads = getIntInitParameter(BATCH_THREADS_PARAMETER, DEFAULT_BATCH_THREADS);
+        if (batchThreads < 0) {
+            throw new ServletException("Invalid value for init parameter " + BATCH_THREADS_PARAMETER + ": " + batchThreads);
+        }
+        if (batchThreads > 0) {
+            batchExecutor = Executors.newFixedThreadPool(batchThreads, createBatchThreadFactory());
+        }
+
+        compressionThreshold = getIntInitParameter(COMPRESSION_THRESHOLD_PARAMETER, DEFAULT_COMPRESSION_THRESHOLD);
+        compressionStatistics = new CompressingResponse.Statistics();
+
+        reuseHandler = !"false".equalsIgnoreCase(getInitParameter(REUSE_HANDLER_PARAMETER));
+        if (reuseHandler) {
+            final OData odata = OData.newInstance();
+            final ServiceMetadata edm = createServiceMetadata(odata);
+            // the processors don't hold any request state, so all handlers can share them
+            final List<Processor> processors = createProcessors(queryPlanCache, responseCache, maxPageSize, 
+                    batchExecutor);
+            handlers = new ThreadLocal<ODataHttpHandler>() {
+                @Override
+                protected ODataHttpHandler initialValue() {
+                    return createHandler(odata, edm, processors);
+                }
+            };
+        }
+        LOG.info("DemoServlet initialized, reuseHandler={}, storageMode={}, dataDirectory={}, maxPageSize={}, "
+                + "batchThreads={}, compressionThreshold={}", reuseHandler, 
+                sharedStorage != null ? STORAGE_MODE_SHARED : STORAGE_MODE_SESSION, dataDirectory, maxPageSize, 
+                batchThreads, compressionThreshold);
+    }
+
     @Override
     protected void service(final HttpServletRequest req, final HttpServletResponse resp) 
             throws ServletException, IOException {
 
         try {
-            HttpSession session = req.getSession(true);
-            Storage storage = (Storage) session.getAttribute(Storage.class.getName());
-            if (storage == null) {
-                storage = new Storage();
-                session.setAttribute(Storage.class.getName(), storage);
-            }
+            Storage storage = sharedStorage != null ? sharedStorage : getSessionStorage(req);
             
             // create odata handler and configure it with EdmProvider and Processor
-            OData odata = OData.newInstance();
-            ServiceMetadata edm = odata.createServiceMetadata(new DemoEdmProvider(), 
-                    new ArrayList<EdmxReference>());
-            ODataHttpHandler handler = odata.createHandler(edm);
-            handler.register(new DemoEntityCollectionProcessor(storage));
-            handler.register(new DemoEntityProcessor(storage));
-            handler.register(new DemoPrimitiveProcessor(storage));
-            handler.register(new DemoActionVoidProcessor(storage));
-            handler.register(new DemoBatchProcessor(storage));
-        
-            // let the handler do the work
-            handler.process(req, resp);
+            ODataHttpHandler handler;
+            if (reuseHandler) {
+                handler = handlers.get();
+            } else {
+                OData odata = OData.newInstance();
+                handler = createHandler(odata, createServiceMetadata(odata), createProcessors(queryPlanCache, responseCache, 
+                        maxPageSize, batchExecutor));
+            }
+
+            // the body is compressed while the handler writes it
+            String encoding = compressionThreshold >= 0 ? CompressingResponse.negotiate(req) : null;
+            CompressingResponse compressingResp = encoding == null ? null 
+                    : new CompressingResponse(resp, encoding, compressionThreshold, compressionStatistics);
+
+            // let the handler do the work, the processors find the storage in the StorageContext
+            StorageContext.bind(storage);
+            try {
+                handler.process(req, compressingResp != null ? compressingResp : resp);
+            } finally {
+                StorageContext.unbind();
+            }
+            if (compressingResp != null) {
+                compressingResp.finish();
+            }
 
         } catch (RuntimeException e) {
             LOG.error("Server Error occurred in ExampleServlet", e);
             throw new ServletException(e);
         }
     }
+
+    @Override
+    public void destroy() {
+        if (batchExecutor != null) {
+            batchExecutor.shutdownNow();
+        }
+        if (sharedStorage != null) {
+            LOG.info("Closing {}", sharedStorage);
+            try {
+                sharedStorage.close();
+            } catch (IOException e) {
+                LOG.error("Unable to close the storage", e);
+            }
+        }
+        LOG.info("DemoServlet destroyed, {}, {}, {}", queryPlanCache, responseCache, compressionStatistics);
+    }
+
+    private int getIntInitParameter(String name, int defaultValue) throws ServletException {
+        String value = getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid value for init parameter " + name + ": " + value, e);
+        }
+    }
+
+    private Storage openStorage(String dataDirectory) throws ServletException {
+        int checkpointLogSize = getIntInitParameter(CHECKPOINT_LOG_SIZE_PARAMETER, DEFAULT_CHECKPOINT_LOG_SIZE);
+        if (checkpointLogSize <= 0) {
+            throw new ServletException("Invalid value for init parameter " + CHECKPOINT_LOG_SIZE_PARAMETER + ": " 
+                    + checkpointLogSize);
+        }
+        try {
+            return new Storage(new File(dataDirectory), checkpointLogSize);
+        } catch (IOException | RuntimeException e) {
+            throw new ServletException("Unable to open the storage in " + dataDirectory, e);
+        }
+    }
+
+    private Storage getSessionStorage(HttpServletRequest req) {
+        HttpSession session = req.getSession(true);
+        Storage storage = (Storage) session.getAttribute(Storage.class.getName());
+        if (storage == null) {
+            storage = new Storage();
+            session.setAttribute(Storage.class.getName(), storage);
+        }
+        return storage;
+    }
+
+    private static ServiceMetadata createServiceMetadata(OData odata) {
+        ServiceMetadata edm = odata.createServiceMetadata(new DemoEdmProvider(), 
+                new ArrayList<EdmxReference>());
+        loadEdm(edm.getEdm());
+        return edm;
+    }
+
+    private static List<Processor> createProcessors(QueryPlanCache queryPlanCache, ResponseCache responseCache, 
+            int maxPageSize, ExecutorService batchExecutor) {
+        List<Processor> processors = new ArrayList<>(Arrays.<Processor>asList(
+                new DemoEntityCollectionProcessor(queryPlanCache, responseCache, maxPageSize),
+                new DemoEntityProcessor(responseCache),
+                new DemoPrimitiveProcessor(),
+                new DemoActionVoidProcessor()));
+        // the handlers of the batch parts get the same processors, a batch can't contain another batch
+        processors.add(new DemoBatchProcessor(batchExecutor, new ArrayList<>(processors)));
+        return processors;
+    }
+
+    /**
+     * Returns a factory for virtual threads if the JVM has them (Java 21), otherwise for daemon threads
+     */
+    private static ThreadFactory createBatchThreadFactory() {
+        try {
+            // Thread.ofVirtual().name("batch-", 0).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "batch-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            LOG.debug("Virtual threads are not available, the batch parts run on platform threads");
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "batch-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private static ODataHttpHandler createHandler(OData odata, ServiceMetadata edm, List<Processor> processors) {
+        ODataHttpHandler handler = odata.createHandler(edm);
+        for (Processor processor : processors) {
+            handler.register(processor);
+        }
+        return handler;
+    }
+
+    /**
+     * The Edm is built lazily and caches its elements in plain HashMaps the first time they are
+     * requested. Loading all elements up front means that concurrent requests only read these maps.
+     */
+    private static void loadEdm(Edm edm) {
+        for (EdmSchema schema : edm.getSchemas()) {
+            for (EdmEntityType entityType : schema.getEntityTypes()) {
+                entityType.getKeyPropertyRefs();
+                for (String propertyName : entityType.getPropertyNames()) {
+                    entityType.getProperty(propertyName);
+                }
+                for (String navigationName : entityType.getNavigationPropertyNames()) {
+                    EdmNavigationProperty navigationProperty = entityType.getNavigationProperty(navigationName);
+                    navigationProperty.getType();
+                    navigationProperty.getPartner();
+                }
+            }
+            EdmEntityContainer container = schema.getEntityContainer();
+            if (container == null) {
+                continue;
+            }
+            for (EdmEntitySet entitySet : container.getEntitySets()) {
+                for (EdmNavigationPropertyBinding binding : entitySet.getNavigationPropertyBindings()) {
+                    entitySet.getRelatedBindingTarget(binding.getPath());
+                }
+            }
+            for (EdmActionImport actionImport : container.getActionImports()) {
+                actionImport.getUnboundAction();
+            }
+            for (EdmFunctionImport functionImport : container.getFunctionImports()) {
+                functionImport.getUnboundFunctions();
+            }
+        }
+    }
 }
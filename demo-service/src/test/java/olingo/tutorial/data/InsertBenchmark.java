@@ -0,0 +1,47 @@
+package olingo.tutorial.data;
+
+import java.util.ArrayList;
+
+import org.apache.olingo.commons.api.data.Entity;
+import org.apache.olingo.commons.api.data.Property;
+import org.apache.olingo.commons.api.data.ValueType;
+import org.apache.olingo.commons.api.edm.EdmEntitySet;
+import org.apache.olingo.server.api.OData;
+
+import olingo.tutorial.service.DemoEdmProvider;
+
+/**
+ * Microbenchmark of creating products in a growing entity set. The products are inserted in
+ * rounds of the same size and the time per insert is printed for each round, it should stay
+ * flat while the set grows, as the ID of a new entity is found in constant time.
+ *
+ * Arguments: [rounds] [inserts per round], the defaults are 10 and 20000. The first round
+ * includes the warm up of the JIT.
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int insertsPerRound = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        EdmEntitySet products = OData.newInstance()
+                .createServiceMetadata(new DemoEdmProvider(), new ArrayList<>())
+                .getEdm().getEntityContainer().getEntitySet(DemoEdmProvider.ES_PRODUCTS_NAME);
+        Storage storage = new Storage();
+
+        int size = storage.readEntitySetData(products).getEntities().size();
+        for (int round = 1; round <= rounds; round++) {
+            long begin = System.nanoTime();
+            for (int i = 0; i < insertsPerRound; i++) {
+                Entity product = new Entity();
+                product.addProperty(new Property(null, "Name", ValueType.PRIMITIVE, "Product " + size));
+                product.addProperty(new Property(null, "Description", ValueType.PRIMITIVE, "Inserted by the benchmark"));
+                storage.createEntityData(products, product);
+                size++;
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("round %2d, %,9d products: %6.2f us/insert%n",
+                    round, size, elapsed / 1000.0 / insertsPerRound);
+        }
+    }
+}
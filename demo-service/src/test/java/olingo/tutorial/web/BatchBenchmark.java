@@ -0,0 +1,138 @@
+package olingo.tutorial.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark of the latency of $batch requests with a growing number of GET parts, once with the
+ * parts run one after the other (batchThreads=0) and once concurrently on the batch threads.
+ * Each part filters the products, so it has some work to do. Prints the mean and the 90th
+ * percentile latency for every number of parts.
+ *
+ * On few CPUs the latency can't show whether the parts overlap, so the benchmark also reports the
+ * peak number of reads running at the same time. It samples the stacks of all threads during some
+ * more batches, after the latency has been measured, as the sampling takes CPU time itself.
+ *
+ * The response cache and compression are turned off. Arguments: [products] [batches per size]
+ * [batch threads], the defaults are 20000, 50 and the default of the servlet.
+ */
+public class BatchBenchmark {
+
+    private static final int[] PARTS = { 1, 2, 4, 8, 16, 32 };
+    private static final String BOUNDARY = "batch_benchmark";
+    // the task which runs a GET part of a batch, see DemoBatchProcessor
+    private static final String READ_TASK = "olingo.tutorial.service.DemoBatchProcessor$ReadTask";
+
+    public static void main(String[] args) throws Exception {
+        int products = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int batches = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : DemoServlet.DEFAULT_BATCH_THREADS;
+
+        for (int batchThreads : new int[] { 0, threads }) {
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put(DemoServlet.BATCH_THREADS_PARAMETER, String.valueOf(batchThreads));
+            parameters.put(DemoServlet.RESPONSE_CACHE_SIZE_PARAMETER, "0");
+            parameters.put(DemoServlet.COMPRESSION_THRESHOLD_PARAMETER, "-1");
+            parameters.put(DemoServlet.MAX_PAGE_SIZE_PARAMETER, "0");
+            ServletDriver driver = ServletDriver.start(parameters);
+            try {
+                createProducts(driver, products);
+                System.out.printf("batchThreads=%d, %,d products%n", batchThreads, products);
+                for (int parts : PARTS) {
+                    byte[] body = createBatch(parts);
+                    // warm up
+                    for (int i = 0; i < Math.max(5, batches / 5); i++) {
+                        post(driver, body);
+                    }
+                    long[] latencies = new long[batches];
+                    for (int i = 0; i < batches; i++) {
+                        long begin = System.nanoTime();
+                        post(driver, body);
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                    Arrays.sort(latencies);
+                    System.out.printf("  %2d parts: mean %8.2f ms, p90 %8.2f ms, peak %2d reads at once%n", parts,
+                            Arrays.stream(latencies).average().getAsDouble() / 1e6,
+                            latencies[(int) (batches * 0.9) - 1] / 1e6,
+                            getPeakReads(driver, body, batches));
+                }
+            } finally {
+                driver.stop();
+            }
+        }
+    }
+
+    /**
+     * Returns the highest number of threads found running a read task at the same time
+     */
+    private static int getPeakReads(ServletDriver driver, byte[] body, int batches) throws Exception {
+        AtomicBoolean sampling = new AtomicBoolean(true);
+        AtomicInteger peak = new AtomicInteger();
+        Thread sampler = new Thread(() -> {
+            while (sampling.get()) {
+                int reads = 0;
+                for (StackTraceElement[] stack : Thread.getAllStackTraces().values()) {
+                    for (StackTraceElement frame : stack) {
+                        if (frame.getClassName().equals(READ_TASK) && frame.getMethodName().equals("call")) {
+                            reads++;
+                            break;
+                        }
+                    }
+                }
+                peak.accumulateAndGet(reads, Math::max);
+            }
+        });
+        sampler.start();
+        try {
+            for (int i = 0; i < batches; i++) {
+                post(driver, body);
+            }
+        } finally {
+            sampling.set(false);
+            sampler.join();
+        }
+        return peak.get();
+    }
+
+    private static void createProducts(ServletDriver driver, int products) throws Exception {
+        Map<String, String> headers = Collections.singletonMap("Content-Type", "application/json");
+        for (int i = 0; i < products; i++) {
+            String product = "{\"Name\":\"Product " + i + "\",\"Description\":\"Created by the benchmark\"}";
+            ServletDriver.Response response = driver.execute("POST", "/Products", headers,
+                    product.getBytes(StandardCharsets.UTF_8));
+            if (response.getStatus() != 201) {
+                throw new IllegalStateException("POST /Products returned " + response.getStatus());
+            }
+        }
+    }
+
+    private static byte[] createBatch(int parts) {
+        StringBuilder body = new StringBuilder();
+        for (int part = 0; part < parts; part++) {
+            body.append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: application/http\r\n")
+                    .append("Content-Transfer-Encoding: binary\r\n\r\n")
+                    .append("GET Products?$filter=contains(Name,'").append(part).append("1')")
+                    .append("&$select=ID,Name HTTP/1.1\r\n")
+                    .append("Accept: application/json\r\n\r\n\r\n");
+        }
+        body.append("--").append(BOUNDARY).append("--\r\n");
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void post(ServletDriver driver, byte[] body) throws Exception {
+        ServletDriver.Response response = driver.execute("POST", "/$batch",
+                Collections.singletonMap("Content-Type", "multipart/mixed; boundary=" + BOUNDARY), body);
+        if (response.getStatus() != 200 && response.getStatus() != 202) {
+            throw new IllegalStateException("POST /$batch returned " + response.getStatus());
+        }
+        if (response.getBodyAsString().contains("HTTP/1.1 4") || response.getBodyAsString().contains("HTTP/1.1 5")) {
+            throw new IllegalStateException("A part of the batch failed: " + response.getBodyAsString());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package olingo.tutorial.web;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load benchmark of the DemoServlet with and without handler reuse: several threads send small
+ * GET requests for a fixed time, once to a servlet which builds the service metadata and the
+ * handler for every request (reuseHandler=false) and once to one which builds them at init.
+ * Prints the requests per second of both runs.
+ *
+ * The response cache and compression are turned off, so every request goes through the handler.
+ * Arguments: [threads] [seconds per run], the defaults are the number of processors and 10.
+ */
+public class HandlerReuseBenchmark {
+
+    private static final String PATH = "/Products(1)";
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        for (boolean reuseHandler : new boolean[] { false, true }) {
+            Map<String, String> parameters = new HashMap<>();
+            parameters.put(DemoServlet.REUSE_HANDLER_PARAMETER, String.valueOf(reuseHandler));
+            parameters.put(DemoServlet.RESPONSE_CACHE_SIZE_PARAMETER, "0");
+            parameters.put(DemoServlet.COMPRESSION_THRESHOLD_PARAMETER, "-1");
+            ServletDriver driver = ServletDriver.start(parameters);
+            try {
+                // warm up the JIT with a short run before measuring
+                run(driver, threads, Math.max(1, seconds / 5));
+                double requestsPerSecond = run(driver, threads, seconds);
+                System.out.printf("reuseHandler=%-5s threads=%d: %,.0f requests/s%n",
+                        reuseHandler, threads, requestsPerSecond);
+            } finally {
+                driver.stop();
+            }
+        }
+    }
+
+    private static double run(ServletDriver driver, int threads, int seconds) throws Exception {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder requests = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                    while (running.get()) {
+                        ServletDriver.Response response = driver.get(PATH);
+                        if (response.getStatus() != 200) {
+                            throw new IllegalStateException("GET " + PATH + " returned " + response.getStatus());
+                        }
+                        requests.increment();
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                    running.set(false);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("The benchmark failed", failures.get(0));
+        }
+        return requests.sum() * 1e9 / elapsed;
+    }
+}
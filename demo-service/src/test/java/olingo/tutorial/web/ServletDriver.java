@@ -0,0 +1,268 @@
+package olingo.tutorial.web;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Runs requests against a servlet in the same JVM, without a servlet container, for the
+ * benchmarks. The request, the response and the config are dynamic proxies which implement the
+ * part of the servlet API the DemoServlet and the Olingo handler use. All requests share one
+ * session, the driver can be used by several threads at the same time.
+ */
+public final class ServletDriver {
+
+    private static final String SERVLET_PATH = "/DemoService.svc";
+
+    private final HttpServlet servlet;
+    private final HttpSession session;
+
+    private ServletDriver(HttpServlet servlet) {
+        this.servlet = servlet;
+        Map<String, Object> attributes = new ConcurrentHashMap<>();
+        this.session = proxy(HttpSession.class, (name, args) -> {
+            switch (name) {
+            case "getAttribute":
+                return attributes.get(args[0]);
+            case "setAttribute":
+                attributes.put((String) args[0], args[1]);
+                return null;
+            case "removeAttribute":
+                attributes.remove(args[0]);
+                return null;
+            default:
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Initializes a new DemoServlet with the given init parameters
+     */
+    public static ServletDriver start(Map<String, String> initParameters) throws ServletException {
+        ServletDriver driver = new ServletDriver(new DemoServlet());
+        ServletContext context = proxy(ServletContext.class, (name, args) -> null);
+        driver.servlet.init(proxy(ServletConfig.class, (name, args) -> {
+            switch (name) {
+            case "getInitParameter":
+                return initParameters.get(args[0]);
+            case "getInitParameterNames":
+                return Collections.enumeration(initParameters.keySet());
+            case "getServletContext":
+                return context;
+            case "getServletName":
+                return "DemoServlet";
+            default:
+                return null;
+            }
+        }));
+        return driver;
+    }
+
+    public void stop() {
+        servlet.destroy();
+    }
+
+    public Response get(String pathAndQuery) throws ServletException, IOException {
+        return execute("GET", pathAndQuery, Collections.<String, String> emptyMap(), null);
+    }
+
+    /**
+     * Runs a request. The path is relative to the service root, e.g. "/Products?$top=10", the
+     * body may be null.
+     */
+    public Response execute(String method, String pathAndQuery, Map<String, String> headers, byte[] body)
+            throws ServletException, IOException {
+        int question = pathAndQuery.indexOf('?');
+        String path = question < 0 ? pathAndQuery : pathAndQuery.substring(0, question);
+        String query = question < 0 ? null : pathAndQuery.substring(question + 1);
+        Map<String, String> requestHeaders = new LinkedHashMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            requestHeaders.put(header.getKey().toLowerCase(Locale.ENGLISH), header.getValue());
+        }
+        if (body != null) {
+            requestHeaders.put("content-length", String.valueOf(body.length));
+        }
+        ServletInputStream in = new BodyInputStream(new ByteArrayInputStream(body == null ? new byte[0] : body));
+
+        HttpServletRequest request = proxy(HttpServletRequest.class, (name, args) -> {
+            switch (name) {
+            case "getMethod":
+                return method;
+            case "getProtocol":
+                return "HTTP/1.1";
+            case "getScheme":
+                return "http";
+            case "getRequestURL":
+                return new StringBuffer("http://localhost" + SERVLET_PATH + path);
+            case "getRequestURI":
+                return SERVLET_PATH + path;
+            case "getContextPath":
+                return "";
+            case "getServletPath":
+                return SERVLET_PATH;
+            case "getPathInfo":
+                return path;
+            case "getQueryString":
+                return query;
+            case "getHeader":
+                return requestHeaders.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+            case "getHeaders":
+                String value = requestHeaders.get(((String) args[0]).toLowerCase(Locale.ENGLISH));
+                return Collections.enumeration(value == null
+                        ? Collections.<String> emptyList() : Collections.singletonList(value));
+            case "getHeaderNames":
+                return Collections.enumeration(requestHeaders.keySet());
+            case "getContentType":
+                return requestHeaders.get("content-type");
+            case "getContentLength":
+                return body == null ? -1 : body.length;
+            case "getInputStream":
+                return in;
+            case "getSession":
+                return session;
+            default:
+                return null;
+            }
+        });
+
+        Response response = new Response();
+        ServletOutputStream out = new BodyOutputStream(response.body);
+        HttpServletResponse servletResponse = proxy(HttpServletResponse.class, (name, args) -> {
+            switch (name) {
+            case "setStatus":
+            case "sendError":
+                response.status = (Integer) args[0];
+                return null;
+            case "setHeader":
+            case "setIntHeader":
+                response.headers.put((String) args[0], new ArrayList<>(Collections.singletonList(String.valueOf(args[1]))));
+                return null;
+            case "addHeader":
+                response.headers.computeIfAbsent((String) args[0], key -> new ArrayList<>()).add((String) args[1]);
+                return null;
+            case "setContentType":
+                response.headers.put("Content-Type", new ArrayList<>(Collections.singletonList((String) args[0])));
+                return null;
+            case "containsHeader":
+                return response.headers.containsKey(args[0]);
+            case "getOutputStream":
+                return out;
+            case "getWriter":
+                return new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), true);
+            case "isCommitted":
+                return false;
+            default:
+                return null;
+            }
+        });
+        servlet.service(request, servletResponse);
+        return response;
+    }
+
+    private interface Handler {
+        Object invoke(String methodName, Object[] args) throws Throwable;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(ServletDriver.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    Object result = handler.invoke(method.getName(), args);
+                    if (result == null && method.getReturnType() == boolean.class) {
+                        return false;
+                    } else if (result == null && method.getReturnType() == int.class) {
+                        return 0;
+                    } else if (result == null && method.getReturnType() == long.class) {
+                        return 0L;
+                    }
+                    return result;
+                }));
+    }
+
+    /**
+     * The status, headers and body a servlet wrote
+     */
+    public static final class Response {
+
+        private int status = HttpServletResponse.SC_OK;
+        private final Map<String, List<String>> headers = new LinkedHashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : values.get(0);
+        }
+
+        public byte[] getBody() {
+            return body.toByteArray();
+        }
+
+        public String getBodyAsString() {
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class BodyInputStream extends ServletInputStream {
+
+        private final InputStream in;
+
+        BodyInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return in.read(bytes, offset, length);
+        }
+    }
+
+    private static final class BodyOutputStream extends ServletOutputStream {
+
+        private final ByteArrayOutputStream out;
+
+        BodyOutputStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            out.write(bytes, offset, length);
+        }
+    }
+}